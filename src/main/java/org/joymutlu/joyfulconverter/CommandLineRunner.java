@@ -0,0 +1,264 @@
+package org.joymutlu.joyfulconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.joymutlu.joyfulconverter.service.ContainerSniffer;
+import org.joymutlu.joyfulconverter.service.ConversionOptions;
+import org.joymutlu.joyfulconverter.service.ConversionResult;
+import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.joymutlu.joyfulconverter.service.ConversionService;
+import org.joymutlu.joyfulconverter.service.ConversionThreads;
+import org.joymutlu.joyfulconverter.service.JobControl;
+import org.joymutlu.joyfulconverter.service.NativeMemoryGovernor;
+import org.joymutlu.joyfulconverter.service.NativeWarmup;
+import org.joymutlu.joyfulconverter.service.TimeRange;
+import org.joymutlu.joyfulconverter.service.cluster.ConversionCoordinator;
+import org.joymutlu.joyfulconverter.service.cluster.ConversionWorker;
+import org.joymutlu.joyfulconverter.service.cluster.RemoteJob;
+import org.joymutlu.joyfulconverter.service.job.JobApiServer;
+import org.joymutlu.joyfulconverter.service.job.JobEngine;
+import org.joymutlu.joyfulconverter.service.job.JobStore;
+import org.joymutlu.joyfulconverter.util.ParallelFileWalker;
+import org.joymutlu.joyfulconverter.util.StartupMetrics;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Headless entry points, used instead of the JavaFX window when the first argument is a command.
+ */
+public class CommandLineRunner {
+
+    private static final String COORDINATOR = "coordinator";
+    private static final String WORKER = "worker";
+    private static final String SERVE = "serve";
+    private static final String WARMUP = "warmup";
+    private static final String CONVERT = "convert";
+    private static final Set<String> COMMANDS = Set.of(COORDINATOR, WORKER, SERVE, WARMUP, CONVERT);
+    private static final String STANDARD_OUTPUT = "-";
+
+    private static final int DEFAULT_PORT = 7878;
+    private static final int DEFAULT_API_PORT = 8787;
+    private static final int DEFAULT_REMUX_JOBS = 8;
+    private static final Path DEFAULT_DATA_DIRECTORY = Path.of(System.getProperty("user.home"), ".joyful-converter");
+
+    public static boolean isCommand(String argument) {
+        return COMMANDS.contains(argument);
+    }
+
+    /**
+     * A conversion to standard output needs it for the video alone, so every log line goes to standard
+     * error instead. Has to run before anything else logs.
+     */
+    public static void redirectLogsIfWritingToStandardOutput(String[] args) {
+        if (args.length > 0 && CONVERT.equals(args[0])) {
+            for (int i = 1; i + 1 < args.length; i++) {
+                if ("--output".equals(args[i]) && STANDARD_OUTPUT.equals(args[i + 1])) {
+                    System.setOut(System.err);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Process exit code
+     */
+    public static int run(String[] args) {
+        try {
+            Map<String, String> options = parseOptions(args);
+            if (options.containsKey("native-memory-mb")) {
+                NativeMemoryGovernor.shared().setBudgetBytes(Long.parseLong(options.get("native-memory-mb")) * 1024 * 1024);
+            }
+            switch (args[0]) {
+                case COORDINATOR:
+                    return runCoordinator(options);
+                case WORKER:
+                    return runWorker(options);
+                case SERVE:
+                    return runJobApi(options);
+                case WARMUP:
+                    return runWarmup();
+                case CONVERT:
+                    return runConvert(options);
+                default:
+                    return usage();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return usage();
+        } catch (Exception e) {
+            System.err.println("Command failed: " + e.getMessage());
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * coordinator --input DIR|FILE --output DIR [--format mp4|mkv] [--reencode] [--port N]
+     */
+    private static int runCoordinator(Map<String, String> options) throws IOException, InterruptedException {
+        Path input = Path.of(required(options, "input")).toAbsolutePath();
+        Path output = Path.of(required(options, "output")).toAbsolutePath();
+        String format = options.getOrDefault("format", "mp4");
+        boolean tryStreamCopy = !options.containsKey("reencode");
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(DEFAULT_PORT)));
+
+        List<RemoteJob> jobs = new ArrayList<>();
+        for (Path file : findVideoFiles(input)) {
+            Path relative = Files.isDirectory(input) ? input.relativize(file) : file.getFileName();
+            String outputFileName = relative.toString().replaceAll("\\.[^./\\\\]*$", "") + "." + format;
+            jobs.add(new RemoteJob(String.valueOf(jobs.size() + 1), file.toString(),
+                    output.resolve(outputFileName).toString(), format, tryStreamCopy));
+        }
+        if (jobs.isEmpty()) {
+            System.out.println("No video files to convert found in " + input);
+            return 0;
+        }
+
+        try (ConversionCoordinator coordinator = new ConversionCoordinator(port, jobs)) {
+            coordinator.start();
+            StartupMetrics.markInteractive("Coordinator");
+            coordinator.awaitCompletion();
+            System.out.println("All jobs finished: " + coordinator.summary());
+            // Give polling workers the chance to receive their BYE
+            Thread.sleep(3_000);
+        }
+        return 0;
+    }
+
+    /**
+     * worker --connect HOST:PORT [--slots N]
+     */
+    private static int runWorker(Map<String, String> options) throws InterruptedException {
+        String[] address = options.getOrDefault("connect", "localhost:" + DEFAULT_PORT).split(":");
+        int slots = Integer.parseInt(options.getOrDefault("slots", "1"));
+        new ConversionWorker(address[0], address.length > 1 ? Integer.parseInt(address[1]) : DEFAULT_PORT, slots).run();
+        return 0;
+    }
+
+    /**
+     * serve [--port N] [--workers N] [--remux-jobs N] [--data-dir DIR]
+     * <p>
+     * --workers sets the number of parallel encodes, --remux-jobs how many more jobs may remux
+     * meanwhile. Remuxing mostly waits for I/O, so it is not limited by the encodes.
+     */
+    private static int runJobApi(Map<String, String> options) throws IOException, InterruptedException {
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(DEFAULT_API_PORT)));
+        int workers = Integer.parseInt(options.getOrDefault("workers", "2"));
+        int remuxJobs = Integer.parseInt(options.getOrDefault("remux-jobs", String.valueOf(DEFAULT_REMUX_JOBS)));
+        Path dataDirectory = Path.of(options.getOrDefault("data-dir", DEFAULT_DATA_DIRECTORY.toString()));
+
+        ConversionThreads conversionThreads = new ConversionThreads(Math.max(workers, remuxJobs), workers);
+        JobEngine jobEngine = new JobEngine(new ConversionService(conversionThreads),
+                new JobStore(dataDirectory.resolve("jobs.jsonl")), workers + remuxJobs);
+        jobEngine.start();
+        JobApiServer apiServer = new JobApiServer(jobEngine, port);
+        apiServer.start();
+        StartupMetrics.markInteractive("Job API");
+
+        CountDownLatch shutdown = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            apiServer.close();
+            try {
+                jobEngine.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close job engine: " + e.getMessage());
+            }
+            conversionThreads.close();
+            shutdown.countDown();
+        }));
+        shutdown.await();
+        return 0;
+    }
+
+    /**
+     * warmup
+     * <p>
+     * Loads FFmpeg once and exits. Extracts the native libraries into the JavaCPP cache ahead of the
+     * first real run, and serves as the training run for a CDS archive.
+     */
+    private static int runWarmup() {
+        return NativeWarmup.awaitLoaded() ? 0 : 1;
+    }
+
+    /**
+     * convert --input FILE|URL --output FILE|- [--format mp4|mkv] [--reencode] [--fragmented] [--start SECONDS] [--end SECONDS]
+     * <p>
+     * Converts a single file. With "--output -" the video is written to standard output as it is
+     * converted, e.g. to pipe it into a player or an upload, which implies --fragmented.
+     * --start and --end convert only that segment, only its packets are read.
+     * An http:// or https:// input is read with range requests, the server has to support them.
+     */
+    private static int runConvert(Map<String, String> options) throws Exception {
+        String input = required(options, "input");
+        String output = required(options, "output");
+        boolean toStandardOutput = STANDARD_OUTPUT.equals(output);
+        String format = options.getOrDefault("format",
+                !toStandardOutput && output.matches(".*\\.(?i:mkv)$") ? "mkv" : "mp4");
+        ConversionOptions conversionOptions = ConversionOptions.of(format, !options.containsKey("reencode"))
+                .withFragmented(options.containsKey("fragmented"))
+                .withTimeRange(new TimeRange(Double.parseDouble(options.getOrDefault("start", "0")),
+                        Double.parseDouble(options.getOrDefault("end", "0"))));
+
+        int[] lastReported = {-1};
+        ConversionResult result = new ConversionService().convert(input,
+                toStandardOutput ? ConversionService.STANDARD_OUTPUT : output, conversionOptions, new JobControl(), progress -> {
+                    int tenth = (int) (progress / 10);
+                    if (tenth > lastReported[0]) {
+                        lastReported[0] = tenth;
+                        System.err.printf("Progress: %.0f%%%n", progress);
+                    }
+                });
+        System.err.println("Finished: " + result.status());
+        return result.status() == ConversionResultStatus.FAILED ? 1 : 0;
+    }
+
+    private static List<Path> findVideoFiles(Path input) throws IOException {
+        List<File> files = ParallelFileWalker.listFiles(input).stream().map(Path::toFile).collect(toList());
+        return new ContainerSniffer().findConvertibleFiles(files).stream().map(File::toPath).collect(toList());
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing option --" + name);
+        }
+        return value;
+    }
+
+    private static int usage() {
+        System.err.println("Usage:");
+        System.err.println("  coordinator --input DIR|FILE --output DIR [--format mp4|mkv] [--reencode] [--port " + DEFAULT_PORT + "]");
+        System.err.println("  worker [--connect HOST:PORT] [--slots N]");
+        System.err.println("  serve [--port " + DEFAULT_API_PORT + "] [--workers N] [--remux-jobs N] [--data-dir DIR]");
+        System.err.println("  warmup");
+        System.err.println("  convert --input FILE|URL --output FILE|- [--format mp4|mkv] [--reencode] [--fragmented] [--start S] [--end S]");
+        System.err.println("Every command that converts accepts --native-memory-mb N to limit the memory of concurrent conversions.");
+        System.err.println("Without a command the desktop application is started.");
+        return 2;
+    }
+}
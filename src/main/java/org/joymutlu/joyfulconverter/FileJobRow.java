@@ -0,0 +1,164 @@
+package org.joymutlu.joyfulconverter;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.LongProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleLongProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import org.joymutlu.joyfulconverter.service.JobControl;
+import org.joymutlu.joyfulconverter.service.job.JobStatus;
+
+/**
+ * One file in the job table.
+ * <p>
+ * The thread converting the file never touches the JavaFX properties. It publishes immutable
+ * {@link State} snapshots through {@link FileJobTable#update}, and the table copies the latest
+ * snapshot into the properties on its next pulse, however many snapshots were published in between.
+ */
+public class FileJobRow {
+
+    /**
+     * @param progress   0.0-100.0
+     * @param etaMillis  Estimated time until the file is done, -1 if unknown
+     * @param startNanos {@link System#nanoTime()} when the conversion started, 0 before
+     */
+    public record State(
+            JobStatus status,
+            String strategy,
+            double framesPerSecond,
+            double progress,
+            long etaMillis,
+            long outputBytes,
+            long startNanos
+    ) {
+        static final State QUEUED = new State(JobStatus.QUEUED, "", 0, 0, -1, 0, 0);
+
+        public State started(boolean paused) {
+            return new State(paused ? JobStatus.PAUSED : JobStatus.RUNNING, strategy, framesPerSecond, 0, -1, 0, System.nanoTime());
+        }
+
+        public State withStrategy(String strategy) {
+            return new State(status, strategy, framesPerSecond, progress, etaMillis, outputBytes, startNanos);
+        }
+
+        public State withStatus(JobStatus status) {
+            return new State(status, strategy, framesPerSecond, progress, etaMillis, outputBytes, startNanos);
+        }
+
+        /**
+         * Also extrapolates the time left from the time spent so far.
+         */
+        public State withProgress(double progress) {
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            long eta = progress > 0 ? (long) (elapsedMillis * (100.0 - progress) / progress) : -1;
+            return new State(status, strategy, framesPerSecond, progress, eta, outputBytes, startNanos);
+        }
+
+        public State finished(JobStatus status, String strategy, double framesPerSecond, long outputBytes) {
+            return new State(status, strategy, framesPerSecond, status == JobStatus.SUCCEEDED ? 100 : progress, 0, outputBytes, startNanos);
+        }
+    }
+
+    private final File inputFile;
+    private final JobControl control = new JobControl();
+    // Read off the FX thread after the row was created, a stat per file is a round trip on a NAS
+    private volatile long inputBytes;
+
+    // Written by the converting thread
+    private final AtomicReference<State> latestState = new AtomicReference<>(State.QUEUED);
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    // FX thread only
+    private final ObjectProperty<JobStatus> status = new SimpleObjectProperty<>(JobStatus.QUEUED);
+    private final StringProperty strategy = new SimpleStringProperty("");
+    private final DoubleProperty framesPerSecond = new SimpleDoubleProperty();
+    private final DoubleProperty progress = new SimpleDoubleProperty();
+    private final LongProperty etaMillis = new SimpleLongProperty(-1);
+    private final LongProperty outputBytes = new SimpleLongProperty();
+    private final LongProperty inputBytesShown = new SimpleLongProperty();
+
+    public FileJobRow(File inputFile) {
+        this.inputFile = inputFile;
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    /**
+     * @return Size of the input file, 0 until the table measured it
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    void setInputBytes(long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    /**
+     * Pause/resume/cancel switch of this file. Cancelling it before the conversion starts skips the file.
+     */
+    public JobControl getControl() {
+        return control;
+    }
+
+    AtomicReference<State> latestState() {
+        return latestState;
+    }
+
+    AtomicBoolean dirty() {
+        return dirty;
+    }
+
+    void apply(State state) {
+        status.set(state.status());
+        strategy.set(state.strategy());
+        framesPerSecond.set(state.framesPerSecond());
+        progress.set(state.progress() / 100.0);
+        etaMillis.set(state.etaMillis());
+        outputBytes.set(state.outputBytes());
+        inputBytesShown.set(inputBytes);
+    }
+
+    public ReadOnlyObjectProperty<JobStatus> statusProperty() {
+        return status;
+    }
+
+    public ReadOnlyStringProperty strategyProperty() {
+        return strategy;
+    }
+
+    public ReadOnlyDoubleProperty framesPerSecondProperty() {
+        return framesPerSecond;
+    }
+
+    /**
+     * @return 0.0-1.0, as progress bars expect it
+     */
+    public ReadOnlyDoubleProperty progressProperty() {
+        return progress;
+    }
+
+    public ReadOnlyLongProperty etaMillisProperty() {
+        return etaMillis;
+    }
+
+    public ReadOnlyLongProperty outputBytesProperty() {
+        return outputBytes;
+    }
+
+    public ReadOnlyLongProperty inputBytesProperty() {
+        return inputBytesShown;
+    }
+}
@@ -0,0 +1,208 @@
+package org.joymutlu.joyfulconverter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.ProgressBarTableCell;
+import javafx.util.Duration;
+import org.joymutlu.joyfulconverter.service.job.JobStatus;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+/**
+ * Model of the job table: one {@link FileJobRow} per file of the batch (and per watched file).
+ * <p>
+ * Conversions report progress many times per second each, and a batch can hold thousands of files
+ * with dozens converting at once. Updates therefore never go to the FX thread one by one: a row whose
+ * state changed is queued once, and a fixed pulse applies the latest state of every queued row in one
+ * go. The UI work per pulse is bounded by the number of changed rows, not by the number of updates,
+ * and the virtualized {@link TableView} only renders the visible rows. The pulse only runs while
+ * rows are queued, an idle table costs nothing.
+ * <p>
+ * Input sizes are read on a background thread after the rows were added, so that thousands of files
+ * on a NAS do not block the FX thread with one round trip each.
+ */
+public class FileJobTable {
+
+    private static final Duration PULSE = Duration.millis(200);
+
+    private final TableView<FileJobRow> tableView;
+    private final ObservableList<FileJobRow> rows = FXCollections.observableArrayList();
+    private final Queue<FileJobRow> changedRows = new ConcurrentLinkedQueue<>();
+    private final Timeline pulse;
+    private final AtomicBoolean pulseRunning = new AtomicBoolean();
+
+    /**
+     * Must be called on the FX thread.
+     *
+     * @param onPulse Runs on the FX thread after every pulse, e.g. to refresh summary labels
+     */
+    public FileJobTable(TableView<FileJobRow> tableView, Runnable onPulse) {
+        this.tableView = tableView;
+        tableView.setItems(rows);
+        tableView.setPlaceholder(new Label("No conversions yet."));
+        tableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        tableView.getColumns().setAll(List.of(
+                column("File", 260, row -> new ReadOnlyStringWrapper(row.getInputFile().getName()), name -> name),
+                column("Status", 90, FileJobRow::statusProperty, FileJobTable::formatStatus),
+                column("Strategy", 160, FileJobRow::strategyProperty, strategy -> strategy),
+                column("Speed", 70, FileJobRow::framesPerSecondProperty, fps -> fps.doubleValue() > 0 ? String.format("%.0f fps", fps.doubleValue()) : ""),
+                progressColumn(),
+                column("ETA", 70, FileJobRow::etaMillisProperty, eta -> eta.longValue() > 0 ? MainController.formatDuration(eta.longValue()) : ""),
+                column("Size In", 80, FileJobRow::inputBytesProperty, FileJobTable::formatSize),
+                column("Size Out", 80, FileJobRow::outputBytesProperty, FileJobTable::formatSize)));
+
+        pulse = new Timeline(new KeyFrame(PULSE, event -> {
+            applyChanges();
+            onPulse.run();
+            stopPulseIfIdle();
+        }));
+        pulse.setCycleCount(Animation.INDEFINITE);
+    }
+
+    /**
+     * Replaces all rows with one queued row per file. Must be called on the FX thread.
+     *
+     * @return Row of every file, safe to read from any thread
+     */
+    public Map<File, FileJobRow> reset(List<File> files) {
+        changedRows.clear();
+        Map<File, FileJobRow> rowsByFile = new LinkedHashMap<>();
+        List<FileJobRow> newRows = new ArrayList<>(files.size());
+        for (File file : files) {
+            FileJobRow row = new FileJobRow(file);
+            rowsByFile.put(file, row);
+            newRows.add(row);
+        }
+        rows.setAll(newRows);
+        measureInputs(newRows);
+        return rowsByFile;
+    }
+
+    /**
+     * Appends a queued row for the file. Can be called from any thread, the row shows up with the next pulse.
+     */
+    public FileJobRow add(File file) {
+        FileJobRow row = new FileJobRow(file);
+        Platform.runLater(() -> rows.add(row));
+        measureInputs(List.of(row));
+        return row;
+    }
+
+    /**
+     * Changes the state of a row. Can be called from any thread as often as needed, the table shows the
+     * latest state with the next pulse.
+     */
+    public void update(FileJobRow row, UnaryOperator<FileJobRow.State> change) {
+        row.latestState().updateAndGet(change);
+        markChanged(row);
+    }
+
+    public List<FileJobRow> getSelectedRows() {
+        return List.copyOf(tableView.getSelectionModel().getSelectedItems());
+    }
+
+    private void markChanged(FileJobRow row) {
+        if (row.dirty().compareAndSet(false, true)) {
+            changedRows.add(row);
+            if (pulseRunning.compareAndSet(false, true)) {
+                Platform.runLater(pulse::play);
+            }
+        }
+    }
+
+    /**
+     * Runs on the FX thread after a pulse.
+     */
+    private void stopPulseIfIdle() {
+        if (!changedRows.isEmpty()) {
+            return;
+        }
+        pulseRunning.set(false);
+        pulse.stop();
+        // A row queued between the check and the stop found the pulse still running
+        if (!changedRows.isEmpty() && pulseRunning.compareAndSet(false, true)) {
+            pulse.play();
+        }
+    }
+
+    private void measureInputs(List<FileJobRow> newRows) {
+        ThreadPools.startIoThread("job-table-sizes", () -> {
+            for (FileJobRow row : newRows) {
+                row.setInputBytes(row.getInputFile().length());
+                markChanged(row);
+            }
+        });
+    }
+
+    private void applyChanges() {
+        FileJobRow row;
+        while ((row = changedRows.poll()) != null) {
+            // Cleared before reading, so an update racing with this pulse queues the row again
+            row.dirty().set(false);
+            row.apply(row.latestState().get());
+        }
+    }
+
+    private static <T> TableColumn<FileJobRow, T> column(String title, double width,
+                                                       Function<FileJobRow, ObservableValue<T>> property,
+                                                       Function<T, String> formatter) {
+        TableColumn<FileJobRow, T> column = new TableColumn<>(title);
+        column.setPrefWidth(width);
+        column.setCellValueFactory(data -> property.apply(data.getValue()));
+        column.setCellFactory(ignored -> new TableCell<>() {
+            @Override
+            protected void updateItem(T item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null ? null : formatter.apply(item));
+            }
+        });
+        return column;
+    }
+
+    private static TableColumn<FileJobRow, Double> progressColumn() {
+        TableColumn<FileJobRow, Double> column = new TableColumn<>("Progress");
+        column.setPrefWidth(110);
+        column.setCellValueFactory(data -> data.getValue().progressProperty().asObject());
+        column.setCellFactory(ProgressBarTableCell.forTableColumn());
+        return column;
+    }
+
+    private static String formatStatus(JobStatus status) {
+        return switch (status) {
+            case QUEUED -> "Queued";
+            case RUNNING -> "Converting";
+            case PAUSED -> "Paused";
+            case SUCCEEDED -> "Done";
+            case FAILED -> "Failed";
+            case CANCELLED -> "Skipped";
+        };
+    }
+
+    private static String formatSize(Number bytes) {
+        long value = bytes.longValue();
+        if (value <= 0) {
+            return "";
+        }
+        return value < 1024 * 1024 ? String.format("%d KB", (value + 1023) / 1024) : String.format("%.1f MB", value / (1024.0 * 1024.0));
+    }
+}
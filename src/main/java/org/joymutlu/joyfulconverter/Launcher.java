@@ -1,7 +1,15 @@
 package org.joymutlu.joyfulconverter;
 
+import org.joymutlu.joyfulconverter.service.NativeWarmup;
+
 public class Launcher {
     public static void main(String[] args) {
+        CommandLineRunner.redirectLogsIfWritingToStandardOutput(args);
+        // FFmpeg is only needed once a conversion starts, load it while the UI or the command comes up
+        NativeWarmup.startInBackground();
+        if (args.length > 0 && CommandLineRunner.isCommand(args[0])) {
+            System.exit(CommandLineRunner.run(args));
+        }
         Main.main(args);
     }
 }
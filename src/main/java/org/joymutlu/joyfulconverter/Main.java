@@ -2,12 +2,14 @@ package org.joymutlu.joyfulconverter;
 
 import java.util.Objects;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
 import org.joymutlu.joyfulconverter.util.AlertUtils;
+import org.joymutlu.joyfulconverter.util.StartupMetrics;
 
 public class Main extends Application {
     @Override
@@ -32,6 +34,8 @@ public class Main extends Application {
             }
 
             primaryStage.show();
+            // Runs after the first pulse, i.e. once the window has actually been rendered
+            Platform.runLater(() -> StartupMetrics.markInteractive("UI"));
         } catch (Exception e) {
             e.printStackTrace();
             AlertUtils.showError("Application Error", "Could not start the application: " + e.getMessage());
@@ -3,24 +3,33 @@ package org.joymutlu.joyfulconverter;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
 import java.util.ResourceBundle;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
@@ -33,20 +42,53 @@ import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.control.Spinner;
+import javafx.scene.control.SpinnerValueFactory;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
+import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import org.joymutlu.joyfulconverter.service.BatchReport;
+import org.joymutlu.joyfulconverter.service.CatalogSettings;
+import org.joymutlu.joyfulconverter.service.ConversionLane;
+import org.joymutlu.joyfulconverter.service.ConversionOptions;
+import org.joymutlu.joyfulconverter.service.ConversionResult;
 import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.joymutlu.joyfulconverter.service.ContainerSniffer;
 import org.joymutlu.joyfulconverter.service.ConversionService;
+import org.joymutlu.joyfulconverter.service.ConversionThreads;
+import org.joymutlu.joyfulconverter.service.DuplicateDetector;
+import org.joymutlu.joyfulconverter.service.DuplicateDetector.DeduplicationResult;
+import org.joymutlu.joyfulconverter.service.EncoderProfile;
+import org.joymutlu.joyfulconverter.service.VideoFilterSettings;
+import org.joymutlu.joyfulconverter.service.VideoFilterSettings.Deinterlacer;
+import org.joymutlu.joyfulconverter.service.InPlaceReplacement;
+import org.joymutlu.joyfulconverter.service.JobControl;
+import org.joymutlu.joyfulconverter.service.OutputVerifier;
+import org.joymutlu.joyfulconverter.service.OutputVerifier.VerificationResult;
+import org.joymutlu.joyfulconverter.service.WatchFolderService;
+import org.joymutlu.joyfulconverter.service.job.JobStatus;
+import org.joymutlu.joyfulconverter.service.rename.RenameEngine;
+import org.joymutlu.joyfulconverter.service.rename.RenamePlan;
 import org.joymutlu.joyfulconverter.util.AlertUtils;
+import org.joymutlu.joyfulconverter.util.ParallelFileWalker;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
 
 import static java.util.stream.Collectors.toList;
 
 public class MainController implements Initializable {
 
+    private static final int MAX_PARALLEL_JOBS = 32;
+    // Verification only demuxes, two threads keep up with the conversions
+    private static final int VERIFIER_THREADS = 2;
+    // Remuxing mostly waits for the disk or the network, so more files remux at once than encode
+    private static final int REMUX_THREADS = 16;
+
     // --- FXML Elements ---
     @FXML private VBox mainContainer;
     @FXML private TextField inputPathField;
@@ -55,27 +97,47 @@ public class MainController implements Initializable {
     @FXML private TextField outputDirectoryField;
     @FXML private Button browseOutputDirectoryButton;
     @FXML private ChoiceBox<String> outputFormatChoiceBox;
+    @FXML private ChoiceBox<EncoderProfile> encoderProfileChoiceBox;
+    @FXML private TextField deadlineField;
+    @FXML private ChoiceBox<Deinterlacer> deinterlaceChoiceBox;
+    @FXML private TextField outputSizeField;
+    @FXML private TextField outputFrameRateField;
+    @FXML private Spinner<Integer> parallelJobsSpinner;
     @FXML private CheckBox preserveQualityCheckbox; // Renamed in thought process, but FXML uses this ID
     @FXML private CheckBox replaceOriginalCheckbox;
+    @FXML private CheckBox inPlaceCheckbox;
+    @FXML private CheckBox catalogCheckbox;
+    @FXML private CheckBox fragmentedCheckbox;
     @FXML private Button shuffleButton;
     @FXML private Button normalizeButton;
     @FXML private Button convertButton;
+    @FXML private ToggleButton watchToggleButton;
 
     // Progress UI
     @FXML private GridPane progressGridPane;
     @FXML private ProgressBar overallProgressBar;
     @FXML private Label overallStatusLabel;
-    @FXML private Label currentDirectoryProgressLabel;
-    @FXML private Label currentDirectoryStatusLabel;
-    @FXML private Label currentFileProgressLabel;
-    @FXML private ProgressBar currentFileProgressBar;
-    @FXML private Label currentFileStatusLabel;
+    @FXML private HBox conversionControlBox;
+    @FXML private ToggleButton pauseToggleButton;
+    @FXML private Button skipFileButton;
+    @FXML private Button convertNowButton;
+    @FXML private Button cancelButton;
+    @FXML private TableView<FileJobRow> jobTableView;
 
     // --- Properties and Services ---
     private final StringProperty inputPathProperty = new SimpleStringProperty("");
     private final StringProperty outputDirectoryProperty = new SimpleStringProperty("");
     private ConversionService conversionService;
+    private DuplicateDetector duplicateDetector;
+    private ContainerSniffer containerSniffer;
+    private OutputVerifier outputVerifier;
     private Task<Void> conversionTask;
+    private WatchFolderService watchFolderService;
+    private ExecutorService watchConversionExecutor;
+    private FileJobTable jobTable;
+    private volatile BatchRun currentBatch;
+    private RenameEngine renameEngine;
+    private boolean renameInProgress;
 
     private static File lastSelectedInputDirectory = null;
     private static File lastSelectedOutputDirectory = null;
@@ -83,283 +145,37 @@ public class MainController implements Initializable {
     private File inputSourceFileOrDir;
     private File outputDirectory;
 
-    // Regular expression to match file name pattern: XXXX.YY. ZZZZ - NNN.fff
-    private static final Pattern VIDEO_NAME_PATTERN =
-            Pattern.compile("(\\d{4})\\.(\\d{2})\\. (\\d{4}) - (.+)\\.(.+)");
-
-    // Regular expression to match file name patterns
-    private static final Pattern PATTERN_1 = Pattern.compile("(\\d{4})\\.(\\d{2})\\. (\\d{4}) - (.+)\\.(.+)"); // XXXX.YY. ZZZZ - NNN.fff
-    private static final Pattern PATTERN_2 = Pattern.compile("(\\d{4}) год - (.+)\\.(.+)"); // ZZZZ год - NNN.fff
-    private static final Pattern PATTERN_3 = Pattern.compile("(?:\\[(\\d+)\\] )?(.+) \\((\\d{4})\\)\\.(.+)"); // [somenumber] NNN (ZZZZ).fff
-    private static final Pattern PATTERN_4 = Pattern.compile("(\\d+) - (.+)\\.(.+)"); // ZZZZ - NNN.fff
-    private static final Pattern DIRECTORY_PATTERN = Pattern.compile("(.+) год - (.+)"); // ZZZZ+ год - NNN
-
-    /**
-     * Reorganizes files from a directory structure into a single directory with a standardized naming pattern.
-     * - Files matching XXXX.YYY. ZZZZ - NNN.fff are kept as is
-     * - Files matching ZZZZ год - NNN.fff are renamed to standard pattern
-     * - Files matching [somenumber] NNN (ZZZZ).fff are renamed to standard pattern
-     * - Files in subdirectories are grouped together and moved to the main directory
-     * - Each file in the root directory gets its own unique group
-     *
-     * @param directoryPath Path to the directory containing video files and subdirectories
-     * @return true if reorganization was successful, false otherwise
-     */
-    public static boolean reorganizeVideos(String directoryPath) {
-        File rootDirectory = new File(directoryPath);
-
-        // Check if directory exists and is indeed a directory
-        if (!rootDirectory.exists() || !rootDirectory.isDirectory()) {
-            System.err.println("Error: The specified path is not a valid directory: " + directoryPath);
-            return false;
-        }
-
-        // Generate a new unique group number counter
-        int groupNumberCounter = 1;
-        Map<File, String> directoryToGroupNumber = new HashMap<>();
-
-        // First collect all subdirectories to assign group numbers
-        for (File file : rootDirectory.listFiles()) {
-            if (file.isDirectory()) {
-                directoryToGroupNumber.put(file, String.format("%04d", groupNumberCounter++));
-            }
-        }
-
-        // Process files in all subdirectories first
-        try {
-            // Process subdirectories first
-            for (File file : rootDirectory.listFiles()) {
-                if (file.isDirectory()) {
-                    processDirectory(file, rootDirectory, directoryToGroupNumber);
-                }
-            }
-
-            // Then process root files individually, each getting its own group
-            List<VideoFileInfo> rootFiles = new ArrayList<>();
-            for (File file : rootDirectory.listFiles()) {
-                if (file.isFile()) {
-                    VideoFileInfo fileInfo = extractVideoInfo(file, null);
-                    if (fileInfo != null) {
-                        rootFiles.add(fileInfo);
-                    }
-                }
-            }
-
-            // Process each root file separately, giving it its own group
-            for (VideoFileInfo fileInfo : rootFiles) {
-                // Skip files that are already in the correct format
-                if (PATTERN_1.matcher(fileInfo.getFile().getName()).matches()) {
-                    System.out.println("Skipping already correctly named file: " + fileInfo.getFile().getName());
-                    continue;
-                }
-
-                // Create a unique group for this file
-                String groupNumber = String.format("%04d", groupNumberCounter++);
-                String unitNumber = "01"; // Always 01 since it's the only file in its group
-
-                // Create the new file name according to the standard pattern
-                String newFileName = groupNumber + "." + unitNumber + ". " +
-                        fileInfo.getYear() + " - " +
-                        fileInfo.getName() + "." +
-                        fileInfo.getFormat();
-
-                File destinationFile = new File(rootDirectory, newFileName);
-
-                // Check if destination file already exists
-                if (destinationFile.exists()) {
-                    System.err.println("Error: Cannot rename " + fileInfo.getFile().getName() +
-                            " to " + newFileName +
-                            " because destination file already exists.");
-                    continue;
-                }
-
-                // Rename the file
-                try {
-                    Files.move(fileInfo.getFile().toPath(), destinationFile.toPath(),
-                            StandardCopyOption.REPLACE_EXISTING);
-                    System.out.println("Renamed: " + fileInfo.getFile().getName() +
-                            " -> " + newFileName);
-                } catch (Exception e) {
-                    System.err.println("Error renaming file " + fileInfo.getFile().getName() +
-                            ": " + e.getMessage());
-                }
-            }
-
-            System.out.println("File reorganization completed successfully.");
-            AlertUtils.showInformation("Normalization result", "Files reorganization and renaming finished successfully");
-
-            return true;
-        } catch (Exception e) {
-            System.err.println("Error during file reorganization: " + e.getMessage());
-            e.printStackTrace();
-            return false;
-        }
-    }
-
-    /**
-     * Process a directory and its files, renaming and moving files to the root directory
-     */
-    private static void processDirectory(File currentDir, File rootDir, Map<File, String> directoryToGroupNumber)
-            throws Exception {
-
-        File[] files = currentDir.listFiles();
-        if (files == null) {
-            return;
-        }
-
-        List<VideoFileInfo> videoFiles = new ArrayList<>();
-
-        // First collect all video files in this directory
-        for (File file : files) {
-            if (file.isFile()) {
-                VideoFileInfo fileInfo = extractVideoInfo(file, currentDir);
-                if (fileInfo != null) {
-                    videoFiles.add(fileInfo);
-                }
-            } else if (file.isDirectory()) {
-                // Process subdirectories recursively
-                processDirectory(file, rootDir, directoryToGroupNumber);
-            }
-        }
-
-        // If no video files in this directory, return
-        if (videoFiles.isEmpty()) {
-            return;
-        }
-
-        // Reverse them for saving order
-//        Collections.reverse(videoFiles);
-
-        // Get the group number for this directory
-        String groupNumber = directoryToGroupNumber.get(currentDir);
-
-        // Rename and move each file to the root directory, maintaining original order
-        // (we don't need to sort here, as we'll use the original order from the directory)
-        for (int i = 0; i < videoFiles.size(); i++) {
-            VideoFileInfo fileInfo = videoFiles.get(i);
-            String unitNumber = String.format("%02d", i + 1); // Start from 1 for each directory
-
-            // Create the new file name according to the standard pattern
-            String newFileName = groupNumber + "." + unitNumber + ". " +
-                    fileInfo.getYear() + " - " +
-                    fileInfo.getName() + "." +
-                    fileInfo.getFormat();
-
-            File destinationFile = new File(rootDir, newFileName);
-
-            // Check if destination file already exists
-            if (destinationFile.exists()) {
-                System.err.println("Error: Cannot rename " + fileInfo.getFile().getName() +
-                        " to " + newFileName +
-                        " because destination file already exists.");
-                continue;
-            }
-
-            // Move and rename the file
-            try {
-                Files.move(fileInfo.getFile().toPath(), destinationFile.toPath(),
-                        StandardCopyOption.REPLACE_EXISTING);
-                System.out.println("Moved and renamed: " + fileInfo.getFile().getPath() +
-                        " -> " + destinationFile.getPath());
-            } catch (Exception e) {
-                System.err.println("Error moving file " + fileInfo.getFile().getPath() + ": " + e.getMessage());
-            }
-        }
-    }
-
-    /**
-     * Extracts video information from a file based on its name pattern
-     */
-    private static VideoFileInfo extractVideoInfo(File file, File serialDir) {
-        String fileName = file.getName();
-        String fileSerialName = "";
-        String directoryYear = "";
-        if (serialDir != null) {
-            final Matcher matcher = DIRECTORY_PATTERN.matcher(serialDir.getName());
-            if (matcher.matches()) {
-                directoryYear = matcher.group(1);
-                fileSerialName = matcher.group(2) + ". ";
-            }
-        }
-
-        // Try pattern 1: XXXX.YYY. ZZZZ - NNN.fff
-        Matcher matcher1 = PATTERN_1.matcher(fileName);
-        if (matcher1.matches()) {
-            String year = matcher1.group(3);
-            String name = matcher1.group(4);
-            String format = matcher1.group(5);
-            return new VideoFileInfo(file, year, fileSerialName + name, format);
-        }
-
-        // Try pattern 2: ZZZZ год - NNN.fff
-        Matcher matcher2 = PATTERN_2.matcher(fileName);
-        if (matcher2.matches()) {
-            String year = matcher2.group(1);
-            String name = matcher2.group(2);
-            String format = matcher2.group(3);
-            return new VideoFileInfo(file, year, fileSerialName + name, format);
-        }
-
-        // Try pattern 3: [somenumber] NNN (ZZZZ).fff
-        Matcher matcher3 = PATTERN_3.matcher(fileName);
-        if (matcher3.matches()) {
-            String year = matcher3.group(3);
-            String name = matcher3.group(2);
-            String format = matcher3.group(4);
-            return new VideoFileInfo(file, year, fileSerialName + name, format);
-        }
-
-        // Try pattern 4: ZZZ - NNN.fff
-        Matcher matcher4 = PATTERN_4.matcher(fileName);
-        if (matcher4.matches()) {
-            String year = directoryYear;
-            String name = matcher4.group(2);
-            String format = matcher4.group(3);
-            return new VideoFileInfo(file, year, fileSerialName + name, format);
-        }
-
-        // If no pattern matches, return null
-        System.out.println("Skipping file with non-matching pattern: " + fileName);
-        return null;
-    }
-
-    /**
-     * Helper class to store video file information
-     */
-    private static class VideoFileInfo {
-        private File file;
-        private String year;
-        private String name;
-        private String format;
-
-        public VideoFileInfo(File file, String year, String name, String format) {
-            this.file = file;
-            this.year = year;
-            this.name = name;
-            this.format = format;
-        }
-
-        public File getFile() { return file; }
-        public String getYear() { return year; }
-        public String getName() { return name; }
-        public String getFormat() { return format; }
-    }
-
     private boolean isInputFolderMode = false; // To distinguish between single file and folder mode for UI logic
+    private boolean inPlaceMode; // Outputs are written next to their originals and renamed over them, see prepareIOPaths
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         conversionService = new ConversionService();
+        duplicateDetector = new DuplicateDetector();
+        containerSniffer = new ContainerSniffer();
+        outputVerifier = new OutputVerifier();
+        renameEngine = new RenameEngine();
 
         inputPathField.textProperty().bind(inputPathProperty);
         outputDirectoryField.textProperty().bind(outputDirectoryProperty);
 
         outputFormatChoiceBox.setItems(FXCollections.observableArrayList("mp4", "mkv"));
         outputFormatChoiceBox.setValue("mp4");
+        encoderProfileChoiceBox.setItems(FXCollections.observableArrayList(EncoderProfile.values()));
+        encoderProfileChoiceBox.setValue(EncoderProfile.ARCHIVAL);
+        encoderProfileChoiceBox.valueProperty().addListener((obs, ov, nv) -> updateUIState());
+        deinterlaceChoiceBox.setItems(FXCollections.observableArrayList(Deinterlacer.values()));
+        deinterlaceChoiceBox.setValue(Deinterlacer.NONE);
+        // Every conversion already runs multithreaded, a few files at a time keep the cores busy between frames
+        int defaultParallelJobs = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        parallelJobsSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, MAX_PARALLEL_JOBS, defaultParallelJobs));
+        jobTable = new FileJobTable(jobTableView, this::refreshBatchStatus);
 
         // Set "Preserve original quality" to be selected by default
         preserveQualityCheckbox.setSelected(true);
         replaceOriginalCheckbox.setSelected(false);
+        replaceOriginalCheckbox.selectedProperty().addListener((obs, ov, nv) -> updateUIState());
+        inPlaceCheckbox.selectedProperty().addListener((obs, ov, nv) -> updateUIState());
 
         setupButtonHandlers();
         setupInputPathListener();
@@ -374,13 +190,29 @@ public class MainController implements Initializable {
         shuffleButton.setOnAction(event -> shuffleContent());
         normalizeButton.setOnAction(event -> startRenaming());
         convertButton.setOnAction(event -> startConversion());
+        pauseToggleButton.setOnAction(event -> togglePause());
+        skipFileButton.setOnAction(event -> skipSelectedFiles());
+        convertNowButton.setOnAction(event -> convertFileNow());
+        cancelButton.setOnAction(event -> cancelConversion());
+        watchToggleButton.setOnAction(event -> {
+            if (watchToggleButton.isSelected()) {
+                startWatching();
+            } else {
+                stopWatching();
+            }
+        });
     }
 
     private void startRenaming() {
         if (prepareIOPaths() == PreparationStatus.FAILED) {
             return;
         }
-        reorganizeVideos(inputPathProperty.get());
+        if (!inputSourceFileOrDir.isDirectory()) {
+            AlertUtils.showError("Input Error", "Choose folder for normalization.");
+            return;
+        }
+        Path libraryRoot = inputSourceFileOrDir.toPath();
+        runRenamePlan("Normalization", libraryRoot, () -> renameEngine.planNormalization(libraryRoot));
     }
 
 
@@ -399,83 +231,53 @@ public class MainController implements Initializable {
                 AlertUtils.showError("Input Error", "Choose folder for shuffling.");
                 return;
         }
-        WalkResult walkResult = walkInputDirectory();
-        if (walkResult.isFailure()) {
-            AlertUtils.showError(walkResult.info().title(), walkResult.info().message());
-            return;
-        }
-        if (walkResult.status() == WalkResultStatus.INFO) {
-            AlertUtils.showInformation(walkResult.info().title(), walkResult.info().message());
-        }
-        final List<File> filesToProcess = List.copyOf(walkResult.filesForProcess());
-
-        List<String> groupNumbers = new ArrayList<>();
-        Map<String, List<File>> groupToFiles = new HashMap<>();
-
-        for (File file : filesToProcess) {
-            if (file.isFile()) {
-                String fileName = file.getName();
-                Matcher matcher = VIDEO_NAME_PATTERN.matcher(fileName);
-
-                if (matcher.matches()) {
-                    String groupNumber = matcher.group(1);
+        Path libraryRoot = inputSourceFileOrDir.toPath();
+        Random random = new Random(System.currentTimeMillis());
+        runRenamePlan("Shuffle", libraryRoot, () -> renameEngine.planShuffle(libraryRoot, random));
+    }
 
-                    if (!groupToFiles.containsKey(groupNumber)) {
-                        groupNumbers.add(groupNumber);
-                        groupToFiles.put(groupNumber, new ArrayList<>());
-                    }
+    /**
+     * Plans and executes a normalize or shuffle run off the FX thread. Nothing is renamed if the plan
+     * has conflicts, and a run that fails halfway is undone.
+     */
+    private void runRenamePlan(String operation, Path libraryRoot, Callable<RenamePlan> planner) {
+        renameInProgress = true;
+        updateUIState();
+        overallStatusLabel.setText(operation + " in progress...");
 
-                    groupToFiles.get(groupNumber).add(file);
-                } else {
-                    System.out.println("Skipping file with non-matching pattern: " + fileName);
+        Thread renameThread = new Thread(() -> {
+            String title = operation + " result";
+            try {
+                int restored = renameEngine.recoverInterrupted(libraryRoot);
+                if (restored > 0) {
+                    System.out.println("Restored " + restored + " files renamed by an interrupted run");
                 }
-            }
-        }
-        if (groupNumbers.isEmpty()) {
-            System.out.println("No files with the required pattern found in the directory.");
-            return;
-        }
-        List<String> shuffledGroupNumbers = new ArrayList<>(groupNumbers);
-        long seed = System.currentTimeMillis();
-        Collections.shuffle(shuffledGroupNumbers, new Random(seed));
-
-        Map<String, String> groupMapping = new HashMap<>();
-        for (int i = 0; i < groupNumbers.size(); i++) {
-            groupMapping.put(groupNumbers.get(i), shuffledGroupNumbers.get(i));
-        }
-
-        // Rename files
-        for (String originalGroup : groupNumbers) {
-            String newGroup = groupMapping.get(originalGroup);
-
-            for (File file : groupToFiles.get(originalGroup)) {
-                String fileName = file.getName();
-                Matcher matcher = VIDEO_NAME_PATTERN.matcher(fileName);
-
-                if (matcher.matches()) {
-                    String unitNumber = matcher.group(2);
-                    String year = matcher.group(3);
-                    String name = matcher.group(4);
-                    String format = matcher.group(5);
-
-                    String newFileName = newGroup + "." + unitNumber + ". " + year + " - " + name + "." + format;
-                    File newFile = new File(inputSourceFileOrDir, newFileName);
-
-                    // Check if destination file already exists (unlikely with proper shuffling but a good precaution)
-                    if (newFile.exists()) {
-                        System.out.println("Warning: Will not be renamed " + fileName + " to " + newFileName + " because destination is the same.");
-                        continue;
-                    }
-
-                    if (!file.renameTo(newFile)) {
-                        System.err.println("Error: Failed to rename " + fileName + " to " + newFileName);
-                    } else {
-                        System.out.println("Renamed: " + fileName + " -> " + newFileName);
-                    }
+                long startNanos = System.nanoTime();
+                RenamePlan plan = planner.call();
+                if (!plan.isExecutable()) {
+                    plan.conflicts().forEach(conflict -> System.err.println("Error: " + conflict));
+                    String shownConflicts = plan.conflicts().stream().limit(10).collect(Collectors.joining("\n"));
+                    Platform.runLater(() -> AlertUtils.showError(title, "Nothing was renamed, the plan has "
+                            + plan.conflicts().size() + " conflicts:\n" + shownConflicts));
+                    return;
                 }
+                int renamed = renameEngine.execute(plan);
+                String message = operation + " finished successfully: " + renamed + " files renamed in "
+                        + formatDuration((System.nanoTime() - startNanos) / 1_000_000)
+                        + (plan.skippedFiles() > 0 ? ", " + plan.skippedFiles() + " files with other names skipped" : "") + ".";
+                System.out.println(message);
+                Platform.runLater(() -> AlertUtils.showInformation(title, message));
+            } catch (Exception e) {
+                System.err.println(operation + " failed: " + e.getMessage());
+                Platform.runLater(() -> AlertUtils.showError(title, e.getMessage()));
+            } finally {
+                Platform.runLater(() -> {
+                    renameInProgress = false;
+                    updateUIState();
+                });
             }
-        }
-        AlertUtils.showInformation("Shuffle result", "Shuffling finished successfully");
+        }, "rename");
+        renameThread.start();
     }
 
     private void setupInputPathListener() {
@@ -500,28 +302,50 @@ public class MainController implements Initializable {
 
     private void updateUIState() {
         boolean hasInput = !inputPathProperty.get().isEmpty();
-        boolean hasOutput = !outputDirectoryProperty.get().isEmpty();
-        boolean isCurrentlyConverting = conversionTask != null && conversionTask.isRunning();
-
-        browseInputFileButton.setDisable(isCurrentlyConverting);
-        browseInputFolderButton.setDisable(isCurrentlyConverting);
-        browseOutputDirectoryButton.setDisable(isCurrentlyConverting);
-        shuffleButton.setDisable(!hasInput);
-        normalizeButton.setDisable(!hasInput);
-        convertButton.setDisable(isCurrentlyConverting || !hasInput || !hasOutput);
-        outputFormatChoiceBox.setDisable(isCurrentlyConverting);
-        preserveQualityCheckbox.setDisable(isCurrentlyConverting);
-        replaceOriginalCheckbox.setDisable(isCurrentlyConverting);
+        // In place, every output goes next to its original
+        boolean hasOutput = !outputDirectoryProperty.get().isEmpty() || isInPlaceSelected();
+        // A cancelled batch is still winding down until its state is reset
+        boolean isCurrentlyConverting = currentBatch != null || (conversionTask != null && conversionTask.isRunning());
+        boolean isWatching = watchFolderService != null && watchFolderService.isRunning();
+        boolean isBusy = isCurrentlyConverting || isWatching;
+
+        browseInputFileButton.setDisable(isBusy);
+        browseInputFolderButton.setDisable(isBusy);
+        browseOutputDirectoryButton.setDisable(isBusy);
+        shuffleButton.setDisable(!hasInput || isWatching || renameInProgress);
+        normalizeButton.setDisable(!hasInput || isWatching || renameInProgress);
+        convertButton.setDisable(isBusy || renameInProgress || !hasInput || !hasOutput);
+        watchToggleButton.setDisable(isCurrentlyConverting || renameInProgress || (!isWatching && (!hasInput || !hasOutput || !isInputFolderMode)));
+        watchToggleButton.setSelected(isWatching);
+        outputFormatChoiceBox.setDisable(isBusy);
+        encoderProfileChoiceBox.setDisable(isBusy);
+        // The deadline only steers the automatic profile choice
+        deadlineField.setDisable(isBusy || encoderProfileChoiceBox.getValue() != EncoderProfile.AUTO);
+        deinterlaceChoiceBox.setDisable(isBusy);
+        outputSizeField.setDisable(isBusy);
+        outputFrameRateField.setDisable(isBusy);
+        parallelJobsSpinner.setDisable(isBusy);
+        preserveQualityCheckbox.setDisable(isBusy);
+        replaceOriginalCheckbox.setDisable(isBusy);
+        inPlaceCheckbox.setDisable(isBusy || !replaceOriginalCheckbox.isSelected());
+        catalogCheckbox.setDisable(isBusy);
+        fragmentedCheckbox.setDisable(isBusy);
 
         if (progressGridPane != null) {
-            progressGridPane.setVisible(isCurrentlyConverting);
+            progressGridPane.setVisible(isBusy);
+        }
+        if (conversionControlBox != null) {
+            conversionControlBox.setVisible(isCurrentlyConverting);
         }
 
+        if (isWatching) {
+            return; // Status label is driven by the watched conversions
+        }
         if (!isCurrentlyConverting) {
             resetProgressLabels();
             if (overallStatusLabel != null) { // Ensure overallStatusLabel is not null
                 if (!hasInput) {
-                    overallStatusLabel.setText("Select an AVI file or folder to convert.");
+                    overallStatusLabel.setText("Select a video file or folder to convert.");
                 } else if (!hasOutput) {
                     overallStatusLabel.setText("Specify an output directory.");
                 } else {
@@ -539,32 +363,17 @@ public class MainController implements Initializable {
         if (overallProgressBar != null && !overallProgressBar.progressProperty().isBound()) {
             overallProgressBar.setProgress(0);
         }
-        if (currentFileProgressBar != null) {
-            currentFileProgressBar.setProgress(0);
-        }
-
         if (overallStatusLabel != null) overallStatusLabel.setText("Ready."); // Default text when resetting
-
-        // These labels are inside progressGridPane, their visibility is tied to it
-        // or explicitly managed at the start of conversion.
-        if (currentDirectoryProgressLabel != null) currentDirectoryProgressLabel.setVisible(false);
-        if (currentDirectoryStatusLabel != null) {
-            currentDirectoryStatusLabel.setText("");
-            currentDirectoryStatusLabel.setVisible(false);
-        }
-
-        if (currentFileProgressLabel != null) currentFileProgressLabel.setVisible(false);
-        if (currentFileStatusLabel != null) {
-            currentFileStatusLabel.setText("");
-            currentFileStatusLabel.setVisible(false);
-        }
     }
 
 
     private void browseForInputFile() {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select AVI Video File");
-        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("AVI Video Files", "*.avi"));
+        fileChooser.setTitle("Select Video File");
+        // The content decides how a file is converted, the extension filter only narrows the list
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("Video Files", "*.avi", "*.mpg", "*.mpeg", "*.vob", "*.wmv", "*.asf", "*.flv", "*.ts", "*.mts", "*.m2ts", "*.mp4", "*.mkv"),
+                new FileChooser.ExtensionFilter("All Files", "*.*"));
         if (lastSelectedInputDirectory != null && lastSelectedInputDirectory.exists()) {
             fileChooser.setInitialDirectory(lastSelectedInputDirectory);
         }
@@ -585,7 +394,7 @@ public class MainController implements Initializable {
 
     private void browseForInputFolder() {
         DirectoryChooser directoryChooser = new DirectoryChooser();
-        directoryChooser.setTitle("Select Input Folder with AVI Files");
+        directoryChooser.setTitle("Select Input Folder with Video Files");
         if (lastSelectedInputDirectory != null && lastSelectedInputDirectory.exists()) {
             directoryChooser.setInitialDirectory(lastSelectedInputDirectory);
         }
@@ -635,20 +444,32 @@ public class MainController implements Initializable {
         boolean tryStreamCopy = preserveQualityCheckbox.isSelected(); // This now means "try to stream copy"
         boolean shouldReplaceOriginal = replaceOriginalCheckbox.isSelected();
         String outputFormat = outputFormatChoiceBox.getValue();
+        EncoderProfile encoderProfile = encoderProfileChoiceBox.getValue();
+        long batchDeadlineMillis;
+        try {
+            batchDeadlineMillis = parseBatchDeadline(encoderProfile);
+        } catch (NumberFormatException e) {
+            AlertUtils.showError("Input Error", "The deadline must be a positive number of minutes.");
+            return;
+        }
+        VideoFilterSettings videoFilters = readVideoFilters();
+        if (videoFilters == null) {
+            return;
+        }
         if (prepareIOPaths() == PreparationStatus.FAILED) {
             return;
         }
 
         List<File> filesForProcess = new ArrayList<>();
         if (!isInputFolderMode && inputSourceFileOrDir.isFile()) {
-            if (inputSourceFileOrDir.getName().toLowerCase().endsWith(".avi")) {
+            if (containerSniffer.sniff(inputSourceFileOrDir.toPath()).isVideo()) {
                 filesForProcess.add(inputSourceFileOrDir);
             } else {
-                AlertUtils.showError("Input Error", "Selected file is not an AVI file.");
+                AlertUtils.showError("Input Error", "Selected file is not a supported video file.");
                 return;
             }
         } else if (isInputFolderMode && inputSourceFileOrDir.isDirectory()) {
-            WalkResult walkResult = walkInputDirectory(file -> file.isFile() && file.getName().toLowerCase().endsWith(".avi"));
+            WalkResult walkResult = walkInputDirectory(File::isFile);
             if (walkResult.isFailure()) {
                 AlertUtils.showError(walkResult.info().title(), walkResult.info().message());
                 return;
@@ -656,196 +477,813 @@ public class MainController implements Initializable {
             if (walkResult.status() == WalkResultStatus.INFO) {
                 AlertUtils.showInformation(walkResult.info().title(), walkResult.info().message());
             }
-            filesForProcess = walkResult.filesForProcess();
+            filesForProcess = containerSniffer.findConvertibleFiles(walkResult.filesForProcess());
+            if (filesForProcess.isEmpty()) {
+                AlertUtils.showInformation("No Files", "No video files to convert found in the selected folder and its subdirectories.");
+                return;
+            }
 
         } else {
             AlertUtils.showError("Input Error", "Invalid input source selection.");
             return;
         }
+        if (inPlaceMode) {
+            filesForProcess = excludeCollidingOriginals(filesForProcess);
+            if (filesForProcess == null) {
+                return;
+            }
+        }
+        if (!confirmOutputSpace(filesForProcess)) {
+            return;
+        }
 
-        final List<File> filesToProcess = List.copyOf(filesForProcess);
-        final int totalFiles = filesToProcess.size();
-
-        AtomicInteger processedFilesCount = new AtomicInteger(0);
-        AtomicInteger successfulConversions = new AtomicInteger(0);
-
-        AtomicInteger remuxMp4Count = new AtomicInteger(0);
-        AtomicInteger remuxMkvCount = new AtomicInteger(0);
-        AtomicInteger reEncodeCount = new AtomicInteger(0);
-        List<String> reEncodedFiles = new CopyOnWriteArrayList<>();
-        AtomicInteger failedConversions = new AtomicInteger(0);
+        ConversionOptions options = ConversionOptions.of(outputFormat, tryStreamCopy)
+                .withEncoderProfile(encoderProfile)
+                .withVideoFilters(videoFilters)
+                .withCatalog(catalogCheckbox.isSelected() ? CatalogSettings.all() : CatalogSettings.NONE)
+                .withFragmented(fragmentedCheckbox.isSelected());
+        BatchRun batch = new BatchRun(jobTable.reset(filesForProcess), options, batchDeadlineMillis,
+                shouldReplaceOriginal, parallelJobsSpinner.getValue());
+        currentBatch = batch;
+        pauseToggleButton.setSelected(false);
+        pauseToggleButton.setText("Pause");
 
         conversionTask = new Task<>() {
             @Override
             protected Void call() throws Exception {
-                Platform.runLater(() -> {
-                    if (progressGridPane != null) progressGridPane.setVisible(true);
-                    if (overallProgressBar != null) overallProgressBar.setVisible(true);
-                    if (overallStatusLabel != null) overallStatusLabel.setVisible(true);
-
-                    boolean showFolderSpecifics = totalFiles > 1 && isInputFolderMode;
-                    if(currentDirectoryProgressLabel != null) currentDirectoryProgressLabel.setVisible(showFolderSpecifics);
-                    if(currentDirectoryStatusLabel != null) currentDirectoryStatusLabel.setVisible(showFolderSpecifics);
-                    if(currentFileProgressLabel != null) currentFileProgressLabel.setVisible(true);
-                    if(currentFileProgressBar != null) currentFileProgressBar.setVisible(true);
-                    if(currentFileStatusLabel != null) currentFileStatusLabel.setVisible(true);
-
-                    overallStatusLabel.setText(String.format("Overall: Preparing... (0/%d)", totalFiles));
-                });
-
-                for (File inputFile : filesToProcess) {
+                try {
+                    batch.run((completed, total) -> updateProgress(completed, total));
+                } finally {
                     if (isCancelled()) {
-                        updateMessage("Conversion cancelled.");
-                        break;
+                        // Not from onCancelled, which fires at once, while the batch still winds down
+                        Platform.runLater(() -> handleConversionCancellation());
                     }
+                }
+                return null;
+            }
+        };
+
+        conversionTask.setOnSucceeded(event -> handleConversionCompletion(batch));
+        conversionTask.setOnFailed(event -> handleConversionFailure(conversionTask.getException()));
+
+        overallProgressBar.progressProperty().bind(conversionTask.progressProperty());
+        updateUIState();
+
+        Thread thread = new Thread(conversionTask);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Settings, counters and rows of one batch. A fixed pool of workers converts the files, every
+     * worker reports its file's state through the job table and its result to the batch report.
+     */
+    private final class BatchRun {
+
+        private final Map<File, FileJobRow> rows;
+        private final ConversionOptions options;
+        private final long deadlineMillis;
+        private final boolean shouldReplaceOriginal;
+        private final int parallelJobs;
+        private final int totalFiles;
+
+        private final AtomicInteger completedFiles = new AtomicInteger(0);
+        private final AtomicInteger successfulConversions = new AtomicInteger(0);
+        private final AtomicInteger remuxMp4Count = new AtomicInteger(0);
+        private final AtomicInteger remuxMkvCount = new AtomicInteger(0);
+        private final AtomicInteger remuxRepairedCount = new AtomicInteger(0);
+        private final AtomicInteger reEncodeCount = new AtomicInteger(0);
+        private final AtomicInteger failedConversions = new AtomicInteger(0);
+        private final AtomicInteger duplicateCount = new AtomicInteger(0);
+        private final AtomicInteger skippedFiles = new AtomicInteger(0);
+        private final AtomicInteger keptOriginals = new AtomicInteger(0);
+        private final AtomicLong savedEncodeNanos = new AtomicLong(0);
+        // Share of the deadline left for the remaining files, by size as an estimate of duration
+        private final AtomicLong remainingBytes = new AtomicLong(0);
+        private final Set<FileJobRow> activeRows = ConcurrentHashMap.newKeySet();
+        private final Queue<Future<?>> verifications = new ConcurrentLinkedQueue<>();
+        private ExecutorService verifiers;
+        // Remux and encode pools of this batch, the per-file threads only wait for them
+        private final ConversionThreads conversionThreads;
+        private final ConversionService batchConversionService;
+        // Files between start and finish. Files beyond the pools' threads wait for a free remux or encode thread
+        private final Semaphore filesInFlight;
+
+        private volatile DeduplicationResult deduplication;
+        private volatile BatchReport report;
+        private volatile boolean cancelled;
+        private boolean paused;
+
+        BatchRun(Map<File, FileJobRow> rows, ConversionOptions options, long deadlineMillis, boolean shouldReplaceOriginal, int parallelJobs) {
+            this.rows = rows;
+            this.options = options;
+            this.deadlineMillis = deadlineMillis;
+            this.shouldReplaceOriginal = shouldReplaceOriginal;
+            this.parallelJobs = parallelJobs;
+            this.totalFiles = rows.size();
+            this.conversionThreads = new ConversionThreads(Math.max(parallelJobs, REMUX_THREADS), parallelJobs);
+            this.batchConversionService = new ConversionService(conversionThreads);
+            this.filesInFlight = new Semaphore(conversionThreads.getRemuxThreads() + parallelJobs, true);
+        }
 
-                    int currentFileNum = processedFilesCount.incrementAndGet();
-                    String currentFileName = inputFile.getName();
+        /**
+         * Converts all files and returns once every worker is done. Every file gets its own (virtual,
+         * where available) thread, which waits for the remux and encode pools of the batch. At most
+         * "Parallel Jobs" files encode at the same time.
+         *
+         * @param progressSink Receives the number of finished files and the total after every file
+         */
+        void run(BiConsumer<Long, Long> progressSink) throws Exception {
+            List<File> files = List.copyOf(rows.keySet());
+            if (totalFiles > 1) {
+                deduplication = duplicateDetector.findDuplicates(files);
+                System.out.println("Duplicate files found: " + deduplication.duplicateCount());
+            } else {
+                deduplication = new DeduplicationResult(files, Map.of());
+            }
+            for (File uniqueFile : deduplication.uniqueFiles()) {
+                for (File duplicate : deduplication.duplicatesOf(uniqueFile)) {
+                    jobTable.update(rows.get(duplicate), state -> state.withStrategy("Duplicate of " + uniqueFile.getName()));
+                }
+            }
+            remainingBytes.set(deduplication.uniqueFiles().stream().mapToLong(File::length).sum());
+            report = openReport();
 
-                    Path relativeInputPath;
-                    if (isInputFolderMode) {
-                        relativeInputPath = inputSourceFileOrDir.toPath().relativize(inputFile.toPath());
-                    } else {
-                        relativeInputPath = Path.of(inputFile.getName());
+            ExecutorService workers = ThreadPools.newIoExecutor("batch-file-", filesInFlight.availablePermits());
+            verifiers = Executors.newFixedThreadPool(VERIFIER_THREADS, ThreadPools.daemonThreads("output-verifier-"));
+            try {
+                List<Future<?>> conversions = new ArrayList<>();
+                for (File inputFile : deduplication.uniqueFiles()) {
+                    conversions.add(workers.submit(() -> convertFile(inputFile, progressSink)));
+                }
+                for (Future<?> conversion : conversions) {
+                    conversion.get();
+                }
+                // All conversions are done, so no verification is added any more
+                for (Future<?> verification : verifications) {
+                    verification.get();
+                }
+            } catch (InterruptedException e) {
+                cancel(); // The task was cancelled
+                throw e;
+            } finally {
+                workers.shutdownNow();
+                // Cancelled conversions still remove their partial output and report their file
+                awaitTermination(workers);
+                conversionThreads.close();
+                verifiers.shutdownNow();
+                // A verifier may still read a temp output, or replace an original and report it
+                awaitTermination(verifiers);
+                if (inPlaceMode) {
+                    discardUnreplacedOutputs();
+                }
+                closeReport();
+            }
+        }
+
+        /**
+         * Waits for the tasks of a pool that was shut down, also if the batch thread was interrupted,
+         * which is restored afterwards.
+         */
+        private static void awaitTermination(ExecutorService pool) {
+            boolean interrupted = Thread.interrupted();
+            while (true) {
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Removes the temp outputs whose originals were not replaced, e.g. because the batch was
+         * cancelled before they were verified. Replaced originals have no temp output left.
+         */
+        private void discardUnreplacedOutputs() {
+            for (File file : rows.keySet()) {
+                InPlaceReplacement.discard(resolveOutputPath(file, options.outputFormat()));
+                InPlaceReplacement.discard(resolveOutputPath(file, "mkv"));
+            }
+        }
+
+        /**
+         * @return Report in the output folder, null if it cannot be created (the batch runs without one)
+         */
+        private BatchReport openReport() {
+            Path reportFile = outputDirectory.toPath().resolve("conversion-report-"
+                    + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".csv");
+            try {
+                return BatchReport.open(reportFile);
+            } catch (IOException e) {
+                System.err.println("Failed to create batch report " + reportFile + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void closeReport() {
+            if (report != null) {
+                try {
+                    report.close();
+                    System.out.println("Batch report written to " + report.getFile());
+                } catch (IOException e) {
+                    System.err.println("Batch report " + report.getFile() + " is incomplete: " + e.getMessage());
+                }
+            }
+        }
+
+        private void reportResult(File input, Path output, String outcome, String strategy, long millis,
+                                  double framesPerSecond, String failureReason) {
+            reportResult(input, output, outcome, strategy, millis, 0, framesPerSecond, failureReason);
+        }
+
+        private void reportResult(File input, Path output, String outcome, String strategy, long millis, long openMillis,
+                                  double framesPerSecond, String failureReason) {
+            if (report != null) {
+                report.add(new BatchReport.Entry(input.getAbsolutePath(), output != null ? output.toString() : null, outcome,
+                        strategy, input.length(), output != null ? sizeOf(output) : 0, millis, openMillis, framesPerSecond, failureReason));
+            }
+        }
+
+        /**
+         * Stops the running conversions (their partial output is removed) and keeps the queued ones from starting.
+         */
+        void cancel() {
+            cancelled = true;
+            rows.values().forEach(row -> row.getControl().cancel());
+        }
+
+        synchronized void setPaused(boolean paused) {
+            this.paused = paused;
+            for (FileJobRow row : activeRows) {
+                if (paused) {
+                    row.getControl().pause();
+                } else {
+                    row.getControl().resume();
+                }
+                jobTable.update(row, state -> state.status().isFinished() ? state : state.withStatus(paused ? JobStatus.PAUSED : JobStatus.RUNNING));
+            }
+        }
+
+        List<FileJobRow> getActiveRows() {
+            return List.copyOf(activeRows);
+        }
+
+        String describeProgress() {
+            if (deduplication == null) {
+                return "Overall: Checking for duplicate files...";
+            }
+            synchronized (this) {
+                if (paused) {
+                    return String.format("Overall: Paused. %d of %d files done.", completedFiles.get(), totalFiles);
+                }
+            }
+            return String.format("Overall: %d of %d files done, %d converting. Quality loss: %d. Failures: %d",
+                    completedFiles.get(), totalFiles, activeRows.size(), reEncodeCount.get(), failedConversions.get());
+        }
+
+        private synchronized void register(FileJobRow row) {
+            activeRows.add(row);
+            if (paused) {
+                row.getControl().pause();
+            }
+            jobTable.update(row, state -> state.started(paused));
+        }
+
+        private void convertFile(File inputFile, BiConsumer<Long, Long> progressSink) {
+            FileJobRow row = rows.get(inputFile);
+            List<File> duplicates = deduplication.duplicatesOf(inputFile);
+            JobControl control = row.getControl();
+            boolean started = false;
+            try {
+                filesInFlight.acquire();
+                started = true;
+            } catch (InterruptedException e) {
+                control.cancel(); // The batch is being torn down
+            }
+            try {
+                if (control.isCancelled()) {
+                    markSkipped(row, duplicates); // Skipped while queued, or the batch was cancelled
+                    return;
+                }
+                register(row);
+                convertRegisteredFile(row, duplicates);
+            } finally {
+                activeRows.remove(row);
+                if (started) {
+                    filesInFlight.release();
+                }
+                progressSink.accept((long) completedFiles.addAndGet(1 + duplicates.size()), (long) totalFiles);
+            }
+        }
+
+        private void convertRegisteredFile(FileJobRow row, List<File> duplicates) {
+            File inputFile = row.getInputFile();
+            String currentFileName = inputFile.getName();
+            Path outputPath = resolveOutputPath(inputFile, options.outputFormat());
+            try {
+                Files.createDirectories(outputPath.getParent());
+                long conversionStartNanos = System.nanoTime();
+                ConversionResult result = batchConversionService.convert(
+                        inputFile.getAbsolutePath(),
+                        outputPath.toString(),
+                        optionsFor(inputFile),
+                        row.getControl(),
+                        progress -> jobTable.update(row, state -> state.withProgress(progress)));
+                long conversionNanos = System.nanoTime() - conversionStartNanos;
+                ConversionResultStatus status = result.status();
+
+                switch (status) {
+                    case REMUX_MP4_OK -> remuxMp4Count.incrementAndGet();
+                    case REMUX_MKV_OK -> remuxMkvCount.incrementAndGet();
+                    case REMUX_MP4_REPAIRED, REMUX_MKV_REPAIRED -> remuxRepairedCount.incrementAndGet();
+                    case REENCODE_OK -> reEncodeCount.incrementAndGet();
+                    case FAILED -> failedConversions.incrementAndGet();
+                }
+                if (status != ConversionResultStatus.FAILED) {
+                    successfulConversions.incrementAndGet();
+                }
+                // An MP4 remux that fell back to MKV wrote next to the requested output
+                Path convertedOutput = status.isMkvRemux()
+                        ? resolveOutputPath(inputFile, "mkv")
+                        : outputPath;
+                String strategy = describeStrategy(result);
+                boolean failed = status == ConversionResultStatus.FAILED;
+                reportResult(inputFile, failed ? null : convertedOutput, status.name(), strategy, conversionNanos / 1_000_000,
+                        result.openMillis(), result.framesPerSecond(), failed ? Objects.requireNonNullElse(result.failureReason(), "conversion failed") : null);
+                boolean verifyAndReplace = shouldReplaceOriginal && status != ConversionResultStatus.FAILED;
+                jobTable.update(row, state -> state.finished(
+                        status == ConversionResultStatus.FAILED ? JobStatus.FAILED : JobStatus.SUCCEEDED,
+                        verifyAndReplace ? strategy + ", verifying" : strategy, result.framesPerSecond(), sizeOf(convertedOutput)));
+
+                List<File> originals = new ArrayList<>(List.of(inputFile));
+                if (!duplicates.isEmpty()) {
+                    originals.addAll(reuseOutputForDuplicates(status, convertedOutput, inputFile, duplicates));
+                    if (status != ConversionResultStatus.FAILED) {
+                        savedEncodeNanos.addAndGet(conversionNanos * duplicates.size());
                     }
+                }
+                if (verifyAndReplace) {
+                    // Runs next to the following conversions, the original stays until its output passed
+                    verifications.add(verifiers.submit(() -> replaceVerifiedOriginals(row, strategy, convertedOutput, status, originals)));
+                }
+            } catch (InterruptedException e) {
+                // Only this file was skipped (or the batch cancelled), its partial output is already gone
+                Thread.interrupted();
+                markSkipped(row, duplicates);
+                System.out.println("Skipped: " + currentFileName);
+            } catch (Exception e) {
+                failedConversions.addAndGet(1 + duplicates.size());
+                System.err.println("Failed to convert " + currentFileName + ": " + e.getMessage());
+                jobTable.update(row, state -> state.finished(JobStatus.FAILED, "Failed: " + e.getMessage(), 0, 0));
+                duplicates.forEach(duplicate -> jobTable.update(rows.get(duplicate), state -> state.withStatus(JobStatus.FAILED)));
+                reportResult(inputFile, null, ConversionResultStatus.FAILED.name(), "Failed", 0, 0, String.valueOf(e.getMessage()));
+                duplicates.forEach(duplicate -> reportResult(duplicate, null, ConversionResultStatus.FAILED.name(),
+                        "Duplicate of " + currentFileName, 0, 0, "original failed"));
+            }
+        }
 
-                    // Initially set output file with chosen format
-                    String outputFileName = relativeInputPath.toString().replaceAll("(?i)\\.avi$", "." + outputFormat);
-                    Path outputPath = Path.of(outputDirectoryProperty.get(), outputFileName);
-                    Files.createDirectories(outputPath.getParent());
-
-                    final String finalCurrentDirDisplay = inputFile.getParentFile().getCanonicalPath();
-                    Platform.runLater(() -> {
-                        overallStatusLabel.setText(String.format("Overall: Processing file %d of %d. Quality loss: %d. Failures: %d",
-                                currentFileNum, totalFiles, reEncodeCount.get(), failedConversions.get()));
-                        if (totalFiles > 1 && isInputFolderMode) {
-                            currentDirectoryStatusLabel.setText(finalCurrentDirDisplay);
-                            currentDirectoryProgressLabel.setVisible(true);
-                            currentDirectoryStatusLabel.setVisible(true);
-                        } else {
-                            if(currentDirectoryProgressLabel != null) currentDirectoryProgressLabel.setVisible(false);
-                            if(currentDirectoryStatusLabel != null) currentDirectoryStatusLabel.setVisible(false);
-                        }
-                        currentFileStatusLabel.setText("Converting: " + currentFileName);
-                        currentFileProgressBar.setProgress(0);
-                        currentFileProgressLabel.setVisible(true);
-                        currentFileProgressBar.setVisible(true);
-                        currentFileStatusLabel.setVisible(true);
-                    });
-                    updateProgress(currentFileNum -1, totalFiles);
-
-                    try {
-                        ConversionResultStatus status = conversionService.convertVideo(
-                                inputFile.getAbsolutePath(),
-                                outputPath.toString(),
-                                outputFormat,
-                                tryStreamCopy, // Pass the correct flag
-                                (progress) -> {
-                                    Platform.runLater(() -> {
-                                        currentFileProgressBar.setProgress(progress / 100.0);
-                                        currentFileStatusLabel.setText(String.format("Converting: %s (%.1f%%)", currentFileName, progress));
-                                    });
-                                    updateMessage(String.format("File %d/%d: %s - %.1f%%", currentFileNum, totalFiles, currentFileName, progress));
-                                }
-                        );
-
-                        // Check if the output file exists with the expected format
-                        File outputFile = outputPath.toFile();
-                        if (!outputFile.exists()) {
-                            // If expected output file doesn't exist, check if MKV fallback was created
-                            if ("mp4".equalsIgnoreCase(outputFormat)) {
-                                String mkvPath = outputPath.toString().replaceAll("(?i)\\.mp4$", ".mkv");
-                                File mkvFile = new File(mkvPath);
-                                if (mkvFile.exists()) {
-                                    // MKV fallback was created
-                                    Platform.runLater(() -> {
-                                        currentFileStatusLabel.setText("Completed with format change to MKV: " + mkvFile.getName());
-                                    });
-                                    System.out.println("Fallback to MKV was used for: " + inputFile.getName());
-                                }
-                            }
-                        }
+        /**
+         * Replaces the original and its duplicates by their outputs, but only if the output passes verification.
+         */
+        private void replaceVerifiedOriginals(FileJobRow row, String strategy, Path convertedOutput,
+                                              ConversionResultStatus status, List<File> originals) {
+            VerificationResult verification = outputVerifier.verify(row.getInputFile().toPath(), convertedOutput, status, options);
+            String extension = convertedOutput.getFileName().toString().replaceAll(".*\\.", "");
+            if (!verification.passed()) {
+                keptOriginals.addAndGet(originals.size());
+                System.err.println("Kept original " + row.getInputFile().getAbsolutePath() + ", its output did not verify: " + verification);
+                jobTable.update(row, state -> state.withStatus(JobStatus.FAILED).withStrategy(strategy + ", original kept: " + verification));
+                // Appended after the conversion's own line, the later line is the final state of the file
+                originals.forEach(original -> reportResult(original, convertedOutput, "ORIGINAL_KEPT", strategy, 0, 0, verification.toString()));
+                if (inPlaceMode) {
+                    originals.forEach(original -> InPlaceReplacement.discard(resolveOutputPath(original, extension)));
+                }
+                return;
+            }
+            jobTable.update(row, state -> state.withStrategy(strategy + ", verified"));
+            for (File original : originals) {
+                Path output = resolveOutputPath(original, extension);
+                try {
+                    Path replacement = replaceOriginal(original, output);
+                    if (inPlaceMode) {
+                        reportResult(original, replacement, "REPLACED_IN_PLACE", strategy, 0, 0, null);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to replace original file " + original.getAbsolutePath() + ": " + e.getMessage());
+                    Platform.runLater(() -> AlertUtils.showWarning("Replace Failed", "Could not replace original file: " + original.getName() + "\n" + e.getMessage()));
+                    if (inPlaceMode) {
+                        InPlaceReplacement.discard(output);
+                        reportResult(original, null, "ORIGINAL_KEPT", strategy, 0, 0, e.getMessage());
+                    }
+                }
+            }
+        }
 
-                        Platform.runLater(() -> currentFileStatusLabel.setText("Completed: " + currentFileName));
-
-                        switch (status) {
-                            case REMUX_MP4_OK:
-                                remuxMp4Count.incrementAndGet();
-                                successfulConversions.incrementAndGet();
-                                Platform.runLater(() -> currentFileStatusLabel.setText("Completed (remuxed to MP4): " + currentFileName));
-                                break;
-                            case REMUX_MKV_OK:
-                                remuxMkvCount.incrementAndGet();
-                                successfulConversions.incrementAndGet();
-                                Platform.runLater(() -> currentFileStatusLabel.setText("Completed (remuxed to MKV): " + currentFileName));
-                                break;
-                            case REENCODE_OK:
-                                reEncodeCount.incrementAndGet();
-                                successfulConversions.incrementAndGet();
-                                reEncodedFiles.add(inputFile.getName()); // Collect names
-                                Platform.runLater(() -> currentFileStatusLabel.setText("Completed (re-encoded): " + currentFileName));
-                                break;
-                            case FAILED:
-                                // This case might be handled by the catch block below,
-                                // but good to have for explicit failures returned by convertVideo
-                                failedConversions.incrementAndGet();
-                                Platform.runLater(() -> currentFileStatusLabel.setText("Failed: " + currentFileName));
-                                break;
-//                        successfulConversions.incrementAndGet();
-                        }
-                        if (shouldReplaceOriginal) {
-                            try {
-                                Files.deleteIfExists(inputFile.toPath());
-                                System.out.println("Replaced (deleted) original file: " + inputFile.getAbsolutePath());
-                            } catch (IOException e) {
-                                System.err.println("Failed to delete original file " + inputFile.getAbsolutePath() + ": " + e.getMessage());
-                                Platform.runLater(() -> AlertUtils.showWarning("Delete Failed", "Could not delete original file: " + inputFile.getName() + "\n" + e.getMessage()));
-                            }
+        private ConversionOptions optionsFor(File inputFile) {
+            long fileBytes = inputFile.length();
+            long bytesBefore = remainingBytes.getAndAdd(-fileBytes);
+            if (deadlineMillis <= 0) {
+                return options;
+            }
+            long now = System.currentTimeMillis();
+            // The workers share the time left, each of them has all of it for its files
+            double share = Math.min(1.0, (double) fileBytes * parallelJobs / Math.max(1, bytesBefore));
+            return options.withDeadline(now + (long) ((deadlineMillis - now) * share));
+        }
+
+        private void markSkipped(FileJobRow row, List<File> duplicates) {
+            if (!cancelled) {
+                skippedFiles.addAndGet(1 + duplicates.size());
+            }
+            jobTable.update(row, state -> state.withStatus(JobStatus.CANCELLED));
+            duplicates.forEach(duplicate -> jobTable.update(rows.get(duplicate), state -> state.withStatus(JobStatus.CANCELLED)));
+            reportResult(row.getInputFile(), null, "SKIPPED", cancelled ? "Batch cancelled" : "Skipped", 0, 0, null);
+            duplicates.forEach(duplicate -> reportResult(duplicate, null, "SKIPPED", "Duplicate of " + row.getInputFile().getName(), 0, 0, null));
+        }
+
+        /**
+         * Gives every duplicate of a converted file its own output next to where its conversion would have
+         * been written. The output is hard-linked, or copied where links are not supported.
+         *
+         * @return Duplicates that got an output
+         */
+        private List<File> reuseOutputForDuplicates(ConversionResultStatus status, Path convertedOutput, File original, List<File> duplicates) {
+            if (status == ConversionResultStatus.FAILED || !Files.exists(convertedOutput)) {
+                failedConversions.addAndGet(duplicates.size());
+                duplicates.forEach(duplicate -> jobTable.update(rows.get(duplicate), state -> state.withStatus(JobStatus.FAILED)));
+                duplicates.forEach(duplicate -> reportResult(duplicate, null, ConversionResultStatus.FAILED.name(),
+                        "Duplicate of " + original.getName(), 0, 0, "original failed"));
+                return List.of();
+            }
+            List<File> reused = new ArrayList<>();
+            String extension = convertedOutput.getFileName().toString().replaceAll(".*\\.", "");
+            for (File duplicate : duplicates) {
+                Path duplicateOutput = resolveOutputPath(duplicate, extension);
+                try {
+                    Files.createDirectories(duplicateOutput.getParent());
+                    linkOrCopy(convertedOutput, duplicateOutput);
+                    List<Path> sidecars = CatalogSettings.sidecarFiles(convertedOutput);
+                    List<Path> duplicateSidecars = CatalogSettings.sidecarFiles(duplicateOutput);
+                    for (int i = 0; i < sidecars.size(); i++) {
+                        if (Files.exists(sidecars.get(i))) {
+                            linkOrCopy(sidecars.get(i), duplicateSidecars.get(i));
                         }
-                    } catch (Exception e) {
-                        failedConversions.incrementAndGet();
-                        System.err.println("Failed to convert " + currentFileName + ": " + e.getMessage());
-                        final String exceptionMessage = e.getMessage(); // Effectively final
-                        Platform.runLater(() -> {
-                            currentFileStatusLabel.setText("Failed: " + currentFileName);
-                            overallStatusLabel.setText(String.format("Overall: Processing file %d of %d. Quality loss: %d. Failures: %d",
-                                    currentFileNum, totalFiles, reEncodeCount.get(), failedConversions.get()));
-                            AlertUtils.showWarning("Conversion Failed for File", "Could not convert: " + currentFileName + "\nReason: " + exceptionMessage);
-                        });
                     }
-                    updateProgress(currentFileNum, totalFiles);
+                    duplicateCount.incrementAndGet();
+                    successfulConversions.incrementAndGet();
+                    jobTable.update(rows.get(duplicate), state -> state.finished(JobStatus.SUCCEEDED,
+                            "Output of " + original.getName(), 0, sizeOf(duplicateOutput)));
+                    System.out.println("Duplicate " + duplicate.getAbsolutePath() + " reuses output " + convertedOutput);
+                    reportResult(duplicate, duplicateOutput, "DUPLICATE", "Output of " + original.getName(), 0, 0, null);
+                    reused.add(duplicate);
+                } catch (IOException e) {
+                    failedConversions.incrementAndGet();
+                    jobTable.update(rows.get(duplicate), state -> state.finished(JobStatus.FAILED, "Failed: " + e.getMessage(), 0, 0));
+                    reportResult(duplicate, null, ConversionResultStatus.FAILED.name(), "Output of " + original.getName(), 0, 0, e.getMessage());
+                    System.err.println("Failed to create output for duplicate " + duplicate.getAbsolutePath() + ": " + e.getMessage());
                 }
-                return null;
             }
+            return reused;
+        }
+    }
+
+    /**
+     * Replaces a verified original by its output. In place, the temp output next to the original is
+     * renamed over it; otherwise the original is deleted and the output stays in the output folder.
+     *
+     * @return Where the output is now
+     */
+    private Path replaceOriginal(File original, Path output) throws IOException {
+        if (inPlaceMode) {
+            Path replacement = InPlaceReplacement.commit(original.toPath(), output);
+            System.out.println("Replaced original file in place: " + original.getAbsolutePath() + " -> " + replacement.getFileName());
+            return replacement;
+        }
+        Files.deleteIfExists(original.toPath());
+        System.out.println("Replaced (deleted) original file: " + original.getAbsolutePath());
+        return output;
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String describeStrategy(ConversionResult result) {
+        return switch (result.status()) {
+            case REMUX_MP4_OK -> "Remux to MP4";
+            case REMUX_MKV_OK -> "Remux to MKV";
+            case REMUX_MP4_REPAIRED -> "Remux to MP4 (repaired)";
+            case REMUX_MKV_REPAIRED -> "Remux to MKV (repaired)";
+            case REENCODE_OK -> "Re-encode (" + result.encoderProfile() + ")";
+            case FAILED -> "Failed";
         };
+    }
 
-        conversionTask.setOnSucceeded(event -> handleConversionCompletion(
-                totalFiles,
-                successfulConversions.get(),
-                failedConversions.get(),
-                remuxMp4Count,
-                remuxMkvCount,
-                reEncodeCount,
-                reEncodedFiles));
-        conversionTask.setOnFailed(event -> handleConversionFailure(conversionTask.getException()));
-        conversionTask.setOnCancelled(event -> handleConversionCancellation());
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 
-        overallProgressBar.progressProperty().bind(conversionTask.progressProperty());
+    /**
+     * Runs on every pulse of the job table.
+     */
+    private void refreshBatchStatus() {
+        BatchRun batch = currentBatch;
+        if (batch != null && conversionTask != null && conversionTask.isRunning()) {
+            overallStatusLabel.setText(batch.describeProgress());
+        }
+    }
+
+    /**
+     * @return Deinterlace, size and frame rate settings, null after showing an error if they are invalid
+     */
+    private VideoFilterSettings readVideoFilters() {
+        try {
+            return VideoFilterSettings.parse(deinterlaceChoiceBox.getValue().name(), outputSizeField.getText(), outputFrameRateField.getText());
+        } catch (IllegalArgumentException e) {
+            AlertUtils.showError("Input Error", "Invalid video filter settings: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return Epoch millis by which the batch should be done, 0 if no deadline was entered
+     * @throws NumberFormatException if the deadline field does not hold a positive number of minutes
+     */
+    private long parseBatchDeadline(EncoderProfile encoderProfile) {
+        String minutes = deadlineField.getText() == null ? "" : deadlineField.getText().trim();
+        if (encoderProfile != EncoderProfile.AUTO || minutes.isEmpty()) {
+            return 0;
+        }
+        double deadlineMinutes = Double.parseDouble(minutes.replace(',', '.'));
+        if (!(deadlineMinutes > 0)) {
+            throw new NumberFormatException(minutes);
+        }
+        return System.currentTimeMillis() + (long) (deadlineMinutes * 60_000);
+    }
+
+    /**
+     * Mirrors the input file's location below the input folder into the output directory.
+     */
+    private Path resolveOutputPath(File inputFile, String outputFormat) {
+        if (inPlaceMode) {
+            return InPlaceReplacement.tempOutput(inputFile.toPath(), outputFormat);
+        }
+        Path relativeInputPath;
+        if (isInputFolderMode) {
+            relativeInputPath = inputSourceFileOrDir.toPath().relativize(inputFile.toPath());
+        } else {
+            relativeInputPath = Path.of(inputFile.getName());
+        }
+        return outputPathFor(relativeInputPath, inputFile, outputFormat);
+    }
+
+    /**
+     * @param relativeInputPath Where the output goes below the output directory
+     */
+    private Path outputPathFor(Path relativeInputPath, File inputFile, String outputFormat) {
+        String outputFileName = relativeInputPath.toString().replaceAll("\\.[^./\\\\]*$", "") + "." + outputFormat;
+        Path outputPath = outputDirectory.toPath().resolve(outputFileName);
+        if (outputPath.toAbsolutePath().equals(inputFile.toPath().toAbsolutePath())) {
+            // A mislabelled input already carries the output's name, never write over it
+            outputPath = outputPath.resolveSibling(outputPath.getFileName().toString().replaceAll("\\.[^.]*$", "") + ".converted." + outputFormat);
+        }
+        return outputPath;
+    }
+
+    /**
+     * Starts watch mode: every legacy video (AVI, MPEG-PS, MPEG-TS, ASF, FLV) that appears (or changes) below
+     * the input folder is converted as soon as it has been completely written. Conversions run one at a time in the background.
+     */
+    private void startWatching() {
+        if (prepareIOPaths() == PreparationStatus.FAILED) {
+            updateUIState();
+            return;
+        }
+        if (!isInputFolderMode || !inputSourceFileOrDir.isDirectory()) {
+            AlertUtils.showError("Input Error", "Choose folder for watching.");
+            updateUIState();
+            return;
+        }
+        VideoFilterSettings videoFilters = readVideoFilters();
+        if (videoFilters == null) {
+            updateUIState();
+            return;
+        }
+        boolean shouldReplaceOriginal = replaceOriginalCheckbox.isSelected();
+        ConversionOptions options = ConversionOptions.of(outputFormatChoiceBox.getValue(), preserveQualityCheckbox.isSelected())
+                .withEncoderProfile(encoderProfileChoiceBox.getValue())
+                .withVideoFilters(videoFilters)
+                .withCatalog(catalogCheckbox.isSelected() ? CatalogSettings.all() : CatalogSettings.NONE)
+                .withFragmented(fragmentedCheckbox.isSelected());
+        Path outputRoot = outputDirectory.toPath().toAbsolutePath().normalize();
+        // In place the outputs are temp files between the watched ones, otherwise they may live below the watched folder
+        Predicate<Path> isOutput = inPlaceMode
+                ? InPlaceReplacement::isTempOutput
+                : path -> path.toAbsolutePath().normalize().startsWith(outputRoot);
+
+        watchConversionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watch-conversion");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchFolderService = new WatchFolderService(
+                inputSourceFileOrDir.toPath(),
+                // Never feed outputs back. The content is checked once the file is complete, see convertWatchedFile
+                isOutput.negate(),
+                path -> watchConversionExecutor.execute(
+                        () -> convertWatchedFile(path.toFile(), options, shouldReplaceOriginal)));
+        WatchFolderService service = watchFolderService;
+        service.setFailureListener(e -> Platform.runLater(() -> {
+            if (watchFolderService == service) {
+                stopWatching(); // Resets the toggle
+                AlertUtils.showError("Watch Error", "Stopped watching folder: " + e.getMessage());
+            }
+        }));
+        try {
+            watchFolderService.start();
+        } catch (IOException e) {
+            stopWatching();
+            AlertUtils.showError("Watch Error", "Could not watch folder: " + e.getMessage());
+            return;
+        }
         updateUIState();
+        progressGridPane.setVisible(true);
+        overallStatusLabel.setText("Watching " + inputSourceFileOrDir.getAbsolutePath() + " for new video files...");
+    }
 
-        Thread thread = new Thread(conversionTask);
+    private void stopWatching() {
+        if (watchFolderService != null) {
+            watchFolderService.close();
+            watchFolderService = null;
+        }
+        if (watchConversionExecutor != null) {
+            // Drops the queued conversions and interrupts the running one, which cancels it and removes its partial output
+            watchConversionExecutor.shutdownNow();
+            watchConversionExecutor = null;
+        }
+        updateUIState();
+    }
+
+    private void convertWatchedFile(File inputFile, ConversionOptions options, boolean shouldReplaceOriginal) {
+        String fileName = inputFile.getName();
+        if (containerSniffer.findConvertibleFiles(List.of(inputFile)).isEmpty()) {
+            return;
+        }
+        Path outputPath = resolveOutputPath(inputFile, options.outputFormat());
+        File outputFile = outputPath.toFile();
+        if (outputFile.exists() && outputFile.lastModified() >= inputFile.lastModified()) {
+            System.out.println("Skipping watched file with up-to-date output: " + inputFile.getAbsolutePath());
+            return;
+        }
+        Platform.runLater(() -> overallStatusLabel.setText("Watching: converting " + fileName));
+        FileJobRow row = jobTable.add(inputFile);
+        jobTable.update(row, state -> state.started(false));
+        try {
+            Files.createDirectories(outputPath.getParent());
+            ConversionResult result = conversionService.convert(
+                    inputFile.getAbsolutePath(),
+                    outputPath.toString(),
+                    options,
+                    row.getControl(),
+                    progress -> jobTable.update(row, state -> state.withProgress(progress)));
+            ConversionResultStatus status = result.status();
+            jobTable.update(row, state -> state.finished(
+                    status == ConversionResultStatus.FAILED ? JobStatus.FAILED : JobStatus.SUCCEEDED,
+                    describeStrategy(result), result.framesPerSecond(), sizeOf(outputPath)));
+            if (status != ConversionResultStatus.FAILED && shouldReplaceOriginal) {
+                Path convertedOutput = status.isMkvRemux() ? resolveOutputPath(inputFile, "mkv") : outputPath;
+                VerificationResult verification = outputVerifier.verify(inputFile.toPath(), convertedOutput, status, options);
+                if (verification.passed()) {
+                    replaceOriginal(inputFile, convertedOutput);
+                } else {
+                    System.err.println("Kept original " + inputFile.getAbsolutePath() + ", its output did not verify: " + verification);
+                    jobTable.update(row, state -> state.withStatus(JobStatus.FAILED).withStrategy(describeStrategy(result) + ", original kept: " + verification));
+                    if (inPlaceMode) {
+                        InPlaceReplacement.discard(convertedOutput);
+                    }
+                }
+            }
+            Platform.runLater(() -> overallStatusLabel.setText(
+                    (status == ConversionResultStatus.FAILED ? "Watching: failed " : "Watching: converted ") + fileName));
+        } catch (InterruptedException e) {
+            // Watching was stopped
+            jobTable.update(row, state -> state.withStatus(JobStatus.CANCELLED));
+        } catch (Exception e) {
+            System.err.println("Failed to convert watched file " + fileName + ": " + e.getMessage());
+            jobTable.update(row, state -> state.finished(JobStatus.FAILED, "Failed: " + e.getMessage(), 0, 0));
+            Platform.runLater(() -> overallStatusLabel.setText("Watching: failed " + fileName));
+        }
+    }
+
+    /**
+     * Pauses the files being converted (they block at their next frame) and keeps the following files from starting.
+     */
+    private void togglePause() {
+        boolean paused = pauseToggleButton.isSelected();
+        pauseToggleButton.setText(paused ? "Resume" : "Pause");
+        BatchRun batch = currentBatch;
+        if (batch != null) {
+            batch.setPaused(paused);
+        }
+    }
+
+    /**
+     * Skips the files selected in the job table, or all files being converted if none is selected. The
+     * batch continues with the next file.
+     */
+    private void skipSelectedFiles() {
+        List<FileJobRow> selected = jobTable.getSelectedRows();
+        BatchRun batch = currentBatch;
+        List<FileJobRow> toSkip = selected.isEmpty() && batch != null ? batch.getActiveRows() : selected;
+        toSkip.forEach(row -> row.getControl().cancel());
+    }
+
+    /**
+     * Converts one more file while a batch runs, with the batch's settings but in the interactive lane:
+     * it starts right away, a batch conversion pauses at its next keyframe until it is done.
+     */
+    private void convertFileNow() {
+        BatchRun batch = currentBatch;
+        if (batch == null) {
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Convert File Now");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("Video Files", "*.avi", "*.mpg", "*.mpeg", "*.vob", "*.wmv", "*.asf", "*.flv", "*.ts", "*.mts", "*.m2ts", "*.mp4", "*.mkv"),
+                new FileChooser.ExtensionFilter("All Files", "*.*"));
+        if (lastSelectedInputDirectory != null && lastSelectedInputDirectory.exists()) {
+            fileChooser.setInitialDirectory(lastSelectedInputDirectory);
+        }
+        Stage stage = (Stage) mainContainer.getScene().getWindow();
+        File selectedFile = fileChooser.showOpenDialog(stage);
+        if (selectedFile == null) {
+            return;
+        }
+        if (!containerSniffer.sniff(selectedFile.toPath()).isVideo()) {
+            AlertUtils.showError("Input Error", "Selected file is not a supported video file.");
+            return;
+        }
+        ConversionOptions options = batch.options.withLane(ConversionLane.INTERACTIVE).withDeadline(0);
+        Path outputPath = outputPathFor(Path.of(selectedFile.getName()), selectedFile, options.outputFormat());
+        FileJobRow row = jobTable.add(selectedFile);
+        // A platform thread of its own: FFmpeg runs on it, and no batch pool thread has to become free first
+        Thread thread = new Thread(() -> convertInteractively(row, outputPath, options), "interactive-conversion");
         thread.setDaemon(true);
         thread.start();
     }
 
-    private WalkResult walkInputDirectory() {
-        return walkInputDirectory(file -> true);
+    private void convertInteractively(FileJobRow row, Path outputPath, ConversionOptions options) {
+        File inputFile = row.getInputFile();
+        jobTable.update(row, state -> state.started(false).withStrategy("Interactive"));
+        try {
+            Files.createDirectories(outputPath.getParent());
+            ConversionResult result = conversionService.convert(inputFile.getAbsolutePath(), outputPath.toString(), options,
+                    row.getControl(), progress -> jobTable.update(row, state -> state.withProgress(progress)));
+            boolean failed = result.status() == ConversionResultStatus.FAILED;
+            Path convertedOutput = result.status().isMkvRemux()
+                    ? outputPathFor(Path.of(inputFile.getName()), inputFile, "mkv")
+                    : outputPath;
+            System.out.println("Interactive conversion of " + inputFile + " finished: " + result.status());
+            jobTable.update(row, state -> state.finished(failed ? JobStatus.FAILED : JobStatus.SUCCEEDED,
+                    "Interactive: " + describeStrategy(result), result.framesPerSecond(), failed ? 0 : sizeOf(convertedOutput)));
+        } catch (InterruptedException e) {
+            jobTable.update(row, state -> state.withStatus(JobStatus.CANCELLED));
+        } catch (Exception e) {
+            System.err.println("Failed to convert " + inputFile.getName() + ": " + e.getMessage());
+            jobTable.update(row, state -> state.finished(JobStatus.FAILED, "Failed: " + e.getMessage(), 0, 0));
+        }
+    }
+
+    private void cancelConversion() {
+        if (conversionTask != null) {
+            conversionTask.cancel();
+        }
+        BatchRun batch = currentBatch;
+        if (batch != null) {
+            batch.cancel();
+        }
     }
 
     private WalkResult walkInputDirectory(Predicate<File> filter) {
         List<File> result;
-        try (Stream<Path> walk = Files.walk(inputSourceFileOrDir.toPath())) {
-            result = walk.map(Path::toFile)
+        try {
+            result = ParallelFileWalker.listFiles(inputSourceFileOrDir.toPath()).stream()
+                    .map(Path::toFile)
                     .filter(filter)
                     .collect(toList());
         } catch (IOException e) {
@@ -857,6 +1295,10 @@ public class MainController implements Initializable {
         return WalkResult.ofSuccess(result);
     }
 
+    private boolean isInPlaceSelected() {
+        return replaceOriginalCheckbox.isSelected() && inPlaceCheckbox.isSelected();
+    }
+
     private PreparationStatus prepareIOPaths() {
         String inputPathStr = inputPathProperty.get();
         String outputDirStr = outputDirectoryProperty.get();
@@ -868,6 +1310,12 @@ public class MainController implements Initializable {
             AlertUtils.showError("Input Error", "Input source not found: " + inputPathStr);
             return PreparationStatus.FAILED;
         }
+        inPlaceMode = isInPlaceSelected();
+        if (inPlaceMode) {
+            // Outputs go next to their originals, the input folder only gets the report
+            outputDirectory = inputSourceFileOrDir.isDirectory() ? inputSourceFileOrDir : inputSourceFileOrDir.getAbsoluteFile().getParentFile();
+            outputDirStr = outputDirectory.getPath();
+        }
         if (!outputDirectory.exists()) {
             try {
                 Files.createDirectories(outputDirectory.toPath());
@@ -883,24 +1331,98 @@ public class MainController implements Initializable {
         return PreparationStatus.SUCCESSFUL;
     }
 
-    private void handleConversionCompletion(
-            int total,
-            int succeeded,
-            int failed,
-            AtomicInteger remuxMp4Count,
-            AtomicInteger remuxMkvCount,
-            AtomicInteger reEncodeCount,
-            List<String> reEncodedFiles) {
+    /**
+     * In place, originals that would be committed to the same final name (e.g. "foo.avi" and "foo.mpg"
+     * next to each other) are left out of the batch. Every remaining row then produces final outputs no
+     * other row of the batch writes or commits.
+     *
+     * @return Files to convert, null if the user did not want to start without the colliding ones
+     */
+    private List<File> excludeCollidingOriginals(List<File> files) {
+        List<Path> collisions = InPlaceReplacement.findCollisions(files.stream().map(File::toPath).toList());
+        if (collisions.isEmpty()) {
+            return files;
+        }
+        Set<Path> excluded = Set.copyOf(collisions);
+        List<File> remaining = files.stream().filter(file -> !excluded.contains(file.toPath())).toList();
+        String names = collisions.stream().limit(10).map(Path::toString).collect(Collectors.joining("\n"));
+        if (collisions.size() > 10) {
+            names += "\n... and " + (collisions.size() - 10) + " more";
+        }
+        System.err.println("Not replacing in place, the outputs would share a name: " + collisions);
+        if (remaining.isEmpty()) {
+            AlertUtils.showError("Name Collision", "Every file shares its output name with another file in its folder:\n" + names);
+            return null;
+        }
+        boolean start = AlertUtils.showConfirmation("Name Collision", String.format(
+                "These %d files share their output name with another file in the same folder and are left as they are:%n%s%n%n"
+                        + "Convert the other %d files?", collisions.size(), names, remaining.size()));
+        return start ? remaining : null;
+    }
+
+    /**
+     * Warns before a batch whose outputs would not fit into the output folder's volume if every file
+     * was remuxed. Re-encodes are mostly smaller, and every file is checked again before it is written.
+     *
+     * @return Whether the batch should start
+     */
+    private boolean confirmOutputSpace(List<File> files) {
+        int parallelJobs = parallelJobsSpinner.getValue();
+        long neededBytes = inPlaceMode
+                // Every replaced original makes room, only the files converting at once need it (see BatchRun.filesInFlight)
+                ? files.stream().map(File::length).sorted(Comparator.reverseOrder())
+                        .limit(parallelJobs + Math.max(parallelJobs, REMUX_THREADS)).mapToLong(Long::longValue).sum()
+                : files.stream().mapToLong(File::length).sum();
+        long usableBytes;
+        try {
+            usableBytes = Files.getFileStore(outputDirectory.toPath()).getUsableSpace();
+        } catch (IOException e) {
+            System.err.println("Could not read the free space of " + outputDirectory + ": " + e.getMessage());
+            return true;
+        }
+        if (neededBytes <= usableBytes) {
+            return true;
+        }
+        return AlertUtils.showConfirmation("Low Disk Space", String.format(
+                "The outputs need about %.1f GB at once, the output folder has %.1f GB free.%n"
+                        + "Files whose output does not fit wait for the running ones and then fail without being written.%n%n"
+                        + "Start anyway?", neededBytes / 1e9, usableBytes / 1e9));
+    }
+
+    private void handleConversionCompletion(BatchRun batch) {
+        int total = batch.totalFiles;
+        int succeeded = batch.successfulConversions.get();
+        int failed = batch.failedConversions.get();
+        int skipped = batch.skippedFiles.get();
         StringBuilder stats = new StringBuilder();
-        stats.append(String.format("Batch conversion complete.\nSuccessfully converted: %d\nFailed: %d\nTotal: %d\n\n",
+        stats.append(String.format("Batch conversion complete.\nSuccessfully converted: %d\nFailed: %d\nTotal: %d\n",
                 succeeded, failed, total));
-        stats.append(String.format("- Remuxed to MP4 (no fallback): %d\n", remuxMp4Count.get()));
-        stats.append(String.format("- Remuxed to MKV (direct or fallback): %d\n", remuxMkvCount.get()));
-        stats.append(String.format("- Re-encoded (quality loss): %d\n", reEncodeCount.get()));
-
-        if (!reEncodedFiles.isEmpty()) {
-            stats.append("\nFiles re-encoded (potential quality loss):\n");
-            reEncodedFiles.forEach(name -> stats.append("  - ").append(name).append("\n"));
+        if (skipped > 0) {
+            stats.append(String.format("Skipped: %d\n", skipped));
+        }
+        stats.append("\n");
+        stats.append(String.format("- Remuxed to MP4 (no fallback): %d\n", batch.remuxMp4Count.get()));
+        stats.append(String.format("- Remuxed to MKV (direct or fallback): %d\n", batch.remuxMkvCount.get()));
+        stats.append(String.format("- Remuxed after repairing B-frames or timestamps: %d\n", batch.remuxRepairedCount.get()));
+        stats.append(String.format("- Re-encoded (quality loss): %d\n", batch.reEncodeCount.get()));
+        if (batch.duplicateCount.get() > 0) {
+            stats.append(String.format("- Duplicates reusing another file's output: %d (encode time saved: %s)\n",
+                    batch.duplicateCount.get(), formatDuration(batch.savedEncodeNanos.get() / 1_000_000)));
+        }
+        if (batch.keptOriginals.get() > 0) {
+            stats.append(String.format("- Originals kept because their output did not verify: %d\n", batch.keptOriginals.get()));
+        }
+        BatchReport report = batch.report;
+        if (report != null) {
+            BatchReport.Summary summary = report.getSummary();
+            stats.append(String.format("- Converted %d MB to %d MB in %s of conversion time\n",
+                    summary.inputBytes() / (1024 * 1024), summary.outputBytes() / (1024 * 1024), formatDuration(summary.millis())));
+            if (summary.slowestInput() != null) {
+                stats.append(String.format("- Slowest: %s (%s)\n", Path.of(summary.slowestInput()).getFileName(), formatDuration(summary.slowestMillis())));
+            }
+            stats.append("\nThe job table and the report list the result of every file:\n").append(report.getFile());
+        } else {
+            stats.append("\nThe job table lists the result of every file.");
         }
 
         String finalSummary = stats.toString();
@@ -911,9 +1433,13 @@ public class MainController implements Initializable {
             finalSummary = succeeded == 1 ? "Video successfully converted." : "Video conversion failed.";
         }
 
+        if (total == 1 && batch.keptOriginals.get() > 0) {
+            finalSummary += "\nThe original was kept, the output did not pass verification.";
+        }
+
         if (failed > 0 && succeeded == 0 && total > 0) {
             AlertUtils.showError("Conversion Result", finalSummary);
-        } else if (failed > 0) {
+        } else if (failed > 0 || batch.keptOriginals.get() > 0) {
             AlertUtils.showWarning("Conversion Result", finalSummary);
         } else if (total == 0) {
             AlertUtils.showInformation("Conversion Info", finalSummary);
@@ -924,6 +1450,11 @@ public class MainController implements Initializable {
         resetConversionState();
     }
 
+    static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
+    }
+
     private void handleConversionFailure(Throwable exception) {
         String errorMsg = "An unknown error occurred during the conversion process.";
         if (exception != null) {
@@ -946,6 +1477,7 @@ public class MainController implements Initializable {
                 overallProgressBar.progressProperty().unbind();
             }
             conversionTask = null;
+            currentBatch = null;
             // This will call resetProgressLabels and set text to "Ready for next conversion"
             // and potentially hide the progressGridPane.
             updateUIState();
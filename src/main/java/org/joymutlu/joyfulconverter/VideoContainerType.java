@@ -1,5 +1,43 @@
 package org.joymutlu.joyfulconverter;
 
+/**
+ * Container formats recognized from a file's first bytes.
+ */
 public enum VideoContainerType {
-    MP4, MKV, AVI
+    MP4("mov", false),
+    MKV("matroska", false),
+    AVI("avi", true),
+    MPEG_PS("mpeg", true),
+    /** Transport stream of DVB recordings (.ts) and AVCHD camcorders (.mts/.m2ts, with 4 byte timestamps) */
+    MPEG_TS("mpegts", true),
+    ASF("asf", true),
+    FLV("flv", true),
+    UNKNOWN(null, false);
+
+    private final String demuxerName;
+    private final boolean legacy;
+
+    VideoContainerType(String demuxerName, boolean legacy) {
+        this.demuxerName = demuxerName;
+        this.legacy = legacy;
+    }
+
+    /**
+     * @return FFmpeg input format name, lets the grabber skip probing every demuxer. Null for {@link #UNKNOWN}.
+     */
+    public String getDemuxerName() {
+        return demuxerName;
+    }
+
+    /**
+     * @return true for the old containers this tool converts away from, false for MP4 and MKV which are
+     * what it converts to
+     */
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public boolean isVideo() {
+        return this != UNKNOWN;
+    }
 }
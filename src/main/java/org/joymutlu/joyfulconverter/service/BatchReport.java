@@ -0,0 +1,218 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.joymutlu.joyfulconverter.util.JsonUtils;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+/**
+ * Report of a batch, written while the batch runs: one line per file result, appended to a CSV file
+ * or, for any other extension, a JSON Lines file.
+ * <p>
+ * Workers only add their result to a lock-free queue. A single writer thread drains it into a
+ * buffered file every {@value #FLUSH_MILLIS} ms and keeps the {@link Summary}, so memory does not
+ * grow with the number of files and a crash loses at most the last few lines.
+ */
+public final class BatchReport implements Closeable {
+
+    private static final long FLUSH_MILLIS = 500;
+    private static final List<String> COLUMNS = List.of("finishedAt", "input", "output", "outcome", "strategy",
+            "inputBytes", "outputBytes", "millis", "openMillis", "fps", "failureReason");
+
+    /**
+     * Result of one file.
+     *
+     * @param input           The original file
+     * @param output          The written file, null if there is none
+     * @param outcome         Conversion result status, or what else happened to the file (e.g. SKIPPED)
+     * @param strategy        How the file was converted, as shown in the job table
+     * @param inputBytes      Size of the original
+     * @param outputBytes     Size of the output, 0 if there is none
+     * @param millis          Time the conversion took, 0 if the file was not converted
+     * @param openMillis      Part of it spent opening and probing the input
+     * @param framesPerSecond Frames per second achieved, 0 if unknown
+     * @param failureReason   Why the file failed or its original was kept, null otherwise
+     */
+    public record Entry(String input, String output, String outcome, String strategy, long inputBytes,
+                        long outputBytes, long millis, long openMillis, double framesPerSecond, String failureReason) {
+
+        public boolean isFailure() {
+            return failureReason != null;
+        }
+    }
+
+    /**
+     * Totals over the entries written so far.
+     *
+     * @param entries      Number of entries
+     * @param failures     Entries with a failure reason
+     * @param inputBytes   Size of the converted originals
+     * @param outputBytes  Size of their outputs
+     * @param millis       Conversion time of all files, summed over parallel conversions
+     * @param slowestInput File whose conversion took longest, null if none was converted
+     * @param slowestMillis Time of the slowest conversion
+     */
+    public record Summary(long entries, long failures, long inputBytes, long outputBytes, long millis,
+                          String slowestInput, long slowestMillis) {
+
+        static final Summary EMPTY = new Summary(0, 0, 0, 0, 0, null, 0);
+
+        Summary add(Entry entry) {
+            boolean converted = entry.millis() > 0; // Skipped files, duplicates and later verdicts have no time
+            boolean slowest = entry.millis() > slowestMillis;
+            return new Summary(entries + 1, failures + (entry.isFailure() ? 1 : 0),
+                    inputBytes + (converted ? entry.inputBytes() : 0), outputBytes + (converted ? entry.outputBytes() : 0),
+                    millis + entry.millis(),
+                    slowest ? entry.input() : slowestInput, slowest ? entry.millis() : slowestMillis);
+        }
+    }
+
+    private final Path file;
+    private final boolean csv;
+    private final BufferedWriter writer;
+    private final Queue<Line> pending = new ConcurrentLinkedQueue<>();
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private volatile Summary summary = Summary.EMPTY;
+    private IOException writeError;
+
+    private BatchReport(Path file) throws IOException {
+        this.file = file;
+        this.csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        boolean header = csv && (!Files.exists(file) || Files.size(file) == 0);
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (header) {
+            writer.write(String.join(",", COLUMNS));
+            writer.newLine();
+        }
+        this.writerThread = ThreadPools.startIoThread("batch-report", this::writeLoop);
+    }
+
+    /**
+     * Opens the report and starts its writer thread. An existing file is appended to.
+     *
+     * @param file Report file, CSV if it ends with ".csv", JSON Lines otherwise
+     */
+    public static BatchReport open(Path file) throws IOException {
+        return new BatchReport(file);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Hands a result to the writer thread, never blocks. Entries added after {@link #close} are dropped.
+     */
+    public void add(Entry entry) {
+        if (!closed) {
+            pending.add(new Line(System.currentTimeMillis(), entry));
+        }
+    }
+
+    /**
+     * @return Totals of the entries written so far, complete once the report is closed
+     */
+    public Summary getSummary() {
+        return summary;
+    }
+
+    /**
+     * Writes the remaining entries and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void writeLoop() {
+        boolean last = false;
+        while (!last) {
+            last = closed; // Read before draining, so the last round gets everything added before close()
+            try {
+                Line line;
+                Summary current = summary;
+                while ((line = pending.poll()) != null) {
+                    List<Object> values = line.values();
+                    writer.write(csv ? toCsv(values) : JsonUtils.toJson(toMap(values)));
+                    writer.newLine();
+                    current = current.add(line.entry());
+                }
+                summary = current;
+                writer.flush();
+            } catch (IOException e) {
+                if (writeError == null) {
+                    System.err.println("Failed to write batch report " + file + ": " + e.getMessage());
+                    writeError = e;
+                }
+                pending.clear();
+            }
+            if (!last) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS));
+            }
+        }
+    }
+
+    private static Map<String, Object> toMap(List<Object> values) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < COLUMNS.size(); i++) {
+            if (values.get(i) != null) {
+                map.put(COLUMNS.get(i), values.get(i));
+            }
+        }
+        return map;
+    }
+
+    private static String toCsv(List<Object> values) {
+        StringBuilder line = new StringBuilder();
+        for (Object value : values) {
+            if (line.length() > 0) {
+                line.append(',');
+            }
+            String text = value == null ? "" : value.toString();
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                text = '"' + text.replace("\"", "\"\"") + '"';
+            }
+            line.append(text);
+        }
+        return line.toString();
+    }
+
+    /**
+     * An entry with the time it was added, the writer thread gets to it later.
+     */
+    private record Line(long finishedAtMillis, Entry entry) {
+
+        List<Object> values() {
+            return Arrays.asList(Instant.ofEpochMilli(finishedAtMillis).toString(), entry.input(), entry.output(),
+                    entry.outcome(), entry.strategy(), entry.inputBytes(), entry.outputBytes(), entry.millis(),
+                    entry.openMillis(), Math.round(entry.framesPerSecond() * 10) / 10.0, entry.failureReason());
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.joymutlu.joyfulconverter.util.JsonUtils;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_decoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_flush_buffers;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_to_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_frame;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_packet;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_BGR24;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_unref;
+import static org.bytedeco.ffmpeg.global.avutil.av_q2d;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_BICUBIC;
+import static org.bytedeco.ffmpeg.global.swscale.sws_freeContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_getCachedContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_scale;
+
+/**
+ * Collects the {@link CatalogSettings} artifacts of one conversion from the frames it handles anyway.
+ * <p>
+ * A re-encode decodes every frame, so only the few kept pictures are copied. A remux decodes nothing:
+ * the keyframe index comes from the flags of the copied packets, and only the keyframes picked for the
+ * poster and the contact sheet go through a decoder of their own. A re-encode chooses new keyframes,
+ * so its index is read from the output's packets once the output is written, which is a demux only.
+ * <p>
+ * Nothing is saved unless {@link #finish} is called, so a failed attempt leaves no artifacts behind.
+ */
+class CatalogExtractor implements AutoCloseable {
+
+    private static final double POSTER_POSITION = 0.1;
+    private static final int TILE_GAP = 4;
+
+    private final CatalogSettings settings;
+    private final Path outputPath;
+    private final double durationSeconds;
+    private final double displayAspectRatio;
+
+    private final double posterSeconds;
+    private BufferedImage poster;
+    private final double[] tileSeconds;
+    private final List<BufferedImage> tiles = new ArrayList<>();
+    private final List<Double> tileTimes = new ArrayList<>();
+
+    private final List<Double> keyframeTimes = new ArrayList<>();
+    private final List<Long> gopFrames = new ArrayList<>();
+    private long framesSinceKeyframe;
+    private double firstSeconds = Double.NaN;
+
+    // Remux only, created with the first picked keyframe
+    private AVCodecContext decoder;
+    private AVFrame decodedFrame;
+    private SwsContext scaler;
+    private boolean decoderFailed;
+    // Re-encode only
+    private Java2DFrameConverter converter;
+
+    /**
+     * @param outputPath         Output of the conversion attempt, the artifacts are saved next to it
+     * @param durationSeconds    Length of the video, 0 if unknown
+     * @param displayAspectRatio Width to height of the picture as displayed, i.e. with non-square pixels applied
+     */
+    CatalogExtractor(CatalogSettings settings, Path outputPath, double durationSeconds, double displayAspectRatio) {
+        this.settings = settings;
+        this.outputPath = outputPath;
+        this.durationSeconds = durationSeconds;
+        this.displayAspectRatio = displayAspectRatio > 0 ? displayAspectRatio : 4.0 / 3.0;
+        this.posterSeconds = durationSeconds * POSTER_POSITION;
+
+        int tileCount = settings.contactSheet() && durationSeconds > 0 ? settings.sheetColumns() * settings.sheetRows() : 0;
+        if (settings.contactSheet() && tileCount == 0) {
+            System.err.println("Unknown duration, no contact sheet for " + outputPath.getFileName());
+        }
+        this.tileSeconds = new double[tileCount];
+        for (int i = 0; i < tileCount; i++) {
+            tileSeconds[i] = durationSeconds * i / tileCount;
+        }
+    }
+
+    /**
+     * Remux: indexes a packet of the video stream and decodes it if it is a keyframe for the poster
+     * or the contact sheet. Must be called before the packet is handed to the recorder, which rewrites
+     * its timestamps.
+     */
+    void onVideoPacket(AVPacket packet, AVStream stream) {
+        if (packet.size() == 0) {
+            return; // Dropped frame in AVI
+        }
+        long timestamp = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+        if (timestamp == AV_NOPTS_VALUE) {
+            framesSinceKeyframe++;
+            return;
+        }
+        double seconds = relativeSeconds(timestamp * av_q2d(stream.time_base()));
+        boolean keyframe = (packet.flags() & AV_PKT_FLAG_KEY) != 0;
+        indexFrame(keyframe, seconds);
+        if (keyframe && wantsPicture(seconds) && !decoderFailed) {
+            try {
+                BufferedImage picture = decodeKeyframe(packet, stream.codecpar());
+                if (picture != null) {
+                    addPicture(picture, seconds);
+                }
+            } catch (IOException e) {
+                decoderFailed = true;
+                System.err.println("No catalog pictures for " + outputPath.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Re-encode: offers a decoded (and filtered) picture as it goes to the encoder.
+     */
+    void onPicture(Frame frame) {
+        if (frame.image == null) {
+            return;
+        }
+        double seconds = relativeSeconds(frame.timestamp / 1_000_000.0);
+        if (wantsPicture(seconds)) {
+            if (converter == null) {
+                converter = new Java2DFrameConverter();
+            }
+            addPicture(converter.getBufferedImage(frame), seconds);
+        }
+    }
+
+    /**
+     * Saves the artifacts. Problems are only logged, the conversion itself succeeded.
+     *
+     * @param indexOutput True to build the keyframe index from the written output instead of the copied packets
+     */
+    void finish(boolean indexOutput) {
+        List<Path> sidecars = CatalogSettings.sidecarFiles(outputPath);
+        try {
+            if (settings.keyframeIndex()) {
+                if (indexOutput) {
+                    indexOutputKeyframes();
+                }
+                writeKeyframeIndex(sidecars.get(2));
+            }
+            if (settings.posterFrame()) {
+                if (poster != null) {
+                    ImageIO.write(poster, "jpg", sidecars.get(0).toFile());
+                } else {
+                    System.err.println("No keyframe found for the poster of " + outputPath.getFileName());
+                }
+            }
+            if (!tiles.isEmpty()) {
+                ImageIO.write(contactSheet(), "jpg", sidecars.get(1).toFile());
+            }
+            System.out.println("Saved catalog of " + outputPath.getFileName());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not save catalog of " + outputPath.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (decoder != null) {
+            avcodec_free_context(decoder);
+            decoder = null;
+        }
+        if (decodedFrame != null) {
+            av_frame_free(decodedFrame);
+            decodedFrame = null;
+        }
+        if (scaler != null) {
+            sws_freeContext(scaler);
+            scaler = null;
+        }
+        if (converter != null) {
+            converter.close();
+            converter = null;
+        }
+    }
+
+    private double relativeSeconds(double seconds) {
+        if (Double.isNaN(firstSeconds)) {
+            firstSeconds = seconds;
+        }
+        return seconds - firstSeconds;
+    }
+
+    private void indexFrame(boolean keyframe, double seconds) {
+        if (keyframe) {
+            if (!keyframeTimes.isEmpty()) {
+                gopFrames.add(framesSinceKeyframe);
+            }
+            keyframeTimes.add(seconds);
+            framesSinceKeyframe = 0;
+        }
+        framesSinceKeyframe++;
+    }
+
+    private boolean wantsPicture(double seconds) {
+        return (settings.posterFrame() && poster == null && seconds >= posterSeconds)
+                || (tiles.size() < tileSeconds.length && seconds >= tileSeconds[tiles.size()]);
+    }
+
+    /**
+     * Keeps the picture for the poster and every contact sheet slot it is the first candidate for.
+     * The picture may be a reused buffer, so only copies are kept.
+     */
+    private void addPicture(BufferedImage picture, double seconds) {
+        if (settings.posterFrame() && poster == null && seconds >= posterSeconds) {
+            int height = picture.getHeight();
+            poster = resize(picture, (int) Math.round(height * displayAspectRatio), height);
+        }
+        BufferedImage tile = null;
+        while (tiles.size() < tileSeconds.length && seconds >= tileSeconds[tiles.size()]) {
+            if (tile == null) {
+                tile = resize(picture, settings.tileWidth(), (int) Math.round(settings.tileWidth() / displayAspectRatio));
+            }
+            tiles.add(tile);
+            tileTimes.add(seconds);
+        }
+    }
+
+    /**
+     * Decodes a single keyframe. Draining right after it gets the picture out of decoders with a
+     * reorder delay, flushing afterwards readies the decoder for the next keyframe.
+     */
+    private BufferedImage decodeKeyframe(AVPacket packet, AVCodecParameters parameters) throws IOException {
+        if (decoder == null) {
+            AVCodec codec = avcodec_find_decoder(parameters.codec_id());
+            if (codec == null) {
+                throw new IOException("no decoder for codec " + parameters.codec_id());
+            }
+            decoder = avcodec_alloc_context3(codec);
+            decodedFrame = av_frame_alloc();
+            if (avcodec_parameters_to_context(decoder, parameters) < 0
+                    || avcodec_open2(decoder, codec, (AVDictionary) null) < 0) {
+                throw new IOException("could not open decoder " + codec.name().getString());
+            }
+        }
+        try {
+            if (avcodec_send_packet(decoder, packet) < 0) {
+                return null; // A damaged keyframe, the next one may do
+            }
+            avcodec_send_packet(decoder, (AVPacket) null);
+            BufferedImage picture = null;
+            while (avcodec_receive_frame(decoder, decodedFrame) >= 0) {
+                if (picture == null) {
+                    picture = toImage(decodedFrame);
+                }
+                av_frame_unref(decodedFrame);
+            }
+            return picture;
+        } finally {
+            avcodec_flush_buffers(decoder);
+        }
+    }
+
+    private BufferedImage toImage(AVFrame frame) {
+        int width = frame.width();
+        int height = frame.height();
+        scaler = sws_getCachedContext(scaler, width, height, frame.format(), width, height, AV_PIX_FMT_BGR24,
+                SWS_BICUBIC, null, null, (DoublePointer) null);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        // sws_scale reads four planes and strides even for packed output
+        try (BytePointer pixels = new BytePointer((long) width * height * 3);
+             PointerPointer<BytePointer> destination = new PointerPointer<>(pixels, null, null, null);
+             IntPointer destinationStride = new IntPointer(width * 3, 0, 0, 0)) {
+            sws_scale(scaler, frame.data(), frame.linesize(), 0, height, destination, destinationStride);
+            pixels.get(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        }
+        return image;
+    }
+
+    private static BufferedImage resize(BufferedImage picture, int width, int height) {
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = resized.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(picture, 0, 0, width, height, null);
+        graphics.dispose();
+        return resized;
+    }
+
+    /**
+     * Tiles in reading order, each labelled with its time. A video with fewer keyframes than slots
+     * repeats pictures rather than leaving holes, slots after the last keyframe are left out.
+     */
+    private BufferedImage contactSheet() {
+        int tileWidth = tiles.get(0).getWidth();
+        int tileHeight = tiles.get(0).getHeight();
+        int columns = Math.min(settings.sheetColumns(), tiles.size());
+        int rows = (tiles.size() + columns - 1) / columns;
+        BufferedImage sheet = new BufferedImage(columns * (tileWidth + TILE_GAP) + TILE_GAP,
+                rows * (tileHeight + TILE_GAP) + TILE_GAP, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = sheet.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(10, tileHeight / 10)));
+        for (int i = 0; i < tiles.size(); i++) {
+            int x = TILE_GAP + (i % columns) * (tileWidth + TILE_GAP);
+            int y = TILE_GAP + (i / columns) * (tileHeight + TILE_GAP);
+            graphics.drawImage(tiles.get(i), x, y, null);
+            String label = formatTime(tileTimes.get(i));
+            int baseline = y + tileHeight - TILE_GAP;
+            graphics.setColor(Color.BLACK);
+            graphics.drawString(label, x + TILE_GAP + 1, baseline + 1);
+            graphics.setColor(Color.WHITE);
+            graphics.drawString(label, x + TILE_GAP, baseline);
+        }
+        graphics.dispose();
+        return sheet;
+    }
+
+    /**
+     * Replaces the index with the keyframes of the first video stream of the output.
+     */
+    private void indexOutputKeyframes() throws IOException {
+        keyframeTimes.clear();
+        gopFrames.clear();
+        framesSinceKeyframe = 0;
+        firstSeconds = Double.NaN;
+
+        AVFormatContext context = new AVFormatContext(null);
+        int result = avformat_open_input(context, outputPath.toString(), null, (AVDictionary) null);
+        if (result < 0) {
+            throw new IOException("could not open " + outputPath.getFileName() + " (error " + result + ")");
+        }
+        AVPacket packet = av_packet_alloc();
+        try {
+            int videoIndex = -1;
+            for (int i = 0; i < context.nb_streams() && videoIndex < 0; i++) {
+                if (context.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+                    videoIndex = i;
+                }
+            }
+            while (av_read_frame(context, packet) >= 0) {
+                if (packet.stream_index() == videoIndex && packet.size() > 0) {
+                    AVStream stream = context.streams(videoIndex);
+                    // Packets come in decode order, and a keyframe is never reordered past the frames before it
+                    long timestamp = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+                    indexFrame((packet.flags() & AV_PKT_FLAG_KEY) != 0, relativeSeconds(timestamp * av_q2d(stream.time_base())));
+                }
+                av_packet_unref(packet);
+            }
+        } finally {
+            av_packet_free(packet);
+            avformat_close_input(context);
+        }
+    }
+
+    private void writeKeyframeIndex(Path indexFile) throws IOException {
+        List<Map<String, Object>> keyframes = new ArrayList<>(keyframeTimes.size());
+        for (int i = 0; i < keyframeTimes.size(); i++) {
+            Map<String, Object> keyframe = new LinkedHashMap<>();
+            keyframe.put("time", Math.round(keyframeTimes.get(i) * 1000) / 1000.0);
+            keyframe.put("frames", i < gopFrames.size() ? gopFrames.get(i) : framesSinceKeyframe);
+            keyframes.add(keyframe);
+        }
+        Map<String, Object> index = new LinkedHashMap<>();
+        index.put("file", outputPath.getFileName().toString());
+        index.put("duration", Math.round(durationSeconds * 1000) / 1000.0);
+        index.put("keyframes", keyframes);
+        Files.writeString(indexFile, JsonUtils.toJson(index), StandardCharsets.UTF_8);
+    }
+
+    private static String formatTime(double seconds) {
+        long total = Math.round(seconds);
+        return String.format("%d:%02d:%02d", total / 3600, total / 60 % 60, total % 60);
+    }
+}
@@ -0,0 +1,57 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Catalog artifacts saved next to the output, taken from the frames flowing through the conversion
+ * instead of opening and decoding the file again.
+ *
+ * @param posterFrame   Save "name.poster.jpg", the first keyframe from a tenth into the video on
+ * @param contactSheet  Save "name.sheet.jpg", a grid of pictures spread evenly over the video
+ * @param keyframeIndex Save "name.keyframes.json", time and GOP length of every keyframe of the output
+ * @param sheetColumns  Pictures per row of the contact sheet
+ * @param sheetRows     Rows of the contact sheet
+ * @param tileWidth     Width of every contact sheet picture in pixels
+ */
+public record CatalogSettings(
+        boolean posterFrame,
+        boolean contactSheet,
+        boolean keyframeIndex,
+        int sheetColumns,
+        int sheetRows,
+        int tileWidth
+) {
+    public static final CatalogSettings NONE = new CatalogSettings(false, false, false, 4, 4, 240);
+
+    static final String POSTER_SUFFIX = ".poster.jpg";
+    static final String SHEET_SUFFIX = ".sheet.jpg";
+    static final String KEYFRAMES_SUFFIX = ".keyframes.json";
+
+    public CatalogSettings {
+        if (sheetColumns <= 0 || sheetRows <= 0 || tileWidth < 16) {
+            throw new IllegalArgumentException("Invalid contact sheet layout: " + sheetColumns + "x" + sheetRows + " tiles of " + tileWidth + " px");
+        }
+    }
+
+    /**
+     * Poster, contact sheet and keyframe index with the default layout.
+     */
+    public static CatalogSettings all() {
+        return new CatalogSettings(true, true, true, NONE.sheetColumns, NONE.sheetRows, NONE.tileWidth);
+    }
+
+    public boolean isEmpty() {
+        return !posterFrame && !contactSheet && !keyframeIndex;
+    }
+
+    /**
+     * @return Every file the catalog can save for the output, whether it exists or not
+     */
+    public static List<Path> sidecarFiles(Path output) {
+        String baseName = output.getFileName().toString().replaceAll("\\.[^.]*$", "");
+        return List.of(output.resolveSibling(baseName + POSTER_SUFFIX),
+                output.resolveSibling(baseName + SHEET_SUFFIX),
+                output.resolveSibling(baseName + KEYFRAMES_SUFFIX));
+    }
+}
@@ -0,0 +1,206 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.joymutlu.joyfulconverter.VideoContainerType;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+/**
+ * Identifies the container of a file from its magic bytes instead of its extension, so that
+ * mislabelled files are converted and files that are no video at all are skipped before FFmpeg
+ * ever opens them.
+ */
+public class ContainerSniffer {
+
+    static final int SNIFF_SIZE = 4 * 1024;
+    // Files read at once by findConvertibleFiles, enough to hide NAS latency without running out of file handles
+    private static final int MAX_PARALLEL_READS = 64;
+    // Direct buffers shared by all scanning threads. Virtual threads live for one file only, so a
+    // buffer per thread would be allocated for every file
+    private static final Queue<ByteBuffer> SNIFF_BUFFERS = new ConcurrentLinkedQueue<>();
+
+    private static final byte[] RIFF_MAGIC = "RIFF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AVI_FORM_TYPE = "AVI ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AVIX_FORM_TYPE = "AVIX".getBytes(StandardCharsets.US_ASCII); // OpenDML extension
+    private static final byte[] FLV_MAGIC = {'F', 'L', 'V', 0x01};
+    private static final byte[] ASF_HEADER_GUID = {
+            0x30, 0x26, (byte) 0xB2, 0x75, (byte) 0x8E, 0x66, (byte) 0xCF, 0x11,
+            (byte) 0xA6, (byte) 0xD9, 0x00, (byte) 0xAA, 0x00, 0x62, (byte) 0xCE, 0x6C};
+    private static final byte[] EBML_MAGIC = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3};
+    private static final byte[] MPEG_PACK_START = {0x00, 0x00, 0x01, (byte) 0xBA};
+    private static final byte TS_SYNC_BYTE = 0x47;
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int M2TS_PACKET_SIZE = 192; // A 4 byte timestamp before every TS packet
+    // One sync byte is a common first byte ('G'), several at the packet stride are not
+    private static final int TS_PACKETS_CHECKED = 5;
+    // ISO base media files start with ftyp, old QuickTime files directly with one of the other atoms
+    private static final List<String> MP4_FIRST_ATOMS = List.of("ftyp", "moov", "mdat", "free", "skip", "wide", "pnot");
+
+    /**
+     * @return The detected container, {@link VideoContainerType#UNKNOWN} if the file is not a known
+     * video container or cannot be read
+     */
+    public VideoContainerType sniff(Path file) {
+        ByteBuffer header = SNIFF_BUFFERS.poll();
+        if (header == null) {
+            header = ByteBuffer.allocateDirect(SNIFF_SIZE);
+        }
+        try {
+            header.clear();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (header.hasRemaining() && channel.read(header) > 0) {
+                    // Small files may need several reads to fill the sniff window
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read " + file + ": " + e.getMessage());
+                return VideoContainerType.UNKNOWN;
+            }
+            header.flip();
+            return classify(header);
+        } finally {
+            SNIFF_BUFFERS.offer(header);
+        }
+    }
+
+    /**
+     * Sniffs a local file, URL or channel. Only the first bytes of a URL are requested.
+     *
+     * @return The detected container, {@link VideoContainerType#UNKNOWN} if the source is not a known
+     * video container or cannot be read
+     */
+    public VideoContainerType sniff(MediaSource source) {
+        if (source.isLocalFile()) {
+            return sniff(source.getFile());
+        }
+        try {
+            return classify(ByteBuffer.wrap(source.readHeader(SNIFF_SIZE)));
+        } catch (IOException e) {
+            System.err.println("Could not read " + source + ": " + e.getMessage());
+            return VideoContainerType.UNKNOWN;
+        }
+    }
+
+    /**
+     * Sniffs the files in parallel and keeps the ones to convert: every legacy container, and MP4 or
+     * MKV content that is named .avi. Correctly named MP4 and MKV files are considered converted already.
+     * <p>
+     * Reading a header is almost pure waiting, on a NAS mostly for the round trip, so up to
+     * {@value #MAX_PARALLEL_READS} files are read at once, each on its own virtual thread where available.
+     *
+     * @return The files to convert, in the given order
+     * @throws CancellationException If the calling thread is interrupted
+     */
+    public List<File> findConvertibleFiles(List<File> files) {
+        ExecutorService readers = ThreadPools.newIoExecutor("container-sniffer-", MAX_PARALLEL_READS);
+        Semaphore reads = new Semaphore(MAX_PARALLEL_READS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(files.size());
+            for (File file : files) {
+                results.add(readers.submit(() -> {
+                    reads.acquire();
+                    try {
+                        return isConvertible(file);
+                    } finally {
+                        reads.release();
+                    }
+                }));
+            }
+            List<File> convertible = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                if (results.get(i).get()) {
+                    convertible.add(files.get(i));
+                }
+            }
+            return convertible;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while sniffing files");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sniffing failed", e.getCause());
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private boolean isConvertible(File file) {
+        VideoContainerType type = sniff(file.toPath());
+        boolean convertible = type.isLegacy() || (type.isVideo() && file.getName().toLowerCase().endsWith(".avi"));
+        if (!convertible && file.getName().toLowerCase().endsWith(".avi")) {
+            System.out.println("Skipping " + file + ": not a video file despite its .avi extension");
+        }
+        return convertible;
+    }
+
+    private static VideoContainerType classify(ByteBuffer header) {
+        if (startsWith(header, 0, RIFF_MAGIC) && (startsWith(header, 8, AVI_FORM_TYPE) || startsWith(header, 8, AVIX_FORM_TYPE))) {
+            return VideoContainerType.AVI;
+        }
+        if (startsWith(header, 0, EBML_MAGIC)) {
+            return VideoContainerType.MKV;
+        }
+        if (header.limit() >= 8 && MP4_FIRST_ATOMS.contains(ascii(header, 4, 4))) {
+            return VideoContainerType.MP4;
+        }
+        if (startsWith(header, 0, MPEG_PACK_START)) {
+            return VideoContainerType.MPEG_PS;
+        }
+        if (startsWith(header, 0, ASF_HEADER_GUID)) {
+            return VideoContainerType.ASF;
+        }
+        if (startsWith(header, 0, FLV_MAGIC)) {
+            return VideoContainerType.FLV;
+        }
+        if (hasTsSyncBytes(header, 0, TS_PACKET_SIZE) || hasTsSyncBytes(header, 4, M2TS_PACKET_SIZE)) {
+            return VideoContainerType.MPEG_TS;
+        }
+        return VideoContainerType.UNKNOWN;
+    }
+
+    /**
+     * @return Whether the header holds a sync byte at the start of each of the first transport stream
+     * packets, or of every packet of a file shorter than that
+     */
+    private static boolean hasTsSyncBytes(ByteBuffer header, int offset, int packetSize) {
+        if (header.limit() < offset + packetSize) {
+            return false;
+        }
+        for (int i = 0; i < TS_PACKETS_CHECKED && offset + i * packetSize < header.limit(); i++) {
+            if (header.get(offset + i * packetSize) != TS_SYNC_BYTE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(ByteBuffer header, int offset, byte[] magic) {
+        if (header.limit() < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header.get(offset + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer header, int offset, int length) {
+        byte[] bytes = new byte[length];
+        header.get(offset, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,111 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Seekable file input for {@code FFmpegFrameGrabber(InputStream)} that honours a {@link JobControl}
+ * on every read, see {@link ControlledInputStream}. FFmpeg seeks through {@link #reset()} followed by
+ * {@link #skip(long)}, both are plain position changes on the underlying channel.
+ */
+class ControlledFileInputStream extends ControlledInputStream {
+
+    private final String name;
+    private final SeekableByteChannel channel;
+    private final boolean ownsChannel;
+    private long mark;
+
+    ControlledFileInputStream(Path path, JobControl control) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.READ), path.toString(), true, control);
+    }
+
+    /**
+     * Reads a channel of the caller from its start, e.g. one of an object store client.
+     *
+     * @param ownsChannel Whether closing the stream closes the channel
+     */
+    ControlledFileInputStream(SeekableByteChannel channel, String name, boolean ownsChannel, JobControl control) throws IOException {
+        super(control);
+        this.name = name;
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        channel.position(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkpoint();
+        try {
+            return channel.read(ByteBuffer.wrap(buffer, offset, length));
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        checkpoint();
+        try {
+            long position = channel.position();
+            // FFmpeg asks for the stream size with skip(Long.MAX_VALUE), so clamp without overflowing
+            long target = position + Math.min(Math.max(0, count), Math.max(0, channel.size() - position));
+            channel.position(target);
+            return target - position;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, channel.size() - channel.position());
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        try {
+            mark = channel.position();
+        } catch (IOException e) {
+            mark = 0;
+        }
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        try {
+            channel.position(mark);
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+
+    /**
+     * FFmpeg uses this as the "file name", e.g. to guess the container from the extension.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
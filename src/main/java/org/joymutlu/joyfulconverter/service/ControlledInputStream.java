@@ -0,0 +1,76 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input for {@code FFmpegFrameGrabber(InputStream)} that honours a {@link JobControl} on every read.
+ * <p>
+ * JavaCV's read callback turns every exception into "end of file", so a cancel or a failed read
+ * would end the conversion as if the input were complete. The stream therefore remembers the first
+ * exception it threw, and the conversion asks for it with {@link #checkReadError()} once the grabber
+ * returned no more packets, before the output is finalized.
+ */
+abstract class ControlledInputStream extends InputStream {
+
+    private final JobControl control;
+    private volatile IOException readError;
+
+    ControlledInputStream(JobControl control) {
+        this.control = control;
+    }
+
+    /**
+     * @throws ReadFailedException    If a read failed since the last {@link #clearReadError()}
+     * @throws InterruptedIOException If a read was cancelled
+     */
+    void checkReadError() throws IOException {
+        IOException error = readError;
+        if (error instanceof InterruptedIOException) {
+            throw error;
+        }
+        if (error != null) {
+            throw new ReadFailedException("Reading " + this + " failed: " + error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Forgets the read error of the previous attempt, e.g. before the input is read again from the start.
+     */
+    void clearReadError() {
+        readError = null;
+    }
+
+    /**
+     * Remembers the first read error, call for every exception thrown to FFmpeg.
+     *
+     * @return The error, to throw it
+     */
+    protected IOException failed(IOException error) {
+        if (readError == null) {
+            readError = error;
+        }
+        return error;
+    }
+
+    protected void checkpoint() throws IOException {
+        try {
+            control.checkpoint();
+        } catch (InterruptedException e) {
+            throw failed(new InterruptedIOException(e.getMessage()));
+        }
+    }
+
+    /**
+     * The input could not be read to its end. Another strategy would read the same input again, so
+     * the conversion fails right away.
+     */
+    static class ReadFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ReadFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.joymutlu.joyfulconverter.service;
+
+/**
+ * Priority class of a conversion, see {@link PriorityLanes}.
+ */
+public enum ConversionLane {
+    /** Part of a batch, a watched folder or a queue: yields to interactive conversions */
+    BATCH,
+    /** Someone waits for this one file: starts right away and borrows the capacity of a batch conversion */
+    INTERACTIVE;
+
+    public boolean isInteractive() {
+        return this == INTERACTIVE;
+    }
+}
@@ -0,0 +1,124 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings for a single {@link ConversionService#convertVideo} call.
+ *
+ * @param outputFormat   The desired output format ("mp4", "mkv")
+ * @param tryStreamCopy  If true, remuxing is attempted before falling back to a re-encode
+ * @param encoderProfile x264 settings used when the file is re-encoded
+ * @param targetSpeed    For {@link EncoderProfile#AUTO}: minimum encode speed as a multiple of playback
+ *                       speed, 0 for the default of realtime
+ * @param deadlineMillis For {@link EncoderProfile#AUTO}: epoch millis by which the file should be done, 0 for none
+ * @param videoFilters   Deinterlacing, scaling and frame rate normalization. Only a re-encode can apply
+ *                       them, so remuxing is skipped unless they are {@link VideoFilterSettings#NONE}
+ * @param catalog        Poster, contact sheet and keyframe index to save next to the output
+ * @param fragmented     Write a fragmented MP4 (empty index first, then a self-contained fragment per
+ *                       keyframe) or an MKV with one second clusters. The output is playable while it is
+ *                       written, and up to the last complete fragment after a crash. Pipe outputs always are
+ * @param timeRange      Segment of the input to convert, {@link TimeRange#ALL} for the whole file
+ * @param lane           {@link ConversionLane#INTERACTIVE} for a file someone waits for, which preempts batch conversions
+ */
+public record ConversionOptions(
+        String outputFormat,
+        boolean tryStreamCopy,
+        EncoderProfile encoderProfile,
+        double targetSpeed,
+        long deadlineMillis,
+        VideoFilterSettings videoFilters,
+        CatalogSettings catalog,
+        boolean fragmented,
+        TimeRange timeRange,
+        ConversionLane lane
+) {
+    public static ConversionOptions of(String outputFormat, boolean tryStreamCopy) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, EncoderProfile.ARCHIVAL, 0, 0, VideoFilterSettings.NONE, CatalogSettings.NONE, false, TimeRange.ALL, ConversionLane.BATCH);
+    }
+
+    public ConversionOptions withEncoderProfile(EncoderProfile encoderProfile) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withTargetSpeed(double targetSpeed) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withDeadline(long deadlineMillis) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withVideoFilters(VideoFilterSettings videoFilters) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withCatalog(CatalogSettings catalog) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withFragmented(boolean fragmented) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withTimeRange(TimeRange timeRange) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    public ConversionOptions withLane(ConversionLane lane) {
+        return new ConversionOptions(outputFormat, tryStreamCopy, encoderProfile, targetSpeed, deadlineMillis, videoFilters, catalog, fragmented, timeRange, lane);
+    }
+
+    /**
+     * Reads options from a JSON-like map, missing entries fall back to MP4 with remux attempts and the
+     * archival profile for the whole file without video filters or catalog, in the batch lane.
+     *
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static ConversionOptions fromMap(Map<String, Object> values) {
+        return new ConversionOptions(
+                String.valueOf(values.getOrDefault("format", "mp4")).toLowerCase(),
+                !Boolean.FALSE.equals(values.get("tryStreamCopy")),
+                EncoderProfile.valueOf(String.valueOf(values.getOrDefault("encoderProfile", EncoderProfile.ARCHIVAL.name())).toUpperCase()),
+                values.get("targetSpeed") instanceof Number targetSpeed ? targetSpeed.doubleValue() : 0,
+                values.get("deadline") instanceof Number deadline ? deadline.longValue() : 0,
+                new VideoFilterSettings(
+                        VideoFilterSettings.Deinterlacer.valueOf(String.valueOf(values.getOrDefault("deinterlace", "none")).toUpperCase()),
+                        values.get("width") instanceof Number width ? width.intValue() : 0,
+                        values.get("height") instanceof Number height ? height.intValue() : 0,
+                        values.get("frameRate") instanceof Number frameRate ? frameRate.doubleValue() : 0),
+                new CatalogSettings(
+                        Boolean.TRUE.equals(values.get("poster")),
+                        Boolean.TRUE.equals(values.get("contactSheet")),
+                        Boolean.TRUE.equals(values.get("keyframeIndex")),
+                        CatalogSettings.NONE.sheetColumns(),
+                        CatalogSettings.NONE.sheetRows(),
+                        CatalogSettings.NONE.tileWidth()),
+                Boolean.TRUE.equals(values.get("fragmented")),
+                new TimeRange(
+                        values.get("start") instanceof Number start ? start.doubleValue() : 0,
+                        values.get("end") instanceof Number end ? end.doubleValue() : 0),
+                ConversionLane.valueOf(String.valueOf(values.getOrDefault("lane", ConversionLane.BATCH.name())).toUpperCase()));
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("format", outputFormat);
+        values.put("tryStreamCopy", tryStreamCopy);
+        values.put("encoderProfile", encoderProfile);
+        values.put("targetSpeed", targetSpeed);
+        values.put("deadline", deadlineMillis);
+        values.put("deinterlace", videoFilters.deinterlacer());
+        values.put("width", videoFilters.width());
+        values.put("height", videoFilters.height());
+        values.put("frameRate", videoFilters.frameRate());
+        values.put("poster", catalog.posterFrame());
+        values.put("contactSheet", catalog.contactSheet());
+        values.put("keyframeIndex", catalog.keyframeIndex());
+        values.put("fragmented", fragmented);
+        values.put("start", timeRange.startSeconds());
+        values.put("end", timeRange.endSeconds());
+        values.put("lane", lane);
+        return values;
+    }
+}
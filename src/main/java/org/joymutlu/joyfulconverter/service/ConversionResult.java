@@ -0,0 +1,26 @@
+package org.joymutlu.joyfulconverter.service;
+
+/**
+ * Outcome of a conversion.
+ *
+ * @param status          How the file was converted
+ * @param encoderProfile  Profile used for re-encoding, null if the file was remuxed or the conversion failed
+ * @param framesPerSecond Frames per second achieved by the conversion that produced the output, 0 if it failed
+ * @param failureReason   Why the last attempt failed, null if the conversion succeeded
+ * @param openMillis      Time the input took to open and probe, shared by all attempts
+ */
+public record ConversionResult(ConversionResultStatus status, EncoderProfile encoderProfile, double framesPerSecond,
+                               String failureReason, long openMillis) {
+
+    public ConversionResult(ConversionResultStatus status, EncoderProfile encoderProfile, double framesPerSecond) {
+        this(status, encoderProfile, framesPerSecond, null, 0);
+    }
+
+    public static ConversionResult failed(String reason) {
+        return new ConversionResult(ConversionResultStatus.FAILED, null, 0, reason, 0);
+    }
+
+    public ConversionResult withOpenMillis(long openMillis) {
+        return new ConversionResult(status, encoderProfile, framesPerSecond, failureReason, openMillis);
+    }
+}
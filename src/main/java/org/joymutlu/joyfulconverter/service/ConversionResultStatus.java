@@ -3,19 +3,32 @@ package org.joymutlu.joyfulconverter.service;
 public enum ConversionResultStatus {
     REMUX_MP4_OK,
     REMUX_MKV_OK, // Used for direct MKV or MP4->MKV fallback
+    REMUX_MP4_REPAIRED, // Remuxed after unpacking B-frames or fixing timestamps, see PacketRepair
+    REMUX_MKV_REPAIRED,
     REENCODE_OK,
     FAILED;
 
     public static ConversionResultStatus resolveRemuxResult(String format) {
+        return resolveRemuxResult(format, false);
+    }
+
+    public static ConversionResultStatus resolveRemuxResult(String format, boolean repaired) {
         if ("mp4".equalsIgnoreCase(format)) {
-            return ConversionResultStatus.REMUX_MP4_OK;
+            return repaired ? REMUX_MP4_REPAIRED : REMUX_MP4_OK;
         }
         if ("mkv".equalsIgnoreCase(format)) {
-            return ConversionResultStatus.REMUX_MKV_OK;
+            return repaired ? REMUX_MKV_REPAIRED : REMUX_MKV_OK;
         }
         return FAILED;
     }
 
+    /**
+     * @return Whether the output is an MKV remux, which an MP4 request gets as fallback
+     */
+    public boolean isMkvRemux() {
+        return this == REMUX_MKV_OK || this == REMUX_MKV_REPAIRED;
+    }
+
     public static ConversionResultStatus resolveResult(String outputFormat) {
         return REENCODE_OK;
     }
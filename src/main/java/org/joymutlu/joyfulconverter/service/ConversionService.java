@@ -1,16 +1,61 @@
 package org.joymutlu.joyfulconverter.service;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
 import java.util.function.Consumer;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
+import org.bytedeco.ffmpeg.avformat.AVStream;
 import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
 import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameFilter;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import org.joymutlu.joyfulconverter.VideoContainerType;
+import org.joymutlu.joyfulconverter.util.StartupMetrics;
 
 public class ConversionService {
 
+    /**
+     * Output path that writes to the standard output of the process through FFmpeg's pipe protocol.
+     * Nothing else may write to {@code System.out} while such a conversion runs.
+     */
+    public static final String STANDARD_OUTPUT = "pipe:1";
+
+    /** Fragment length of fragmented re-encodes: the encoder places a keyframe every this many seconds. */
+    private static final double FRAGMENT_SECONDS = 2.0;
+
+    private final ContainerSniffer containerSniffer = new ContainerSniffer();
+    private final EncoderProfileSelector encoderProfileSelector = new EncoderProfileSelector();
+    private final ConversionThreads threads;
+    private final NativeMemoryGovernor nativeMemory = NativeMemoryGovernor.shared();
+    private final DiskSpaceGuard diskSpace = DiskSpaceGuard.shared();
+    private final StrategyCache strategyCache = StrategyCache.shared();
+    private final PriorityLanes lanes = PriorityLanes.shared();
+
+    /**
+     * Converts on the calling thread.
+     */
+    public ConversionService() {
+        this(null);
+    }
+
+    /**
+     * Remuxes and encodes on the pools of the given threads, the calling thread only waits. Calling
+     * threads can therefore be virtual threads, and many of them cannot start more encodes than the
+     * encode pool has threads.
+     *
+     * @param threads Pools to convert on, null to convert on the calling thread
+     */
+    public ConversionService(ConversionThreads threads) {
+        this.threads = threads;
+    }
+
     /**
      * Converts a video file to the specified output format.
      *
@@ -23,42 +68,153 @@ public class ConversionService {
      * @throws Exception If conversion fails
      */
     public ConversionResultStatus convertVideo(String inputPath, String outputPath, String outputFormat, boolean tryStreamCopy, Consumer<Double> progressCallback) throws Exception {
-        File inputFile = new File(inputPath);
-        if (!inputFile.exists()) {
-            throw new IOException("Input file not found: " + inputPath);
+        return convertVideo(inputPath, outputPath, ConversionOptions.of(outputFormat, tryStreamCopy), progressCallback);
+    }
+
+    /**
+     * Converts a video file with the given options.
+     *
+     * @param inputPath         Path to the input video file (e.g., .avi)
+     * @param outputPath        Path to save the output video file (e.g., .mp4, .mkv)
+     * @param options           Output format and strategy settings
+     * @param progressCallback  Callback to report progress (0.0-100.0)
+     * @throws Exception If conversion fails
+     */
+    public ConversionResultStatus convertVideo(String inputPath, String outputPath, ConversionOptions options, Consumer<Double> progressCallback) throws Exception {
+        return convertVideo(inputPath, outputPath, options, new JobControl(), progressCallback);
+    }
+
+    /**
+     * Converts a video file with the given options under the given control.
+     * A cancelled conversion throws {@link InterruptedException} and leaves no partial output behind.
+     *
+     * @param inputPath         Path to the input video file (e.g., .avi)
+     * @param outputPath        Path to save the output video file (e.g., .mp4, .mkv)
+     * @param options           Output format and strategy settings
+     * @param control           Pause/resume/cancel switch of this conversion
+     * @param progressCallback  Callback to report progress (0.0-100.0)
+     * @throws Exception If conversion fails
+     */
+    public ConversionResultStatus convertVideo(String inputPath, String outputPath, ConversionOptions options, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        return convert(inputPath, outputPath, options, control, progressCallback).status();
+    }
+
+    /**
+     * Same as {@link #convertVideo(String, String, ConversionOptions, JobControl, Consumer)}, but also
+     * reports the encoder profile and speed of the conversion.
+     */
+    public ConversionResult convert(String inputPath, String outputPath, ConversionOptions options, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        return convert(MediaSource.of(inputPath), outputPath, options, control, progressCallback);
+    }
+
+    /**
+     * Converts a local file, an HTTP(S) URL or a seekable channel, see {@link MediaSource}.
+     */
+    public ConversionResult convert(MediaSource source, String outputPath, ConversionOptions options, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        boolean tryStreamCopy = options.tryStreamCopy();
+        if (source.isLocalFile() && !Files.exists(source.getFile())) {
+            throw new IOException("Input file not found: " + source);
+        }
+        if (!source.isLocalFile()) {
+            source.size(); // Reports an unreachable URL as such, not as an unknown container
         }
+        VideoContainerType containerType = containerSniffer.sniff(source);
+        if (!containerType.isVideo()) {
+            // Fail fast, FFmpeg would only find out after probing the whole file
+            throw new IOException("Not a supported video container: " + source);
+        }
+        if (tryStreamCopy && !options.videoFilters().isEmpty()) {
+            System.out.println("Video filters need a re-encode, skipping remux attempts");
+            tryStreamCopy = false;
+        }
+        boolean pipe = isPipe(outputPath);
+        if (pipe && !options.catalog().isEmpty()) {
+            System.out.println("Catalog artifacts need an output file, skipping them for " + outputPath);
+            options = options.withCatalog(CatalogSettings.NONE);
+        }
+        try (ProbedInput input = new ProbedInput(source, containerType, control)) {
+            ConversionResult result = convert(input, outputPath, options, tryStreamCopy, control, progressCallback);
+            return result.withOpenMillis(input.getOpenMillis());
+        }
+    }
+
+    /**
+     * Runs the fallback chain on an input that every attempt shares: remux to the requested format,
+     * remux to MKV, re-encode.
+     */
+    private ConversionResult convert(ProbedInput input, String outputPath, ConversionOptions options, boolean tryStreamCopy,
+                                     JobControl control, Consumer<Double> progressCallback) throws Exception {
+        String outputFormat = options.outputFormat();
+        boolean pipe = isPipe(outputPath);
+        ConversionOptions effectiveOptions = options;
+        boolean fragmented = options.fragmented() || pipe; // A pipe cannot seek back to write the index
+
+        StrategyCache.Decision strategy = strategyCache.decide(outputFormat, tryStreamCopy && !pipe);
 
         if (tryStreamCopy) {
             try {
                 // First attempt: Try stream copy with user-selected format
-                return streamCopyVideo(inputPath, outputPath, outputFormat, progressCallback);
+                ConversionResult result = remux(effectiveOptions.lane(), control, () -> streamCopyVideo(input, outputPath, outputFormat, fragmented, effectiveOptions, strategy, control, progressCallback));
+                strategy.succeeded(StrategyCache.Strategy.REMUX);
+                return result;
+            } catch (StrategyCache.LearnedStrategyException learned) {
+                // Thrown right after probing, nothing was written
+                System.out.println(learned.getMessage());
+                if (learned.strategy() == StrategyCache.Strategy.REMUX_MKV) {
+                    ConversionResult result = remuxToMkv(input, outputPath, fragmented, effectiveOptions, strategy, control, progressCallback);
+                    if (result != null) {
+                        strategy.succeeded(StrategyCache.Strategy.REMUX_MKV);
+                        return result;
+                    }
+                    strategy.mismatched();
+                    System.out.println("Falling back to full re-encode with " + outputFormat);
+                }
             } catch (Exception e) {
+                deletePartialOutput(outputPath);
+                if (control.isCancelled()) {
+                    throw cancellation(e);
+                }
                 String errorMessage = e.getMessage();
+                if (e instanceof DiskSpaceGuard.NoSpaceException || e instanceof ControlledInputStream.ReadFailedException) {
+                    // No other strategy makes the output fit for sure or reads the input any better
+                    System.err.println(errorMessage);
+                    strategy.unlearnable();
+                    return ConversionResult.failed(errorMessage);
+                }
+
+                if (pipe) {
+                    // Bytes already sent down a pipe cannot be taken back, only a remux that never started can fall back
+                    if (!(e instanceof RemuxNotPossibleException)) {
+                        System.err.println("Stream copy to " + outputPath + " failed after writing began: " + errorMessage);
+                        return ConversionResult.failed(errorMessage);
+                    }
+                    System.err.println(errorMessage);
+                    System.out.println("Falling back to full re-encode with " + outputFormat);
+                    return encode(effectiveOptions.lane(), control, () -> reEncodeVideo(input, outputPath, effectiveOptions, fragmented, control, progressCallback));
+                }
 
                 // Check if the error is the timebase/codec issue
-                if (errorMessage != null && (errorMessage.contains("error -22") ||
-                        errorMessage.contains("Could not open video codec") ||
-                        errorMessage.contains("timebase") && errorMessage.contains("not supported"))) {
+                if (isCompatibilityError(errorMessage)) {
 
                     System.err.println("Stream copy failed with compatibility error: " + errorMessage);
+                    strategy.remuxFailed();
 
                     // If we already tried MKV or failed with something else, skip to re-encode
                     if ("mkv".equalsIgnoreCase(outputFormat)) {
                         System.err.println("MKV stream copy failed. Falling back to re-encode.");
                     } else {
                         // Try MKV as fallback for remuxing
-                        try {
-                            System.out.println("Trying MKV as fallback container for stream copy...");
-                            String mkvOutputPath = outputPath.substring(0, outputPath.lastIndexOf('.')) + ".mkv";
-                            return streamCopyVideo(inputPath, mkvOutputPath, "mkv", progressCallback);
-                        } catch (Exception mkvError) {
-                            System.err.println("MKV fallback also failed: " + mkvError.getMessage());
-                            // Both attempts failed, continue to re-encode
+                        ConversionResult result = remuxToMkv(input, outputPath, fragmented, effectiveOptions, strategy, control, progressCallback);
+                        if (result != null) {
+                            strategy.succeeded(StrategyCache.Strategy.REMUX_MKV);
+                            return result;
                         }
+                        // Both attempts failed, continue to re-encode
                     }
                 } else {
                     // Not a timebase/codec error, but still fail, log it
                     System.err.println("Stream copy failed with error: " + errorMessage);
+                    strategy.unlearnable();
                 }
 
                 // Fall back to re-encode with original format
@@ -68,112 +224,396 @@ public class ConversionService {
 
         // If we get here, either we're not trying stream copy or all stream copy attempts failed
         // Proceed with full re-encode
-        return reEncodeVideo(inputPath, outputPath, outputFormat, progressCallback);
+        ConversionResult result = encode(effectiveOptions.lane(), control, () -> reEncodeVideo(input, outputPath, effectiveOptions, fragmented, control, progressCallback));
+        if (result.status() != ConversionResultStatus.FAILED) {
+            strategy.succeeded(StrategyCache.Strategy.REENCODE);
+        }
+        return result;
+    }
+
+    private static boolean isCompatibilityError(String errorMessage) {
+        return errorMessage != null && (errorMessage.contains("error -22") ||
+                errorMessage.contains("Could not open video codec") ||
+                errorMessage.contains("timebase") && errorMessage.contains("not supported"));
     }
 
     /**
-     * Attempts to remux (stream copy) the video without re-encoding.
+     * Remuxes to MKV next to the requested output, as fallback for a container that cannot take the streams.
      *
-     * @param inputPath Path to input file
-     * @param outputPath Path to output file
-     * @param outputFormat Output format (mp4, mkv)
-     * @param progressCallback Progress reporting callback
-     * @throws Exception If remuxing fails
+     * @return The result, null if the remux failed and a re-encode should follow
+     * @throws InterruptedException If the conversion was cancelled
      */
-    private ConversionResultStatus streamCopyVideo(String inputPath, String outputPath, String outputFormat, Consumer<Double> progressCallback) throws Exception {
-        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputPath)) {
-            grabber.start();
+    private ConversionResult remuxToMkv(ProbedInput input, String outputPath, boolean fragmented, ConversionOptions options,
+                                        StrategyCache.Decision strategy, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        System.out.println("Trying MKV as fallback container for stream copy...");
+        String mkvOutputPath = outputPath.substring(0, outputPath.lastIndexOf('.')) + ".mkv";
+        try {
+            return remux(options.lane(), control, () -> streamCopyVideo(input, mkvOutputPath, "mkv", fragmented, options, strategy, control, progressCallback));
+        } catch (Exception mkvError) {
+            deletePartialOutput(mkvOutputPath);
+            if (control.isCancelled()) {
+                throw cancellation(mkvError);
+            }
+            if (mkvError instanceof DiskSpaceGuard.NoSpaceException || mkvError instanceof ControlledInputStream.ReadFailedException) {
+                throw mkvError;
+            }
+            System.err.println("MKV fallback also failed: " + mkvError.getMessage());
+            if (isCompatibilityError(mkvError.getMessage())) {
+                strategy.mkvFailed();
+            } else {
+                strategy.unlearnable();
+            }
+            return null;
+        }
+    }
 
-            int sourceVideoCodec = grabber.getVideoCodec();
-            int sourceAudioCodec = grabber.getAudioCodec();
+    /**
+     * @return Whether the output path is an FFmpeg pipe like {@link #STANDARD_OUTPUT} rather than a file
+     */
+    public static boolean isPipe(String outputPath) {
+        return outputPath.startsWith("pipe:");
+    }
 
-            System.out.println("Stream Copy Mode: Attempting to remux to " + outputFormat);
-            System.out.println("Source Video Codec ID: " + sourceVideoCodec +
-                    " (MPEG4 is " + avcodec.AV_CODEC_ID_MPEG4 + ", H264 is " + avcodec.AV_CODEC_ID_H264 + ")");
-            System.out.println("Source Audio Codec ID: " + sourceAudioCodec);
+    private <T> T remux(ConversionLane lane, JobControl control, Callable<T> task) throws Exception {
+        if (threads == null) {
+            return task.call();
+        }
+        return lane.isInteractive() ? threads.interactive(control, task) : threads.remux(control, task);
+    }
 
-            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath,
-                    grabber.getImageWidth(), grabber.getImageHeight(), grabber.getAudioChannels())) {
+    private <T> T encode(ConversionLane lane, JobControl control, Callable<T> task) throws Exception {
+        if (threads == null) {
+            return task.call();
+        }
+        return lane.isInteractive() ? threads.interactive(control, task) : threads.encode(control, task);
+    }
 
-                recorder.setFormat(outputFormat);
-                recorder.setFrameRate(grabber.getFrameRate());
-                recorder.setSampleRate(grabber.getSampleRate());
-                recorder.setAudioChannels(grabber.getAudioChannels());
+    /**
+     * A cancel inside FFmpeg, e.g. while {@code grabber.start()} probes the input, arrives wrapped in a
+     * JavaCV exception. Callers tell a cancel from a failure by {@link InterruptedException}.
+     */
+    private static Exception cancellation(Exception e) {
+        if (e instanceof InterruptedException) {
+            return e;
+        }
+        InterruptedException cancelled = new InterruptedException("Conversion was cancelled.");
+        cancelled.initCause(e);
+        return cancelled;
+    }
 
-                // Set stream copy mode
-                recorder.setVideoCodec(sourceVideoCodec);
-                recorder.setAudioCodec(sourceAudioCodec);
+    private void deletePartialOutput(String outputPath) {
+        if (isPipe(outputPath)) {
+            return;
+        }
+        try {
+            if (Files.deleteIfExists(Path.of(outputPath))) {
+                System.out.println("Removed partial output: " + outputPath);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not remove partial output " + outputPath + ": " + e.getMessage());
+        }
+    }
 
-                // Copy bitrates if available
-                if (grabber.getVideoBitrate() > 0) {
-                    recorder.setVideoBitrate(grabber.getVideoBitrate());
+    /**
+     * Attempts to remux (stream copy) the video without re-encoding: the packets of the input are
+     * written to the new container as they are, nothing is decoded.
+     *
+     * @param source Input of the conversion, opened by the first attempt
+     * @param outputPath Path to output file
+     * @param outputFormat Output format (mp4, mkv)
+     * @param fragmented Write the container in fragments, see {@link ConversionOptions#fragmented()}
+     * @param options Catalog artifacts to save next to the output and time range to copy
+     * @param strategy Gets the signature of the probed input
+     * @param progressCallback Progress reporting callback
+     * @throws StrategyCache.LearnedStrategyException If the input's signature learned to skip this attempt
+     * @throws RemuxNotPossibleException If a pipe output cannot take the codecs, checked before anything is written
+     * @throws Exception If remuxing fails
+     */
+    private ConversionResult streamCopyVideo(ProbedInput source, String outputPath, String outputFormat, boolean fragmented, ConversionOptions options,
+                                             StrategyCache.Decision strategy, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        FFmpegFrameGrabber grabber = source.grabber();
+        AVFormatContext input = grabber.getFormatContext();
+        strategy.probed(StrategyCache.signature(input, source.getContainerType()));
+
+        System.out.println("Stream Copy Mode: Attempting to remux to " + outputFormat);
+        System.out.println("Source Video Codec ID: " + grabber.getVideoCodec() +
+                " (MPEG4 is " + avcodec.AV_CODEC_ID_MPEG4 + ", H264 is " + avcodec.AV_CODEC_ID_H264 + ")");
+        System.out.println("Source Audio Codec ID: " + grabber.getAudioCodec());
+
+        for (int i = 0; i < input.nb_streams(); i++) {
+            // AVI fourccs like FMP4 or XVID are invalid in MP4, the muxer picks the tag of its container
+            input.streams(i).codecpar().codec_tag(0);
+        }
+        if (isPipe(outputPath)) {
+            checkMuxerSupport(outputFormat, grabber.getVideoCodec(), grabber.getAudioCodec());
+        }
+
+        CatalogSettings catalog = options.catalog();
+        TimeRange range = options.timeRange();
+        AVStream videoStream = findVideoStream(input);
+        // The lane is entered first, so an interactive attempt waiting for memory or disk space already preempts the batch
+        try (PriorityLanes.Ticket lane = lanes.enter(options.lane(), source.getSource().getName())) {
+            NativeMemoryGovernor.Reservation memory = nativeMemory.acquire(outputPath,
+                    NativeMemoryGovernor.estimateRemux(grabber, !catalog.isEmpty()), options.lane(), control);
+            try (DiskSpaceGuard.Reservation space = diskSpace.reserve(outputPath,
+                         DiskSpaceGuard.estimateRemux(source.getSize(), grabber, range), options.lane(), control);
+                 PacketRepair repair = videoStream == null ? null : new PacketRepair(videoStream);
+                 CatalogExtractor extractor = catalog.isEmpty() ? null : startCatalog(grabber, catalog, range, outputPath)) {
+
+                double framesPerSecond;
+                try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath,
+                        grabber.getImageWidth(), grabber.getImageHeight(), grabber.getAudioChannels())) {
+                    recorder.setFormat(outputFormat);
+                    configureContainer(recorder, outputFormat, fragmented);
+                    recorder.start(input); // Output streams take over the codec parameters of the input streams
+
+                    framesPerSecond = copyPackets(grabber, range, repair, extractor, recorder, space, lane, control, progressCallback);
+                    source.checkEndOfInput();
+                } // The output is finalized before the catalog is saved
+                if (extractor != null) {
+                    extractor.finish(false);
                 }
-                if (grabber.getAudioBitrate() > 0) {
-                    recorder.setAudioBitrate(grabber.getAudioBitrate());
+                boolean repaired = repair != null && repair.hasRepaired();
+                if (repaired) {
+                    System.out.println("Repaired video packets: " + repair.describe());
                 }
-
-                recorder.start();
-
-                processFrames(grabber, recorder, progressCallback);
+                return new ConversionResult(ConversionResultStatus.resolveRemuxResult(outputFormat, repaired), null, framesPerSecond);
+            } finally {
+                memory.close(); // Only once the recorder and the catalog freed their buffers
             }
         }
-        return ConversionResultStatus.resolveRemuxResult(outputFormat);
     }
 
     /**
-     * Re-encodes the video with H.264/AAC high quality settings.
+     * Re-encodes the video to H.264/AAC with the encoder profile of the options. The video filters of
+     * the options run between decoder and encoder, so the picture is normalized in the same pass, and
+     * the catalog pictures are taken from the frames going to the encoder.
      *
-     * @param inputPath Path to input file
+     * @param source Input of the conversion, opened by the first attempt
      * @param outputPath Path to output file
-     * @param outputFormat Output format (mp4, mkv)
+     * @param options Output format (mp4, mkv), encoder profile and video filters
+     * @param fragmented Write the container in fragments, see {@link ConversionOptions#fragmented()}
      * @param progressCallback Progress reporting callback
      * @throws Exception If re-encoding fails
      */
-    private ConversionResultStatus reEncodeVideo(String inputPath, String outputPath, String outputFormat, Consumer<Double> progressCallback) throws Exception {
-        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputPath)) {
-            grabber.start();
+    private ConversionResult reEncodeVideo(ProbedInput source, String outputPath, ConversionOptions options, boolean fragmented, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        String outputFormat = options.outputFormat();
+        VideoFilterSettings filters = options.videoFilters();
+        try {
+            FFmpegFrameGrabber grabber = source.grabber();
+            // The lane is entered first, so an interactive attempt waiting for memory or disk space already preempts the batch
+            try (PriorityLanes.Ticket lane = lanes.enter(options.lane(), source.getSource().getName())) {
+                NativeMemoryGovernor.Reservation memory = reserveEncodeMemory(grabber, outputPath, options, control);
+                try {
+                    EncoderProfile profile = options.encoderProfile().isAutomatic()
+                            ? encoderProfileSelector.select(grabber, options, control)
+                            : options.encoderProfile();
+                    System.out.println("Re-encoding Mode: Converting to H.264/AAC with format " + outputFormat + " and profile " + profile);
+
+                    TimeRange range = options.timeRange();
+                    if (range.startSeconds() > 0) {
+                        // Seeks to the keyframe before the start and decodes up to the exact start
+                        grabber.setTimestamp(range.startMicros(), true);
+                    }
+                    int outputWidth = filters.outputWidth(grabber.getImageWidth(), grabber.getImageHeight());
+                    int outputHeight = filters.outputHeight(grabber.getImageWidth(), grabber.getImageHeight());
+                    double outputFrameRate = filters.frameRate() > 0 ? filters.frameRate() : grabber.getFrameRate();
+                    CatalogSettings catalog = options.catalog();
+                    try (DiskSpaceGuard.Reservation space = diskSpace.reserve(outputPath, DiskSpaceGuard.estimateReencode(
+                                 source.getSize(), grabber, outputWidth, outputHeight, outputFrameRate, profile, range), options.lane(), control);
+                         CatalogExtractor extractor = catalog.isEmpty() ? null : startCatalog(grabber, catalog, range, outputPath);
+                         FFmpegFrameFilter filter = filters.isEmpty() ? null : startVideoFilter(grabber, filters)) {
+
+                        double framesPerSecond;
+                        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath, outputWidth, outputHeight, grabber.getAudioChannels())) {
+                            recorder.setFormat(outputFormat);
+                            configureContainer(recorder, outputFormat, fragmented);
+                            recorder.setFrameRate(outputFrameRate);
+                            recorder.setSampleRate(grabber.getSampleRate());
+                            recorder.setAudioChannels(grabber.getAudioChannels());
+
+                            configureVideoEncoder(recorder, profile);
+                            if (fragmented && recorder.getFrameRate() > 0) {
+                                // Every keyframe starts a fragment, the encoder's default GOP would make them ten seconds long
+                                recorder.setGopSize((int) Math.max(1, Math.round(recorder.getFrameRate() * FRAGMENT_SECONDS)));
+                            }
+
+                            // Audio settings for AAC
+                            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+                            recorder.setAudioQuality(1); // Good VBR quality
+
+                            recorder.start();
+
+                            framesPerSecond = processFrames(grabber, range, filter, extractor, recorder, space, lane, control, progressCallback);
+                            source.checkEndOfInput();
+                        } // The output is finalized before the catalog is saved
+                        System.out.printf("Re-encoded with profile %s at %.1f fps%n", profile, framesPerSecond);
+                        if (extractor != null) {
+                            extractor.finish(true); // The encoder placed the keyframes
+                        }
+                        return new ConversionResult(ConversionResultStatus.REENCODE_OK, profile, framesPerSecond);
+                    }
+                } finally {
+                    memory.close(); // Only once the encoder, filters and catalog freed their buffers
+                }
+            }
+        } catch (Exception ex) {
+            deletePartialOutput(outputPath);
+            if (control.isCancelled()) {
+                throw cancellation(ex);
+            }
+            System.err.println("All fallbacks are failed: " + ex.getMessage());
+            return ConversionResult.failed(ex.getMessage());
+        }
+    }
 
-            System.out.println("Re-encoding Mode: Converting to H.264/AAC with format " + outputFormat);
+    /**
+     * Waits for the native memory of the re-encode. Auto profiles reserve for the slowest profile,
+     * which has the largest lookahead and also runs in the speed trial.
+     */
+    private NativeMemoryGovernor.Reservation reserveEncodeMemory(FFmpegFrameGrabber grabber, String outputPath, ConversionOptions options, JobControl control) throws Exception {
+        VideoFilterSettings filters = options.videoFilters();
+        EncoderProfile profile = options.encoderProfile().isAutomatic() ? EncoderProfile.ARCHIVAL : options.encoderProfile();
+        long estimateBytes = NativeMemoryGovernor.estimateReencode(grabber,
+                filters.outputWidth(grabber.getImageWidth(), grabber.getImageHeight()),
+                filters.outputHeight(grabber.getImageWidth(), grabber.getImageHeight()),
+                profile, !filters.isEmpty());
+        return nativeMemory.acquire(outputPath, estimateBytes, options.lane(), control);
+    }
+
+    private static void shiftTimestamps(AVPacket packet, AVStream stream, double offsetSeconds) {
+        long offset = Math.round(offsetSeconds / avutil.av_q2d(stream.time_base()));
+        if (packet.pts() != avutil.AV_NOPTS_VALUE) {
+            packet.pts(packet.pts() - offset);
+        }
+        if (packet.dts() != avutil.AV_NOPTS_VALUE) {
+            packet.dts(packet.dts() - offset);
+        }
+    }
 
-            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath,
-                    grabber.getImageWidth(), grabber.getImageHeight(), grabber.getAudioChannels())) {
+    private static AVStream findVideoStream(AVFormatContext input) {
+        for (int i = 0; i < input.nb_streams(); i++) {
+            if (input.streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO) {
+                return input.streams(i);
+            }
+        }
+        return null;
+    }
 
-                recorder.setFormat(outputFormat);
-                recorder.setFrameRate(grabber.getFrameRate());
-                recorder.setSampleRate(grabber.getSampleRate());
-                recorder.setAudioChannels(grabber.getAudioChannels());
+    /**
+     * Builds the filter graph for the decoded pictures of the grabber. libavfilter runs the filters
+     * slice-threaded on all cores.
+     */
+    private static FFmpegFrameFilter startVideoFilter(FFmpegFrameGrabber grabber, VideoFilterSettings filters) throws FFmpegFrameFilter.Exception {
+        boolean bottomFieldFirst = grabber.getVideoCodec() == avcodec.AV_CODEC_ID_DVVIDEO;
+        String filterGraph = filters.toFilterGraph(bottomFieldFirst);
+        System.out.println("Video filters: " + filterGraph);
+
+        FFmpegFrameFilter filter = new FFmpegFrameFilter(filterGraph, grabber.getImageWidth(), grabber.getImageHeight());
+        filter.setPixelFormat(grabber.getPixelFormat());
+        filter.setFrameRate(grabber.getFrameRate());
+        filter.setAspectRatio(grabber.getAspectRatio());
+        filter.start();
+        return filter;
+    }
 
-                // Video settings for H.264
-                recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-                recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
-                recorder.setVideoOption("crf", "18"); // Visually lossless
-                recorder.setVideoOption("preset", "slow"); // Good balance of quality and compression speed
+    private static CatalogExtractor startCatalog(FFmpegFrameGrabber grabber, CatalogSettings catalog, TimeRange range, String outputPath) {
+        double sampleAspectRatio = grabber.getAspectRatio() > 0 ? grabber.getAspectRatio() : 1.0;
+        double displayAspectRatio = grabber.getImageHeight() > 0
+                ? grabber.getImageWidth() * sampleAspectRatio / grabber.getImageHeight()
+                : 0;
+        return new CatalogExtractor(catalog, Path.of(outputPath), range.lengthSeconds(inputSeconds(grabber)), displayAspectRatio);
+    }
 
-                // Audio settings for AAC
-                recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
-                recorder.setAudioQuality(1); // Good VBR quality
+    /**
+     * @return Length of the input, 0 if unknown
+     */
+    static double inputSeconds(FFmpegFrameGrabber grabber) {
+        // The frame count of the video stream is more reliable than the container duration, which AVI estimates from the bitrate
+        return grabber.getLengthInFrames() > 0 && grabber.getFrameRate() > 0
+                ? grabber.getLengthInFrames() / grabber.getFrameRate()
+                : Math.max(0, grabber.getLengthInTime() / 1_000_000.0);
+    }
 
-                recorder.start();
+    /**
+     * Fragmented MP4 starts with an empty index and writes a self-contained fragment from every
+     * keyframe, so there is no index to write at the end. MKV always writes clusters as it goes,
+     * they are limited to one second so that a reader gets the data without delay.
+     */
+    private static void configureContainer(FFmpegFrameRecorder recorder, String outputFormat, boolean fragmented) {
+        if (!fragmented) {
+            return;
+        }
+        if ("mp4".equalsIgnoreCase(outputFormat) || "mov".equalsIgnoreCase(outputFormat)) {
+            recorder.setOption("movflags", "frag_keyframe+empty_moov+default_base_moof");
+        } else if ("mkv".equalsIgnoreCase(outputFormat) || "matroska".equalsIgnoreCase(outputFormat)) {
+            recorder.setOption("cluster_time_limit", "1000");
+        }
+    }
 
-                processFrames(grabber, recorder, progressCallback);
+    /**
+     * Asks the muxer whether it can store the codecs, so that a remux to a pipe is only started when
+     * it can finish. A file output finds out by trying and can still be deleted.
+     */
+    private static void checkMuxerSupport(String outputFormat, int videoCodec, int audioCodec) throws RemuxNotPossibleException {
+        AVOutputFormat muxer = avformat.av_guess_format(outputFormat, null, null);
+        if (muxer == null) {
+            muxer = avformat.av_guess_format(null, "output." + outputFormat, null);
+        }
+        if (muxer == null) {
+            throw new RemuxNotPossibleException("Unknown output format " + outputFormat);
+        }
+        for (int codec : new int[]{videoCodec, audioCodec}) {
+            if (codec != avcodec.AV_CODEC_ID_NONE && avformat.avformat_query_codec(muxer, codec, avcodec.FF_COMPLIANCE_NORMAL) != 1) {
+                throw new RemuxNotPossibleException("Stream copy not possible: " + outputFormat + " cannot store codec "
+                        + avcodec.avcodec_get_name(codec).getString());
             }
-            return ConversionResultStatus.REENCODE_OK;
+        }
+    }
 
-        } catch (Exception ex) {
-            System.err.println("All fallbacks are failed: " + ex.getMessage());
-            return ConversionResultStatus.FAILED;
+    /**
+     * Thrown by a remux that was rejected before anything was written.
+     */
+    private static class RemuxNotPossibleException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RemuxNotPossibleException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * H.264 in YUV 4:2:0 with the profile's x264 preset, constant rate factor and tune.
+     */
+    static void configureVideoEncoder(FFmpegFrameRecorder recorder, EncoderProfile profile) {
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        recorder.setVideoOption("crf", profile.getCrf());
+        recorder.setVideoOption("preset", profile.getPreset());
+        if (profile.getTune() != null) {
+            recorder.setVideoOption("tune", profile.getTune());
         }
     }
 
     /**
      * Process frames from grabber to recorder with progress reporting.
+     *
+     * @param range Segment to encode, the grabber is already at its start
+     * @param filter Filter for the pictures, audio bypasses it. Null to record the decoded frames as they are
+     * @param extractor Gets every picture going to the encoder, null if no catalog is wanted
+     * @param space Disk space of the output, re-checked while encoding
+     * @param lane Pauses a batch encode at input keyframes while interactive conversions run
+     * @return Frames per second achieved
      */
-    private void processFrames(FFmpegFrameGrabber grabber, FFmpegFrameRecorder recorder, Consumer<Double> progressCallback) throws Exception {
+    private double processFrames(FFmpegFrameGrabber grabber, TimeRange range, FFmpegFrameFilter filter, CatalogExtractor extractor, FFmpegFrameRecorder recorder, DiskSpaceGuard.Reservation space, PriorityLanes.Ticket lane, JobControl control, Consumer<Double> progressCallback) throws Exception {
         Frame frame;
         long totalFrames = grabber.getLengthInFrames();
         long processedFrames = 0;
 
-        if (totalFrames <= 0) { // Estimate if not available
+        if (!range.isAll() && grabber.getFrameRate() > 0) {
+            double rangeSeconds = range.lengthSeconds(inputSeconds(grabber));
+            totalFrames = rangeSeconds > 0 ? Math.round(rangeSeconds * grabber.getFrameRate()) : -1;
+        } else if (totalFrames <= 0) { // Estimate if not available
             double duration = grabber.getLengthInTime() / 1000000.0; // seconds
             double fps = grabber.getFrameRate();
             if (duration > 0 && fps > 0) {
@@ -182,14 +622,34 @@ public class ConversionService {
                 totalFrames = -1; // Indicate unknown for progress
             }
         }
+        AVFormatContext input = grabber.getFormatContext();
+        long endMicros = range.endMicros();
+        long inputStartMicros = input.start_time() != avutil.AV_NOPTS_VALUE ? input.start_time() : 0;
 
         final long effectiveTotalFrames = totalFrames;
+        long startNanos = System.nanoTime();
 
         while ((frame = grabber.grab()) != null) {
-            if (Thread.currentThread().isInterrupted()) {
-                throw new InterruptedException("Conversion was cancelled.");
+            control.checkpoint(); // Blocks while paused, throws when cancelled
+            space.check();
+            if (frame.timestamp - inputStartMicros >= endMicros) {
+                break; // Nothing after the end of the range is decoded
+            }
+            if (frame.keyFrame && frame.image != null) {
+                lane.yieldPoint(control);
+            }
+            if (processedFrames == 0) {
+                StartupMetrics.markFirstFrame();
+            }
+            if (filter != null && frame.image != null) {
+                filter.push(frame);
+                recordFiltered(filter, extractor, recorder);
+            } else {
+                if (extractor != null) {
+                    extractor.onPicture(frame);
+                }
+                recorder.record(frame);
             }
-            recorder.record(frame);
             processedFrames++;
 
             if (progressCallback != null && effectiveTotalFrames > 0) {
@@ -204,8 +664,117 @@ public class ConversionService {
             }
         }
 
+        if (filter != null) {
+            filter.push(null); // Drains the frames the deinterlacer and fps filter hold back
+            recordFiltered(filter, extractor, recorder);
+        }
+
         if (progressCallback != null) {
             progressCallback.accept(100.0); // Ensure 100% is sent at the end
         }
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        return elapsedSeconds > 0 ? processedFrames / elapsedSeconds : 0;
+    }
+
+    private static void recordFiltered(FFmpegFrameFilter filter, CatalogExtractor extractor, FFmpegFrameRecorder recorder) throws Exception {
+        Frame filtered;
+        while ((filtered = filter.pullImage()) != null) {
+            if (extractor != null) {
+                extractor.onPicture(filtered);
+            }
+            recorder.record(filtered);
+        }
+    }
+
+    /**
+     * Copies the packets from grabber to recorder with progress reporting, based on the timestamps
+     * of the video packets.
+     *
+     * A time range starts at the keyframe before its start, all timestamps are moved by the time of
+     * that keyframe so that the output starts at zero. Reading stops at the first video packet past the end.
+     *
+     * @param range Segment to copy
+     * @param repair Repairs the packets of its video stream, null if there is none
+     * @param extractor Gets every video packet before it is written, null if no catalog is wanted
+     * @param space Disk space of the output, re-checked while copying
+     * @param lane Pauses a batch remux at video keyframes while interactive conversions run
+     * @return Video frames per second achieved
+     */
+    private double copyPackets(FFmpegFrameGrabber grabber, TimeRange range, PacketRepair repair, CatalogExtractor extractor, FFmpegFrameRecorder recorder, DiskSpaceGuard.Reservation space, PriorityLanes.Ticket lane, JobControl control, Consumer<Double> progressCallback) throws Exception {
+        AVFormatContext input = grabber.getFormatContext();
+        AVStream videoStream = findVideoStream(input);
+        PacketRepair.PacketWriter videoWriter = repaired -> {
+            if (extractor != null) {
+                extractor.onVideoPacket(repaired, videoStream); // Before the recorder rewrites the timestamps
+            }
+            recorder.recordPacket(repaired);
+        };
+        double durationSeconds = range.isAll() ? grabber.getLengthInTime() / 1_000_000.0 : range.lengthSeconds(inputSeconds(grabber));
+        double startSeconds = input.start_time() != avutil.AV_NOPTS_VALUE ? input.start_time() / 1_000_000.0 : 0;
+        boolean trimmed = !range.isAll();
+        if (range.startSeconds() > 0
+                && avformat.av_seek_frame(input, -1, range.startMicros() + Math.round(startSeconds * 1_000_000), avformat.AVSEEK_FLAG_BACKWARD) < 0) {
+            throw new IOException("Could not seek to " + range.startSeconds() + " s");
+        }
+        double originSeconds = trimmed ? Double.NaN : 0; // Time of the first copied keyframe, becomes zero in the output
+        long videoPackets = 0;
+        long startNanos = System.nanoTime();
+
+        AVPacket packet;
+        while ((packet = grabber.grabPacket()) != null) {
+            control.checkpoint(); // Blocks while paused, throws when cancelled
+            space.check();
+            AVStream stream = input.streams(packet.stream_index());
+            boolean video = stream.codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO;
+            if (video && (packet.flags() & avcodec.AV_PKT_FLAG_KEY) != 0) {
+                lane.yieldPoint(control);
+            }
+            long timestamp = packet.dts() != avutil.AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+            double seconds = timestamp != avutil.AV_NOPTS_VALUE ? timestamp * avutil.av_q2d(stream.time_base()) - startSeconds : Double.NaN;
+            if (trimmed) {
+                if (Double.isNaN(originSeconds)) {
+                    if (!video || (packet.flags() & avcodec.AV_PKT_FLAG_KEY) == 0 || Double.isNaN(seconds)) {
+                        continue; // Audio before the keyframe would start the output without a picture
+                    }
+                    long pts = packet.pts() != avutil.AV_NOPTS_VALUE ? packet.pts() : timestamp;
+                    originSeconds = pts * avutil.av_q2d(stream.time_base()) - startSeconds;
+                    System.out.printf("Copying from the keyframe at %.3f s%n", originSeconds);
+                }
+                if (!Double.isNaN(seconds) && seconds >= range.endSeconds() && range.hasEnd()) {
+                    if (video) {
+                        break;
+                    }
+                    continue;
+                }
+                if (!video && !Double.isNaN(seconds) && seconds < originSeconds) {
+                    continue;
+                }
+                shiftTimestamps(packet, stream, originSeconds + startSeconds);
+            }
+            if (video) {
+                if (videoPackets == 0) {
+                    StartupMetrics.markFirstFrame();
+                }
+                videoPackets++;
+                if (progressCallback != null && durationSeconds > 0 && !Double.isNaN(seconds) && videoPackets % 20 == 0) {
+                    double copiedSeconds = seconds - originSeconds;
+                    progressCallback.accept(Math.max(0.0, Math.min(100.0, copiedSeconds * 100.0 / durationSeconds)));
+                }
+            }
+            if (repair != null && stream.index() == videoStream.index()) {
+                repair.write(packet, videoWriter);
+            } else {
+                recorder.recordPacket(packet);
+            }
+        }
+        if (repair != null) {
+            repair.flush(videoWriter);
+        }
+
+        if (progressCallback != null) {
+            progressCallback.accept(100.0);
+        }
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        return elapsedSeconds > 0 ? videoPackets / elapsedSeconds : 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,109 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+/**
+ * Platform thread pools that run the FFmpeg part of conversions, while the threads asking for the
+ * conversions (virtual ones where available, see {@link ThreadPools}) only wait for the result.
+ * <p>
+ * Remuxing copies packets and mostly waits for the disk or the network, so it gets a pool sized for
+ * I/O. Encoding is CPU-bound and gets a small pool, so that no number of queued files can start more
+ * encodes than configured. A file whose remux fails leaves the remux pool before it queues for an encoder.
+ * <p>
+ * {@link ConversionLane#INTERACTIVE} conversions bypass both pools and start right away on a pool of
+ * their own, the batch conversions make room for them at their next keyframe (see {@link PriorityLanes}).
+ */
+public class ConversionThreads implements AutoCloseable {
+
+    private final ExecutorService remuxPool;
+    private final ExecutorService encodePool;
+    private final ExecutorService interactivePool;
+    private final int remuxThreads;
+    private final int encodeThreads;
+
+    public ConversionThreads(int remuxThreads, int encodeThreads) {
+        this.remuxThreads = remuxThreads;
+        this.encodeThreads = encodeThreads;
+        this.remuxPool = Executors.newFixedThreadPool(remuxThreads, ThreadPools.daemonThreads("remux-"));
+        this.encodePool = Executors.newFixedThreadPool(encodeThreads, ThreadPools.daemonThreads("encode-"));
+        this.interactivePool = Executors.newCachedThreadPool(ThreadPools.daemonThreads("interactive-"));
+    }
+
+    public int getRemuxThreads() {
+        return remuxThreads;
+    }
+
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+
+    <T> T remux(JobControl control, Callable<T> task) throws Exception {
+        return runOn(remuxPool, control, task);
+    }
+
+    <T> T encode(JobControl control, Callable<T> task) throws Exception {
+        return runOn(encodePool, control, task);
+    }
+
+    /**
+     * Runs a remux or encode of an interactive conversion without waiting for a pool thread.
+     */
+    <T> T interactive(JobControl control, Callable<T> task) throws Exception {
+        return runOn(interactivePool, control, task);
+    }
+
+    @Override
+    public void close() {
+        // Queued conversions are cancelled, so that nobody waits for them forever
+        remuxPool.shutdownNow().forEach(queued -> ((Future<?>) queued).cancel(false));
+        encodePool.shutdownNow().forEach(queued -> ((Future<?>) queued).cancel(false));
+        interactivePool.shutdownNow();
+    }
+
+    /**
+     * Runs the task on the pool and waits for it. If the waiting thread is interrupted, the conversion
+     * is cancelled and still awaited, so that it has removed its partial output when this returns.
+     */
+    private static <T> T runOn(ExecutorService pool, JobControl control, Callable<T> task) throws Exception {
+        Future<T> result = pool.submit(task);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            control.cancel();
+            if (!result.cancel(false)) {
+                awaitQuietly(result); // Already running, it stops at its next checkpoint
+            }
+            throw e;
+        } catch (CancellationException e) {
+            throw new InterruptedException("Conversion threads were shut down");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception exception) {
+                throw exception;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private static void awaitQuietly(Future<?> result) {
+        boolean interrupted = false;
+        while (!result.isDone()) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException | CancellationException e) {
+                break; // Cancelled conversions end with an exception
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
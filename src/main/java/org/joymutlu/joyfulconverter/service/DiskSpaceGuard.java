@@ -0,0 +1,225 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Admits conversions only while their output fits onto its volume, so that a batch does not run for
+ * hours and then fail on its last files with a full disk.
+ * <p>
+ * Every conversion reserves the expected size of its output on the output's {@link FileStore} once
+ * its input is probed, before anything is written: about the input size for a remux, bitrate times
+ * duration for a re-encode. What a running conversion has written already counts against the free
+ * space, only the rest of its estimate stays reserved. A conversion that does not fit waits until
+ * the running ones on the same volume are done; if it still does not fit then, it fails right away
+ * instead of filling the disk. Interactive conversions never wait: the batch conversions holding the
+ * space pause for them (see {@link PriorityLanes}), so they borrow the space reserved by batch
+ * conversions and only fail if the volume itself is too full.
+ * <p>
+ * Running conversions re-check the free space every few seconds and stop before the volume is
+ * completely full, so their partial output can be removed while the others still have room.
+ */
+public final class DiskSpaceGuard {
+
+    private static final long MB = 1024 * 1024;
+    /** Kept free on every volume (at most 5% of small ones), for the file system, the catalog artifacts and the other applications */
+    private static final long MARGIN_BYTES = 256 * MB;
+    /** A running conversion stops when less than this is left */
+    private static final long MIN_FREE_BYTES = 32 * MB;
+    /** Container overhead of a remux, and the share by which an estimate may be too low */
+    private static final double REMUX_OVERHEAD = 1.05;
+    private static final long AUDIO_BITS_PER_SECOND = 192_000;
+    private static final long WAIT_MILLIS = 1000;
+    private static final long CHECK_INTERVAL_NANOS = 2_000_000_000L;
+
+    private static final DiskSpaceGuard SHARED = new DiskSpaceGuard();
+
+    private final Map<FileStore, List<Reservation>> reservations = new HashMap<>();
+
+    DiskSpaceGuard() {
+    }
+
+    /**
+     * @return The guard all conversions of this process share
+     */
+    public static DiskSpaceGuard shared() {
+        return SHARED;
+    }
+
+    /**
+     * Waits until the estimate fits onto the output's volume and reserves it. Pausing and cancelling
+     * the conversion work while it waits. Pipes are not checked.
+     *
+     * @param outputPath    Output file, it does not have to exist yet
+     * @param estimateBytes Expected size of the output
+     * @param lane          Interactive conversions ignore the reservations of batch conversions and never wait
+     * @return Reservation to close when the conversion is done
+     * @throws IOException          If the output does not fit even with no other conversion running
+     * @throws InterruptedException If the conversion was cancelled while waiting
+     */
+    Reservation reserve(String outputPath, long estimateBytes, ConversionLane lane, JobControl control) throws IOException, InterruptedException {
+        if (ConversionService.isPipe(outputPath)) {
+            return new Reservation(null, Path.of(outputPath), 0, lane);
+        }
+        Path output = Path.of(outputPath).toAbsolutePath();
+        FileStore store = Files.getFileStore(existingAncestor(output));
+        long marginBytes = Math.min(MARGIN_BYTES, store.getTotalSpace() / 20);
+        boolean announced = false;
+        while (true) {
+            control.checkpoint();
+            synchronized (this) {
+                List<Reservation> onStore = reservations.computeIfAbsent(store, key -> new ArrayList<>());
+                long reservedBytes = onStore.stream()
+                        .filter(reservation -> !lane.isInteractive() || reservation.lane.isInteractive())
+                        .mapToLong(Reservation::remainingBytes).sum();
+                long availableBytes = store.getUsableSpace() - reservedBytes - marginBytes;
+                if (estimateBytes <= availableBytes) {
+                    Reservation reservation = new Reservation(store, output, estimateBytes, lane);
+                    onStore.add(reservation);
+                    return reservation;
+                }
+                // Waiting would be for batch conversions that are paused until this one is done
+                if (onStore.isEmpty() || lane.isInteractive()) {
+                    throw new NoSpaceException(String.format("Not enough space for %s on %s: needs ~%d MB, %d MB free",
+                            output.getFileName(), store, estimateBytes / MB, Math.max(0, store.getUsableSpace() - marginBytes) / MB));
+                }
+                if (!announced) {
+                    System.out.printf("Waiting for disk space: %s needs ~%d MB, %d MB free on %s after %d running conversions%n",
+                            output.getFileName(), estimateBytes / MB, Math.max(0, availableBytes) / MB, store, onStore.size());
+                    announced = true;
+                }
+                wait(WAIT_MILLIS); // Also re-reads the free space, other applications can free some
+            }
+        }
+    }
+
+    /**
+     * Output size of a remux: the packets are copied as they are.
+     *
+     * @param inputBytes Size of the input
+     * @param range      Segment of the input that is copied
+     */
+    static long estimateRemux(long inputBytes, FFmpegFrameGrabber grabber, TimeRange range) {
+        double inputSeconds = ConversionService.inputSeconds(grabber);
+        double share = range.isAll() || inputSeconds <= 0 ? 1.0 : Math.min(1.0, range.lengthSeconds(inputSeconds) / inputSeconds);
+        return (long) (inputBytes * share * REMUX_OVERHEAD);
+    }
+
+    /**
+     * Output size of a re-encode: bitrate times duration. The video bitrate is derived from the
+     * pixels per second and the constant rate factor, whose every 6 steps halve or double it, and
+     * capped at twice the input: a re-encode of an old codec rarely grows a file by more than that.
+     */
+    static long estimateReencode(long inputBytes, FFmpegFrameGrabber grabber, int outputWidth, int outputHeight,
+                                 double outputFrameRate, EncoderProfile profile, TimeRange range) {
+        double inputSeconds = ConversionService.inputSeconds(grabber);
+        double seconds = range.lengthSeconds(inputSeconds);
+        if (seconds <= 0) {
+            return estimateRemux(inputBytes, grabber, range); // Unknown duration, the input size is the best guess
+        }
+        int crf = Integer.parseInt(profile.getCrf());
+        double bitsPerPixel = 0.1 * Math.pow(2, (18 - crf) / 6.0);
+        double frameRate = outputFrameRate > 0 ? outputFrameRate : 25;
+        double videoBitsPerSecond = outputWidth * (double) outputHeight * frameRate * bitsPerPixel;
+        long audioBitsPerSecond = grabber.getAudioChannels() > 0 ? AUDIO_BITS_PER_SECOND : 0;
+        long encodedBytes = (long) ((videoBitsPerSecond + audioBitsPerSecond) * seconds / 8 * REMUX_OVERHEAD);
+        long inputShareBytes = (long) (inputBytes * Math.min(1.0, seconds / inputSeconds));
+        return Math.min(encodedBytes, Math.max(inputShareBytes * 2, 16 * MB));
+    }
+
+    private static Path existingAncestor(Path path) {
+        Path existing = path.getParent();
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        return existing != null ? existing : path.getRoot();
+    }
+
+    /**
+     * Thrown when an output does not fit onto its volume, before or while it is written.
+     */
+    static final class NoSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private NoSpaceException(String message) {
+            super(message);
+        }
+    }
+
+    private synchronized void release(Reservation reservation) {
+        List<Reservation> onStore = reservations.get(reservation.store);
+        if (onStore != null) {
+            onStore.remove(reservation);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Output space reserved for one running conversion.
+     */
+    final class Reservation implements AutoCloseable {
+        private final FileStore store;
+        private final Path output;
+        private final long bytes;
+        private final ConversionLane lane;
+        private long lastCheckNanos = System.nanoTime();
+        private boolean warned;
+        private boolean released;
+
+        private Reservation(FileStore store, Path output, long bytes, ConversionLane lane) {
+            this.store = store;
+            this.output = output;
+            this.bytes = bytes;
+            this.lane = lane;
+        }
+
+        /**
+         * Re-reads the free space of the volume, at most every few seconds. Call from the packet or
+         * frame loop of the conversion.
+         *
+         * @throws IOException If the volume is about to be full
+         */
+        void check() throws IOException {
+            if (store == null || System.nanoTime() - lastCheckNanos < CHECK_INTERVAL_NANOS) {
+                return;
+            }
+            lastCheckNanos = System.nanoTime();
+            long usableBytes = store.getUsableSpace();
+            if (usableBytes < MIN_FREE_BYTES) {
+                throw new NoSpaceException(String.format("Output volume %s is full (%d MB left), stopped writing %s",
+                        store, usableBytes / MB, output.getFileName()));
+            }
+            if (!warned && usableBytes < remainingBytes()) {
+                warned = true;
+                System.err.printf("Output volume %s has %d MB left, %s still needs ~%d MB%n",
+                        store, usableBytes / MB, output.getFileName(), remainingBytes() / MB);
+            }
+        }
+
+        /**
+         * @return Part of the estimate not written yet
+         */
+        private long remainingBytes() {
+            try {
+                return Math.max(0, bytes - (Files.exists(output) ? Files.size(output) : 0));
+            } catch (IOException e) {
+                return bytes;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!released && store != null) {
+                released = true;
+                release(this);
+            }
+        }
+    }
+}
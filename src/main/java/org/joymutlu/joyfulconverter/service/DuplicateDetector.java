@@ -0,0 +1,153 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Finds files with identical content so that each distinct video is converted only once.
+ * <p>
+ * Detection runs in three increasingly expensive stages and each stage only looks at the candidates
+ * left over by the previous one:
+ * <ol>
+ *     <li>files are bucketed by size, a file with a unique size cannot have a duplicate;</li>
+ *     <li>files of equal size are compared by a hash of their head and tail blocks;</li>
+ *     <li>only files whose partial hashes collide are hashed completely.</li>
+ * </ol>
+ */
+public class DuplicateDetector {
+
+    private static final int PARTIAL_BLOCK_SIZE = 64 * 1024;
+    private static final int FULL_HASH_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Groups the given files by content.
+     *
+     * @param files Files to check, their order decides which copy of a duplicate set is converted
+     * @return The files to convert and, for each of them, the identical copies that can reuse its output
+     */
+    public DeduplicationResult findDuplicates(List<File> files) {
+        Map<Long, List<File>> sizeBuckets = files.stream()
+                .collect(Collectors.groupingBy(File::length, LinkedHashMap::new, Collectors.toList()));
+
+        List<List<File>> identicalGroups = sizeBuckets.values().parallelStream()
+                .filter(bucket -> bucket.size() > 1)
+                .flatMap(bucket -> splitBy(bucket, this::partialHash).stream())
+                .flatMap(candidates -> splitBy(candidates, this::fullHash).stream())
+                .collect(Collectors.toList());
+
+        Map<File, List<File>> duplicatesByOriginal = new LinkedHashMap<>();
+        Set<File> duplicates = new HashSet<>();
+        for (List<File> group : identicalGroups) {
+            List<File> copies = List.copyOf(group.subList(1, group.size()));
+            duplicatesByOriginal.put(group.get(0), copies);
+            duplicates.addAll(copies);
+        }
+        List<File> uniqueFiles = new ArrayList<>();
+        for (File file : files) {
+            if (!duplicates.contains(file)) {
+                uniqueFiles.add(file);
+            }
+        }
+        return new DeduplicationResult(uniqueFiles, duplicatesByOriginal);
+    }
+
+    /**
+     * Splits candidates by the given key and keeps only the groups that still have more than one file.
+     * Files that cannot be read are treated as unique.
+     */
+    private List<List<File>> splitBy(List<File> candidates, Function<File, String> key) {
+        Map<String, List<File>> groups = new LinkedHashMap<>();
+        for (File file : candidates) {
+            try {
+                groups.computeIfAbsent(key.apply(file), k -> new ArrayList<>()).add(file);
+            } catch (UncheckedIOException e) {
+                System.err.println("Skipping duplicate check for " + file + ": " + e.getCause().getMessage());
+            }
+        }
+        return groups.values().stream()
+                .filter(group -> group.size() > 1)
+                .collect(Collectors.toList());
+    }
+
+    private String partialHash(File file) {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PARTIAL_BLOCK_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            readBlock(channel, 0, buffer, digest);
+            if (size > PARTIAL_BLOCK_SIZE) {
+                readBlock(channel, Math.max(PARTIAL_BLOCK_SIZE, size - PARTIAL_BLOCK_SIZE), buffer, digest);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private String fullHash(File file) {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FULL_HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void readBlock(FileChannel channel, long position, ByteBuffer buffer, MessageDigest digest) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param uniqueFiles          Files that have to be converted, in their original order
+     * @param duplicatesByOriginal Identical copies per converted file (only files that have copies are listed)
+     */
+    public record DeduplicationResult(
+            List<File> uniqueFiles,
+            Map<File, List<File>> duplicatesByOriginal
+    ) {
+        public List<File> duplicatesOf(File original) {
+            return duplicatesByOriginal.getOrDefault(original, List.of());
+        }
+
+        public int duplicateCount() {
+            return duplicatesByOriginal.values().stream().mapToInt(List::size).sum();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.joymutlu.joyfulconverter.service;
+
+/**
+ * x264 settings for re-encoding, from best compression to highest speed.
+ */
+public enum EncoderProfile {
+    ARCHIVAL("slow", "18", null, 1.0),
+    BALANCED("medium", "20", null, 1.7),
+    FAST("veryfast", "22", null, 4.5),
+    REALTIME("ultrafast", "23", "zerolatency", 9.0),
+    /** Picks one of the other profiles per file from a measured encode speed, see {@link EncoderProfileSelector} */
+    AUTO(null, null, null, 0);
+
+    private final String preset;
+    private final String crf;
+    private final String tune;
+    private final double relativeSpeed;
+
+    /**
+     * @param relativeSpeed Typical encode speed of the preset relative to "slow", used to extrapolate
+     *                      one measured speed to the other profiles
+     */
+    EncoderProfile(String preset, String crf, String tune, double relativeSpeed) {
+        this.preset = preset;
+        this.crf = crf;
+        this.tune = tune;
+        this.relativeSpeed = relativeSpeed;
+    }
+
+    public String getPreset() { return preset; }
+    public String getCrf() { return crf; }
+    public String getTune() { return tune; }
+    double getRelativeSpeed() { return relativeSpeed; }
+
+    public boolean isAutomatic() {
+        return this == AUTO;
+    }
+}
@@ -0,0 +1,84 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.OutputStream;
+import java.util.List;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+/**
+ * Resolves {@link EncoderProfile#AUTO} for one file. The first seconds of the video are encoded with
+ * the archival profile into FFmpeg's null muxer, the measured speed is extrapolated to the faster
+ * profiles, and the best compressing profile that still reaches the required speed wins.
+ * <p>
+ * The required speed is the option's target speed, raised to what the deadline demands for the
+ * file's duration. Without either, the file has to encode at least in realtime.
+ */
+class EncoderProfileSelector {
+
+    private static final double CALIBRATION_MEDIA_SECONDS = 3.0;
+    private static final long CALIBRATION_MAX_NANOS = 5_000_000_000L;
+    private static final double DEFAULT_TARGET_SPEED = 1.0;
+    private static final double FALLBACK_FRAME_RATE = 25.0;
+    private static final List<EncoderProfile> BEST_COMPRESSION_FIRST =
+            List.of(EncoderProfile.ARCHIVAL, EncoderProfile.BALANCED, EncoderProfile.FAST, EncoderProfile.REALTIME);
+
+    /**
+     * Measures on the given started grabber and rewinds it to the start afterwards.
+     */
+    EncoderProfile select(FFmpegFrameGrabber grabber, ConversionOptions options, JobControl control) throws Exception {
+        double requiredSpeed = requiredSpeed(grabber, options);
+        double archivalSpeed = measureArchivalSpeed(grabber, control);
+        grabber.setTimestamp(0);
+
+        EncoderProfile selected = EncoderProfile.REALTIME; // Fastest we have, even if it is not fast enough
+        for (EncoderProfile profile : BEST_COMPRESSION_FIRST) {
+            if (archivalSpeed * profile.getRelativeSpeed() >= requiredSpeed) {
+                selected = profile;
+                break;
+            }
+        }
+        System.out.printf("Auto encoder profile: %s (archival encodes at %.2fx realtime, %.2fx required)%n",
+                selected, archivalSpeed, requiredSpeed);
+        return selected;
+    }
+
+    private static double requiredSpeed(FFmpegFrameGrabber grabber, ConversionOptions options) {
+        if (options.deadlineMillis() <= 0) {
+            return options.targetSpeed() > 0 ? options.targetSpeed() : DEFAULT_TARGET_SPEED;
+        }
+        double mediaSeconds = grabber.getLengthInTime() / 1_000_000.0;
+        double secondsLeft = (options.deadlineMillis() - System.currentTimeMillis()) / 1000.0;
+        double deadlineSpeed = mediaSeconds <= 0 ? 0 : secondsLeft <= 0 ? Double.MAX_VALUE : mediaSeconds / secondsLeft;
+        return Math.max(options.targetSpeed(), deadlineSpeed);
+    }
+
+    /**
+     * @return Media seconds encoded per wall clock second, including the encoder's lookahead flush
+     */
+    private static double measureArchivalSpeed(FFmpegFrameGrabber grabber, JobControl control) throws Exception {
+        double frameRate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : FALLBACK_FRAME_RATE;
+        long frames = 0;
+        long startNanos = System.nanoTime();
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(OutputStream.nullOutputStream(),
+                grabber.getImageWidth(), grabber.getImageHeight(), 0)) {
+            recorder.setFormat("null");
+            recorder.setFrameRate(frameRate);
+            ConversionService.configureVideoEncoder(recorder, EncoderProfile.ARCHIVAL);
+            recorder.start();
+
+            Frame frame;
+            while ((frame = grabber.grabImage()) != null) {
+                control.checkpoint();
+                recorder.record(frame);
+                frames++;
+                if (frames >= CALIBRATION_MEDIA_SECONDS * frameRate || System.nanoTime() - startNanos > CALIBRATION_MAX_NANOS) {
+                    break;
+                }
+            }
+            recorder.stop();
+        }
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        return frames == 0 ? Double.MAX_VALUE : (frames / frameRate) / elapsedSeconds;
+    }
+}
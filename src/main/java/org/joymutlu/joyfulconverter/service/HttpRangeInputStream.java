@@ -0,0 +1,314 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Seekable input for {@code FFmpegFrameGrabber(InputStream)} that reads a file from an HTTP server
+ * with range requests, for archives served by an object store instead of a mount.
+ * <p>
+ * The file is read in chunks of {@value #CHUNK_SIZE} bytes. While the demuxer reads sequentially,
+ * the next {@value #READ_AHEAD_CHUNKS} chunks are requested in parallel, so the round trips overlap
+ * and a remux runs at about the line rate. A seek, e.g. to the index at the end of an AVI, fetches
+ * only the chunk it lands in, and reading on from there starts the read-ahead again. Chunks behind
+ * the current one are dropped, so at most about {@value #READ_AHEAD_CHUNKS} chunks are held.
+ * <p>
+ * Like {@link ControlledFileInputStream}, every read honours the {@link JobControl}, also while it
+ * waits for the network, and a chunk that could not be fetched fails the conversion instead of
+ * ending the input early, see {@link ControlledInputStream}.
+ */
+class HttpRangeInputStream extends ControlledInputStream {
+
+    private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+    private static final int READ_AHEAD_CHUNKS = 8;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long WAIT_MILLIS = 250;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    /**
+     * Reads the body of a 206 only. Any other response, above all a 200 with the whole file, is
+     * dropped unread: the connection is closed instead of downloading gigabytes into the heap.
+     */
+    private static final HttpResponse.BodyHandler<byte[]> PARTIAL_CONTENT = responseInfo -> responseInfo.statusCode() == 206
+            ? HttpResponse.BodySubscribers.ofByteArray()
+            : new UnreadBody();
+
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final URI uri;
+    private final long size;
+    private final String validator;
+    private final Map<Long, CompletableFuture<byte[]>> chunks = new LinkedHashMap<>();
+    private long position;
+    private long mark;
+    private long lastChunk = -1;
+
+    /**
+     * @param uri       File to read
+     * @param size      Length of the file, see {@link #probe}
+     * @param validator Strong ETag or Last-Modified of the file, sent as If-Range so that a file replaced
+     *                  while it is read fails instead of mixing two versions. Null if the server sent neither
+     */
+    HttpRangeInputStream(URI uri, long size, String validator, JobControl control) {
+        super(control);
+        this.uri = uri;
+        this.size = size;
+        this.validator = validator;
+    }
+
+    /**
+     * Result of {@link #probe}.
+     *
+     * @param size      Length of the file
+     * @param validator Strong ETag, else Last-Modified, null if the server sent neither
+     * @param header    First bytes of the file
+     */
+    record Probe(long size, String validator, byte[] header) {
+    }
+
+    /**
+     * Requests the first bytes of the file, which also tells its length and whether the server
+     * supports range requests at all.
+     *
+     * @throws IOException If the file cannot be read or the server ignores range requests
+     */
+    static Probe probe(URI uri, int headerBytes) throws IOException {
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Range", "bytes=0-" + (headerBytes - 1))
+                .build());
+        if (response.statusCode() == 200) {
+            throw new IOException("Server does not support range requests for " + uri);
+        }
+        if (response.statusCode() != 206) {
+            throw new IOException("Could not read " + uri + ": status " + response.statusCode());
+        }
+        String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) {
+            throw new IOException("Unknown length of " + uri + ": Content-Range " + contentRange);
+        }
+        // If-Range must not carry a weak ETag, servers answer it with the whole file (RFC 9110, 13.1.5)
+        String validator = response.headers().firstValue("ETag")
+                .filter(etag -> !etag.startsWith("W/"))
+                .or(() -> response.headers().firstValue("Last-Modified"))
+                .orElse(null);
+        return new Probe(Long.parseLong(contentRange.substring(slash + 1).trim()), validator, response.body());
+    }
+
+    long size() {
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+        long index = position / CHUNK_SIZE;
+        byte[] chunk = chunk(index);
+        int start = (int) (position - index * CHUNK_SIZE);
+        int count = Math.min(length, chunk.length - start);
+        System.arraycopy(chunk, start, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        // FFmpeg asks for the stream size with skip(Long.MAX_VALUE), so clamp without overflowing
+        long target = position + Math.min(Math.max(0, count), Math.max(0, size - position));
+        long skipped = target - position;
+        position = target;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() {
+        chunks.values().forEach(future -> future.cancel(true));
+        chunks.clear();
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+
+    /**
+     * @return The chunk, waiting for it while honouring the job control
+     */
+    private byte[] chunk(long index) throws IOException {
+        boolean sequential = index == lastChunk || index == lastChunk + 1;
+        lastChunk = index;
+        long lastIndex = (size - 1) / CHUNK_SIZE;
+        long readAheadEnd = Math.min(lastIndex, index + (sequential ? READ_AHEAD_CHUNKS : 0));
+        for (Iterator<Map.Entry<Long, CompletableFuture<byte[]>>> it = chunks.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, CompletableFuture<byte[]>> entry = it.next();
+            if (entry.getKey() < index - 1 || entry.getKey() > index + READ_AHEAD_CHUNKS) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+        for (long next = index; next <= readAheadEnd; next++) {
+            chunks.computeIfAbsent(next, this::fetch);
+        }
+
+        CompletableFuture<byte[]> future = chunks.get(index);
+        while (true) {
+            checkpoint();
+            try {
+                return future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Still loading, check for pause and cancel again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failed(new InterruptedIOException("Interrupted while reading " + uri));
+            } catch (ExecutionException e) {
+                chunks.remove(index); // The next read requests it again
+                throw failed(e.getCause() instanceof IOException io ? io : new IOException(e.getCause().getMessage(), e.getCause()));
+            }
+        }
+    }
+
+    private CompletableFuture<byte[]> fetch(long index) {
+        long first = index * CHUNK_SIZE;
+        long last = Math.min(size, first + CHUNK_SIZE) - 1;
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Range", "bytes=" + first + "-" + last);
+        if (validator != null) {
+            request.header("If-Range", validator);
+        }
+        return sendWithRetries(request.build(), first, last, 1);
+    }
+
+    private CompletableFuture<byte[]> sendWithRetries(HttpRequest request, long first, long last, int attempt) {
+        return CLIENT.sendAsync(request, PARTIAL_CONTENT)
+                .thenApply(response -> checkedBody(response, first, last))
+                .exceptionallyCompose(error -> {
+                    if (attempt >= MAX_ATTEMPTS || error.getCause() instanceof RangeNotServedException) {
+                        return CompletableFuture.failedFuture(error);
+                    }
+                    System.err.printf("Retrying bytes %d-%d of %s (%s)%n", first, last, uri, error.getMessage());
+                    return CompletableFuture.supplyAsync(() -> null,
+                                    CompletableFuture.delayedExecutor(attempt * 500L, TimeUnit.MILLISECONDS))
+                            .thenCompose(ignored -> sendWithRetries(request, first, last, attempt + 1));
+                });
+    }
+
+    private byte[] checkedBody(HttpResponse<byte[]> response, long first, long last) {
+        if (response.statusCode() == 200 && validator != null) {
+            // If-Range did not match: the whole, changed file was sent instead of the range
+            throw new RangeNotServedException(uri + " changed while it was read");
+        }
+        if (response.statusCode() == 200) {
+            throw new RangeNotServedException("Server ignored the range request for bytes " + first + "-" + last + " of " + uri);
+        }
+        if (response.statusCode() != 206 || response.body().length != last - first + 1) {
+            throw new IllegalStateException(String.format("Unexpected response for bytes %d-%d of %s: status %d, %d bytes",
+                    first, last, uri, response.statusCode(), response.body().length));
+        }
+        return response.body();
+    }
+
+    /**
+     * Cancels the body as soon as it starts, which closes the connection, and yields no bytes.
+     */
+    private static final class UnreadBody implements HttpResponse.BodySubscriber<byte[]> {
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.cancel();
+            body.complete(new byte[0]);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.complete(new byte[0]);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(new byte[0]);
+        }
+    }
+
+    private static HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+        try {
+            return CLIENT.send(request, PARTIAL_CONTENT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + request.uri());
+        }
+    }
+
+    /**
+     * The server sent the whole file instead of the range, because the file was replaced or because it
+     * ignores ranges. Retrying would not help.
+     */
+    private static final class RangeNotServedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private RangeNotServedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * In-place mode of "Replace original file(s)": the output is written as a hidden temp file next to
+ * its original, verified there and then renamed to the original's name with the output's extension.
+ * <p>
+ * The temp file is in the original's directory, so it is on the same {@link java.nio.file.FileStore}:
+ * the final rename is an atomic move, nothing is copied between volumes, and the folder structure
+ * stays as it is. The new file gets the original's modification, access and (where the file system
+ * keeps one) creation time, so libraries sorted by date keep their order. The original is deleted only
+ * after the rename, so at any time one of the two files exists under a final name.
+ */
+public final class InPlaceReplacement {
+
+    private static final String TEMP_MARKER = ".joyful-tmp";
+
+    private InPlaceReplacement() {
+    }
+
+    /**
+     * @param format Extension of the output, e.g. "mp4". The MKV fallback of an MP4 remux writes next
+     *               to it with its own extension, which is again a temp output of the same original
+     * @return Hidden temp output next to the original. It carries the original's full name, so
+     *         "foo.avi" and "foo.flv" converted at the same time never write the same temp file
+     */
+    public static Path tempOutput(Path original, String format) {
+        return original.resolveSibling("." + original.getFileName() + TEMP_MARKER + "." + format);
+    }
+
+    /**
+     * @return Name the output of the original gets once it is committed
+     */
+    public static Path finalOutput(Path original, String format) {
+        return original.resolveSibling(baseName(original) + "." + format);
+    }
+
+    /**
+     * Finds the originals that must not be replaced in the same batch: those that share directory and
+     * base name with another one, e.g. "foo.avi" and "foo.mpg", or "foo.avi" and a mislabelled
+     * "foo.mp4". Both would be committed to the same final name (also for the MKV fallback), so one
+     * would overwrite or fail on the other's output. Names are compared ignoring case, as the file
+     * system of a Windows share would.
+     *
+     * @return Originals with a colliding final output, in the order given
+     */
+    public static List<Path> findCollisions(Collection<Path> originals) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Path original : originals) {
+            counts.merge(collisionKey(original), 1, Integer::sum);
+        }
+        return originals.stream().filter(original -> counts.get(collisionKey(original)) > 1).toList();
+    }
+
+    /**
+     * @return Whether the file is a temp output, e.g. one left behind by a crash
+     */
+    public static boolean isTempOutput(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") && name.matches(".*\\Q" + TEMP_MARKER + "\\E\\.[^.]+$");
+    }
+
+    /**
+     * Renames the verified temp output to the original's name with the output's extension, with the
+     * original's timestamps, and then deletes the original. An original that already has the output's
+     * extension (e.g. an AVI named .mp4) is replaced by the rename itself.
+     *
+     * @return The final output
+     * @throws FileAlreadyExistsException If another file already has the final name. Nothing is changed then
+     * @throws IOException                If the output could not be renamed or the original not deleted
+     */
+    public static Path commit(Path original, Path tempOutput) throws IOException {
+        String extension = tempOutput.getFileName().toString().replaceAll(".*\\.", "");
+        Path target = finalOutput(original, extension);
+        boolean replacesOriginal = Files.exists(target) && Files.isSameFile(target, original);
+        if (Files.exists(target) && !replacesOriginal) {
+            throw new FileAlreadyExistsException(target.toString(), null, "another file already has the output's name");
+        }
+
+        BasicFileAttributes times = Files.readAttributes(original, BasicFileAttributes.class);
+        Files.getFileAttributeView(tempOutput, BasicFileAttributeView.class)
+                .setTimes(times.lastModifiedTime(), times.lastAccessTime(), times.creationTime());
+        // An atomic move replaces an existing target, which is only ever the original here
+        Files.move(tempOutput, target, StandardCopyOption.ATOMIC_MOVE);
+        moveSidecars(tempOutput, target);
+        if (!replacesOriginal) {
+            Files.delete(original);
+        }
+        return target;
+    }
+
+    /**
+     * Removes a temp output that did not verify, with its catalog artifacts.
+     */
+    public static void discard(Path tempOutput) {
+        for (Path file : filesOf(tempOutput)) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Failed to delete temp output " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void moveSidecars(Path tempOutput, Path target) {
+        List<Path> sidecars = CatalogSettings.sidecarFiles(tempOutput);
+        List<Path> targetSidecars = CatalogSettings.sidecarFiles(target);
+        for (int i = 0; i < sidecars.size(); i++) {
+            if (Files.exists(sidecars.get(i))) {
+                try {
+                    Files.move(sidecars.get(i), targetSidecars.get(i), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.err.println("Failed to rename " + sidecars.get(i) + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static List<Path> filesOf(Path tempOutput) {
+        return Stream.concat(Stream.of(tempOutput), CatalogSettings.sidecarFiles(tempOutput).stream()).toList();
+    }
+
+    private static String collisionKey(Path original) {
+        return finalOutput(original.toAbsolutePath().normalize(), "").toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static String baseName(Path file) {
+        return file.getFileName().toString().replaceAll("\\.[^.]*$", "");
+    }
+}
@@ -0,0 +1,61 @@
+package org.joymutlu.joyfulconverter.service;
+
+/**
+ * Pause, resume and cancel switch for one conversion.
+ * <p>
+ * The conversion calls {@link #checkpoint()} for every frame and for every read from the input file,
+ * so a request takes effect within one frame or one read, including while FFmpeg is still probing the
+ * input in {@code grabber.start()}. Interrupting the converting thread has the same effect as
+ * {@link #cancel()}.
+ */
+public class JobControl {
+
+    private volatile boolean cancelled;
+    private boolean paused;
+
+    public void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            paused = false;
+            notifyAll();
+        }
+    }
+
+    public synchronized void pause() {
+        if (!cancelled) {
+            paused = true;
+        }
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    public boolean isCancelled() {
+        return cancelled || Thread.currentThread().isInterrupted();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Blocks while the conversion is paused.
+     *
+     * @throws InterruptedException If the conversion was cancelled or the thread was interrupted
+     */
+    public void checkpoint() throws InterruptedException {
+        if (isCancelled()) {
+            throw new InterruptedException("Conversion was cancelled.");
+        }
+        synchronized (this) {
+            while (paused && !cancelled) {
+                wait();
+            }
+        }
+        if (isCancelled()) {
+            throw new InterruptedException("Conversion was cancelled.");
+        }
+    }
+}
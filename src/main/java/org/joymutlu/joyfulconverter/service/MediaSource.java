@@ -0,0 +1,166 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Where the input of a conversion is read from: a local file, an HTTP(S) URL, or a seekable channel
+ * of the caller, e.g. one of an object store client.
+ * <p>
+ * URLs are read with range requests and a read-ahead buffer, see {@link HttpRangeInputStream}, so
+ * the server has to support them, as object stores and common web servers do. A plain
+ * {@link InputStream} that cannot seek is not accepted: the AVI and MP4 demuxers seek to the index
+ * at the end of the file before they read the first packet.
+ */
+public final class MediaSource {
+
+    private final String name;
+    private final Path file;
+    private final URI uri;
+    private final SeekableByteChannel channel;
+    private HttpRangeInputStream.Probe httpProbe;
+
+    private MediaSource(String name, Path file, URI uri, SeekableByteChannel channel) {
+        this.name = name;
+        this.file = file;
+        this.uri = uri;
+        this.channel = channel;
+    }
+
+    /**
+     * @param pathOrUrl Local file, or an http:// or https:// URL
+     */
+    public static MediaSource of(String pathOrUrl) {
+        if (isUrl(pathOrUrl)) {
+            return new MediaSource(pathOrUrl, null, URI.create(pathOrUrl), null);
+        }
+        return new MediaSource(pathOrUrl, Path.of(pathOrUrl), null, null);
+    }
+
+    /**
+     * Reads a channel of the caller from its start. The caller keeps ownership, the conversion does not close it.
+     *
+     * @param name Shown in logs and reports
+     */
+    public static MediaSource of(SeekableByteChannel channel, String name) {
+        return new MediaSource(name, null, null, channel);
+    }
+
+    public static boolean isUrl(String pathOrUrl) {
+        String lower = pathOrUrl.toLowerCase();
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The file, null if the source is no local file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean isLocalFile() {
+        return file != null;
+    }
+
+    /**
+     * @throws IOException If the source does not exist or, for a URL, the server does not support range requests
+     */
+    long size() throws IOException {
+        if (file != null) {
+            return Files.size(file);
+        }
+        if (uri != null) {
+            return httpProbe().size();
+        }
+        return channel.size();
+    }
+
+    /**
+     * @return Up to {@code maxBytes} from the start of the source, for {@link ContainerSniffer}
+     */
+    byte[] readHeader(int maxBytes) throws IOException {
+        if (uri != null) {
+            byte[] header = httpProbe().header();
+            return header.length > maxBytes ? Arrays.copyOf(header, maxBytes) : header;
+        }
+        ByteBuffer header = ByteBuffer.allocate(maxBytes);
+        if (file != null) {
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (header.hasRemaining() && fileChannel.read(header) > 0) {
+                    // Small files may need several reads
+                }
+            }
+        } else {
+            synchronized (channel) {
+                channel.position(0);
+                while (header.hasRemaining() && channel.read(header) > 0) {
+                    // Small files may need several reads
+                }
+            }
+        }
+        return Arrays.copyOf(header.array(), header.position());
+    }
+
+    /**
+     * Opens a seekable stream for {@code FFmpegFrameGrabber} that honours the job control on every read
+     * and remembers why reading failed.
+     */
+    ControlledInputStream open(JobControl control) throws IOException {
+        if (file != null) {
+            return new ControlledFileInputStream(file, control);
+        }
+        if (uri != null) {
+            HttpRangeInputStream.Probe probe = httpProbe();
+            return new HttpRangeInputStream(uri, probe.size(), probe.validator(), control);
+        }
+        return new ControlledFileInputStream(channel, name, false, control);
+    }
+
+    /**
+     * @return Identifies this version of the source across conversions, null if it cannot be told
+     * whether a channel still has the same content
+     */
+    String cacheKey() {
+        try {
+            if (file != null) {
+                Path absolute = file.toAbsolutePath();
+                return absolute + "|" + Files.size(absolute) + "|" + Files.getLastModifiedTime(absolute).toMillis();
+            }
+            if (uri != null) {
+                HttpRangeInputStream.Probe probe = httpProbe();
+                return probe.validator() != null ? uri + "|" + probe.size() + "|" + probe.validator() : null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * The first request to a URL tells its size and validator and brings the header for sniffing, so
+     * it is made once per source.
+     */
+    private synchronized HttpRangeInputStream.Probe httpProbe() throws IOException {
+        if (httpProbe == null) {
+            httpProbe = HttpRangeInputStream.probe(uri, ContainerSniffer.SNIFF_SIZE);
+        }
+        return httpProbe;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
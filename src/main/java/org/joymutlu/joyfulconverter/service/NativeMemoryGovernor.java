@@ -0,0 +1,241 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.lang.management.ManagementFactory;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Admits conversions only while their native memory fits into a budget.
+ * <p>
+ * Decoders, filters and x264 allocate their frames outside of the Java heap, so {@code -Xmx} does
+ * not limit them: a 1080p re-encode with the slow preset holds several hundred megabytes, and a
+ * parallel batch of them can get the process killed. Every conversion therefore reserves an estimate
+ * of its footprint, computed from the probed resolution and pixel format and the encoder's lookahead,
+ * reference frames and threads, and waits until the reservations of the running conversions leave
+ * room for it. A conversion that is alone is always admitted, however large, and so is an
+ * interactive one: the batch conversions it would wait for pause for it (see {@link PriorityLanes})
+ * and keep their memory, so it borrows the memory of the one that pauses.
+ * <p>
+ * Estimates can be wrong, so the native memory the process actually uses is measured as well, with
+ * JavaCPP's {@link Pointer#physicalBytes()} minus the used heap. Whatever it grew by since the
+ * last moment no conversion ran counts against the budget when it exceeds the reservations.
+ * <p>
+ * The budget is process-wide, {@code -Djoyful.nativeMemoryMb=N} sets it. The default leaves the heap
+ * and 1 GB for everything else out of the physical memory.
+ */
+public final class NativeMemoryGovernor {
+
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_BUDGET = 512 * MB;
+    /** Codec contexts, audio, packet queues and I/O buffers, independent of the resolution */
+    private static final long BASE_FOOTPRINT = 48 * MB;
+    private static final long WAIT_MILLIS = 250;
+
+    private static final NativeMemoryGovernor SHARED = new NativeMemoryGovernor(defaultBudget());
+
+    private long budgetBytes;
+    private long reservedBytes;
+    private int activeConversions;
+    private long idleNativeBytes = measureNativeBytes();
+    private long peakNativeBytes;
+
+    NativeMemoryGovernor(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return The governor all conversions of this process share
+     */
+    public static NativeMemoryGovernor shared() {
+        return SHARED;
+    }
+
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the estimate fits into the budget and reserves it. Pausing and cancelling the
+     * conversion work while it waits.
+     *
+     * @param name          Name of the conversion for the log
+     * @param estimateBytes Expected native footprint of the conversion
+     * @param lane          Interactive conversions are admitted right away
+     * @return Reservation to close when the conversion is done
+     * @throws InterruptedException If the conversion was cancelled while waiting
+     */
+    Reservation acquire(String name, long estimateBytes, ConversionLane lane, JobControl control) throws InterruptedException {
+        boolean announced = false;
+        while (true) {
+            control.checkpoint();
+            synchronized (this) {
+                long usedBytes = usedBytes();
+                if (activeConversions == 0 || lane.isInteractive() || usedBytes + estimateBytes <= budgetBytes) {
+                    if (activeConversions == 0) {
+                        idleNativeBytes = measureNativeBytes();
+                    }
+                    activeConversions++;
+                    reservedBytes += estimateBytes;
+                    return new Reservation(name, estimateBytes);
+                }
+                if (!announced) {
+                    System.out.printf("Waiting for native memory: %s needs ~%d MB, %d of %d MB in use%n",
+                            name, estimateBytes / MB, usedBytes / MB, budgetBytes / MB);
+                    announced = true;
+                }
+                wait(WAIT_MILLIS); // Also re-measures, memory can be freed without a release
+            }
+        }
+    }
+
+    /**
+     * Native footprint of a re-encode: the decoder's reference and thread frames, the BGR frames
+     * JavaCV converts through, the filter graph and x264's lookahead, B-frames, references and
+     * frame threads, whose frames carry padding and a quarter resolution copy.
+     */
+    static long estimateReencode(FFmpegFrameGrabber grabber, int outputWidth, int outputHeight, EncoderProfile profile, boolean filtered) {
+        int width = Math.max(grabber.getImageWidth(), 1);
+        int height = Math.max(grabber.getImageHeight(), 1);
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long decodedFrame = frameBytes(sourcePixelFormat(grabber), width, height);
+        int decoderFrames = (grabber.getVideoCodec() == avcodec.AV_CODEC_ID_H264 ? 16 : 3) + threads;
+        long decoderBytes = decodedFrame * decoderFrames + 2L * width * height * 3;
+
+        long encodedFrame = outputWidth * (long) outputHeight * 3 / 2;
+        long filterBytes = filtered ? encodedFrame * 4 : 0;
+        int frameThreads = "zerolatency".equals(profile.getTune()) ? 1 : Math.min(16, threads * 3 / 2);
+        int encoderFrames = lookahead(profile) + bFrames(profile) + references(profile) + 2 * frameThreads;
+        long encoderBytes = encodedFrame * 2 * encoderFrames;
+
+        return BASE_FOOTPRINT + decoderBytes + filterBytes + encoderBytes;
+    }
+
+    /**
+     * Native footprint of a remux: packets are copied as they are, only the catalog decodes pictures.
+     */
+    static long estimateRemux(FFmpegFrameGrabber grabber, boolean catalog) {
+        long catalogBytes = catalog
+                ? frameBytes(sourcePixelFormat(grabber), grabber.getImageWidth(), grabber.getImageHeight()) * 4
+                : 0;
+        return BASE_FOOTPRINT + catalogBytes;
+    }
+
+    /**
+     * The decoder's pixel format, {@link FFmpegFrameGrabber#getPixelFormat()} is the one it converts to.
+     */
+    private static int sourcePixelFormat(FFmpegFrameGrabber grabber) {
+        AVFormatContext input = grabber.getFormatContext();
+        for (int i = 0; input != null && i < input.nb_streams(); i++) {
+            AVCodecParameters parameters = input.streams(i).codecpar();
+            if (parameters.codec_type() == avutil.AVMEDIA_TYPE_VIDEO) {
+                return parameters.format();
+            }
+        }
+        return avutil.AV_PIX_FMT_NONE;
+    }
+
+    private static long frameBytes(int pixelFormat, int width, int height) {
+        int bytes = pixelFormat >= 0 ? avutil.av_image_get_buffer_size(pixelFormat, width, height, 64) : -1;
+        return bytes > 0 ? bytes : width * (long) height * 3 / 2;
+    }
+
+    private static int lookahead(EncoderProfile profile) {
+        if ("zerolatency".equals(profile.getTune())) {
+            return 0;
+        }
+        switch (profile.getPreset()) {
+            case "ultrafast": return 0;
+            case "veryfast": return 10;
+            case "medium": return 40;
+            default: return 50;
+        }
+    }
+
+    private static int bFrames(EncoderProfile profile) {
+        return "ultrafast".equals(profile.getPreset()) || "zerolatency".equals(profile.getTune()) ? 0 : 3;
+    }
+
+    private static int references(EncoderProfile profile) {
+        switch (profile.getPreset()) {
+            case "ultrafast":
+            case "veryfast": return 1;
+            case "medium": return 3;
+            default: return 5;
+        }
+    }
+
+    /**
+     * @return The larger of the reservations and the native memory grown since no conversion ran
+     */
+    private long usedBytes() {
+        long nativeBytes = measureNativeBytes();
+        peakNativeBytes = Math.max(peakNativeBytes, nativeBytes);
+        return Math.max(reservedBytes, nativeBytes - idleNativeBytes);
+    }
+
+    private static long measureNativeBytes() {
+        long physicalBytes = Pointer.physicalBytes(); // Resident set size, 0 where JavaCPP cannot read it
+        if (physicalBytes <= 0) {
+            return Pointer.totalBytes();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeapBytes = runtime.totalMemory() - runtime.freeMemory(); // Committed but untouched heap is not resident
+        return Math.max(Pointer.totalBytes(), physicalBytes - usedHeapBytes);
+    }
+
+    private static long defaultBudget() {
+        String configured = System.getProperty("joyful.nativeMemoryMb");
+        if (configured != null) {
+            return Long.parseLong(configured) * MB;
+        }
+        long physicalMemory = ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os
+                ? os.getTotalMemorySize()
+                : 0;
+        if (physicalMemory <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(MIN_BUDGET, physicalMemory - Runtime.getRuntime().maxMemory() - 1024 * MB);
+    }
+
+    private synchronized void release(Reservation reservation) {
+        long nativeBytes = measureNativeBytes();
+        peakNativeBytes = Math.max(peakNativeBytes, nativeBytes);
+        System.out.printf("Native memory of %s: estimated %d MB, process native %d MB (peak %d MB, idle %d MB)%n",
+                reservation.name, reservation.bytes / MB, nativeBytes / MB, peakNativeBytes / MB, idleNativeBytes / MB);
+        reservedBytes -= reservation.bytes;
+        activeConversions--;
+        notifyAll();
+    }
+
+    /**
+     * Native memory reserved for one running conversion.
+     */
+    final class Reservation implements AutoCloseable {
+        private final String name;
+        private final long bytes;
+        private boolean released;
+
+        private Reservation(String name, long bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avfilter;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.ffmpeg.global.swresample;
+import org.bytedeco.ffmpeg.global.swscale;
+import org.bytedeco.javacpp.Loader;
+
+/**
+ * Loads the FFmpeg native libraries on a background thread so the window (or the CLI) does not wait
+ * for them. The first load also extracts the libraries into the JavaCPP cache, which is the slow part
+ * of a cold start. JavaCPP's {@code Loader} is synchronized, so a conversion that starts before the
+ * warm-up has finished simply waits for it instead of loading a second time.
+ * <p>
+ * Only the libraries used for conversion are loaded, {@code FFmpegFrameGrabber.tryLoad()} would also
+ * pull in avdevice and its capture dependencies.
+ */
+public final class NativeWarmup {
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static final CompletableFuture<Boolean> loaded = new CompletableFuture<>();
+
+    private NativeWarmup() {
+    }
+
+    public static void startInBackground() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread warmup = new Thread(() -> loaded.complete(load()), "ffmpeg-warmup");
+        warmup.setDaemon(true);
+        warmup.setPriority(Thread.MIN_PRIORITY);
+        warmup.start();
+    }
+
+    /**
+     * Starts the warm-up if needed and waits for it.
+     *
+     * @return false if the libraries could not be loaded
+     */
+    public static boolean awaitLoaded() {
+        startInBackground();
+        return loaded.join();
+    }
+
+    private static boolean load() {
+        long startNanos = System.nanoTime();
+        try {
+            for (Class<?> library : new Class<?>[] {avutil.class, swresample.class, avcodec.class, avformat.class, swscale.class, avfilter.class}) {
+                Loader.load(library);
+            }
+            System.out.println("FFmpeg native libraries loaded in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+            return true;
+        } catch (RuntimeException | LinkageError e) {
+            // Not fatal here, the first conversion reports the same problem to the user
+            System.err.println("Could not preload FFmpeg native libraries: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avformat.av_find_input_format;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+
+/**
+ * Checks the output of a conversion against its input without decoding a single frame. Both files
+ * are only demuxed, which costs about as much as reading them once:
+ * <ul>
+ *     <li>the output has a video stream, and an audio stream if the input has one;</li>
+ *     <li>the codecs are the input's after a remux, H.264/AAC after a re-encode;</li>
+ *     <li>video and audio last as long as in the input;</li>
+ *     <li>the output has one video packet per input frame, unless the frame rate was changed;</li>
+ *     <li>the output's video timestamps keep increasing, without jumps.</li>
+ * </ul>
+ * A passed check is what allows an original to be deleted, so the output of a time range never passes.
+ */
+public class OutputVerifier {
+
+    private static final double DURATION_TOLERANCE_SECONDS = 0.5;
+    private static final double RELATIVE_TOLERANCE = 0.01;
+    private static final long PACKET_COUNT_TOLERANCE = 2;
+    private static final double MAX_TIMESTAMP_GAP_SECONDS = 1.0;
+
+    private final ContainerSniffer containerSniffer = new ContainerSniffer();
+
+    /**
+     * @param problems Every check that failed, empty if the output is fine
+     */
+    public record VerificationResult(List<String> problems) {
+
+        public boolean passed() {
+            return problems.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return passed() ? "verified" : String.join("; ", problems);
+        }
+    }
+
+    /**
+     * @param input   The original file
+     * @param output  The file the conversion actually wrote, i.e. the MKV after an MP4 remux fell back to MKV
+     * @param status  How the output was produced
+     * @param options Options of the conversion
+     */
+    public VerificationResult verify(Path input, Path output, ConversionResultStatus status, ConversionOptions options) {
+        if (status == ConversionResultStatus.FAILED) {
+            return new VerificationResult(List.of("conversion failed"));
+        }
+        if (!options.timeRange().isAll()) {
+            return new VerificationResult(List.of("output is a segment of the input, not a replacement"));
+        }
+        MediaScan source;
+        MediaScan converted;
+        try {
+            source = scan(input, containerSniffer.sniff(input).getDemuxerName());
+            converted = scan(output, null);
+        } catch (IOException e) {
+            return new VerificationResult(List.of(e.getMessage()));
+        }
+
+        List<String> problems = new ArrayList<>();
+        boolean remuxed = status != ConversionResultStatus.REENCODE_OK;
+        if (converted.video() == null) {
+            problems.add("output has no video stream");
+        } else if (source.video() != null) {
+            checkCodec("video", source.video(), converted.video(), remuxed ? source.video().codecId : avcodec.AV_CODEC_ID_H264, problems);
+            checkDuration("video", source.video(), converted.video(), problems);
+            if (options.videoFilters().frameRate() == 0) {
+                checkPacketCount(source.video(), converted.video(), problems);
+            }
+            if (converted.video().backwardSteps > 0 || converted.video().gaps > 0) {
+                problems.add(String.format("output video timestamps are not continuous (%d steps back, %d jumps)",
+                        converted.video().backwardSteps, converted.video().gaps));
+            }
+        }
+        if (source.audio() != null) {
+            if (converted.audio() == null) {
+                problems.add("output has no audio stream");
+            } else {
+                checkCodec("audio", source.audio(), converted.audio(), remuxed ? source.audio().codecId : avcodec.AV_CODEC_ID_AAC, problems);
+                checkDuration("audio", source.audio(), converted.audio(), problems);
+            }
+        }
+        return new VerificationResult(problems);
+    }
+
+    private static void checkCodec(String kind, StreamStats source, StreamStats converted, int expectedCodecId, List<String> problems) {
+        if (converted.codecId != expectedCodecId) {
+            problems.add(String.format("output %s codec is %s instead of %s", kind,
+                    avcodec.avcodec_get_name(converted.codecId).getString(), avcodec.avcodec_get_name(expectedCodecId).getString()));
+        }
+    }
+
+    private static void checkDuration(String kind, StreamStats source, StreamStats converted, List<String> problems) {
+        double tolerance = Math.max(DURATION_TOLERANCE_SECONDS, source.durationSeconds() * RELATIVE_TOLERANCE);
+        if (Math.abs(source.durationSeconds() - converted.durationSeconds()) > tolerance) {
+            problems.add(String.format("output %s lasts %.1f s instead of %.1f s", kind, converted.durationSeconds(), source.durationSeconds()));
+        }
+    }
+
+    private static void checkPacketCount(StreamStats source, StreamStats converted, List<String> problems) {
+        long tolerance = Math.max(PACKET_COUNT_TOLERANCE, Math.round(source.packets * RELATIVE_TOLERANCE));
+        if (Math.abs(source.packets - converted.packets) > tolerance) {
+            problems.add(String.format("output has %d video frames instead of %d", converted.packets, source.packets));
+        }
+    }
+
+    /**
+     * Reads all packets of the first video and audio stream, nothing is decoded.
+     *
+     * @param demuxerName Demuxer to use, null to let FFmpeg probe
+     */
+    private static MediaScan scan(Path file, String demuxerName) throws IOException {
+        AVFormatContext context = new AVFormatContext(null);
+        AVInputFormat format = demuxerName == null ? null : av_find_input_format(demuxerName);
+        int result = avformat_open_input(context, file.toString(), format, (AVDictionary) null);
+        if (result < 0) {
+            throw new IOException("could not open " + file.getFileName() + " (error " + result + ")");
+        }
+        AVPacket packet = av_packet_alloc();
+        try {
+            StreamStats video = null;
+            StreamStats audio = null;
+            int videoIndex = -1;
+            int audioIndex = -1;
+            for (int i = 0; i < context.nb_streams(); i++) {
+                AVStream stream = context.streams(i);
+                int type = stream.codecpar().codec_type();
+                if (type == AVMEDIA_TYPE_VIDEO && video == null) {
+                    video = new StreamStats(stream);
+                    videoIndex = i;
+                } else if (type == AVMEDIA_TYPE_AUDIO && audio == null) {
+                    audio = new StreamStats(stream);
+                    audioIndex = i;
+                }
+            }
+            while (av_read_frame(context, packet) >= 0) {
+                if (packet.stream_index() == videoIndex) {
+                    video.add(packet);
+                } else if (packet.stream_index() == audioIndex) {
+                    audio.add(packet);
+                }
+                av_packet_unref(packet);
+            }
+            return new MediaScan(video, audio);
+        } finally {
+            av_packet_free(packet);
+            avformat_close_input(context);
+        }
+    }
+
+    /**
+     * @param video First video stream, null if there is none
+     * @param audio First audio stream, null if there is none
+     */
+    private record MediaScan(StreamStats video, StreamStats audio) {
+    }
+
+    private static final class StreamStats {
+
+        private final int codecId;
+        private final double timeBaseSeconds;
+        private final long maxGap;
+        // Packets with payload. Empty packets only stand for dropped frames, e.g. in AVI
+        private long packets;
+        private long firstTimestamp = AV_NOPTS_VALUE;
+        private long lastTimestamp = AV_NOPTS_VALUE;
+        private long endTimestamp = AV_NOPTS_VALUE;
+        private int backwardSteps;
+        private int gaps;
+
+        StreamStats(AVStream stream) {
+            AVRational timeBase = stream.time_base();
+            this.codecId = stream.codecpar().codec_id();
+            this.timeBaseSeconds = (double) timeBase.num() / timeBase.den();
+            this.maxGap = Math.round(MAX_TIMESTAMP_GAP_SECONDS / timeBaseSeconds);
+        }
+
+        void add(AVPacket packet) {
+            if (packet.size() > 0) {
+                packets++;
+            }
+            long decodeTimestamp = packet.dts() != AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+            if (decodeTimestamp == AV_NOPTS_VALUE) {
+                return;
+            }
+            if (firstTimestamp == AV_NOPTS_VALUE) {
+                firstTimestamp = decodeTimestamp;
+            } else if (decodeTimestamp <= lastTimestamp) {
+                backwardSteps++;
+            } else if (decodeTimestamp - lastTimestamp > maxGap) {
+                gaps++;
+            }
+            lastTimestamp = decodeTimestamp;
+            long presentationTimestamp = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : decodeTimestamp;
+            endTimestamp = Math.max(endTimestamp, presentationTimestamp + Math.max(0, packet.duration()));
+        }
+
+        double durationSeconds() {
+            return firstTimestamp == AV_NOPTS_VALUE ? 0 : (endTimestamp - firstTimestamp) * timeBaseSeconds;
+        }
+    }
+}
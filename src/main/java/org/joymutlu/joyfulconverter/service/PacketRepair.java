@@ -0,0 +1,271 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.bytedeco.ffmpeg.avcodec.AVBSFContext;
+import org.bytedeco.ffmpeg.avcodec.AVBitStreamFilter;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.javacpp.BytePointer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_MPEG4;
+import static org.bytedeco.ffmpeg.global.avcodec.av_bsf_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_bsf_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_bsf_get_by_name;
+import static org.bytedeco.ffmpeg.global.avcodec.av_bsf_init;
+import static org.bytedeco.ffmpeg.global.avcodec.av_bsf_receive_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.av_bsf_send_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_clone;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_copy;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.av_q2d;
+
+/**
+ * Repairs the video packets of a remux on their way to the muxer, so that files with DivX/Xvid
+ * quirks can still be copied losslessly instead of being re-encoded.
+ * <ul>
+ *     <li>MPEG-4 Part 2 goes through the {@code mpeg4_unpack_bframes} bitstream filter, which splits
+ *     "packed" B-frames (DivX stores a P- and a B-frame in one packet, followed by an empty one) into
+ *     one frame per packet, as MP4 and MKV require</li>
+ *     <li>AVI has no presentation timestamps. With B-frames the demuxer can only derive them for the
+ *     B-frames, the muxer would show every other frame in decoding order. An I- or P-frame is shown
+ *     when the next one is decoded, so it is held back with its B-frames until then</li>
+ *     <li>Missing decoding timestamps are continued from the previous frame, decoding timestamps
+ *     that do not increase are moved behind the previous one, and presentation timestamps never
+ *     come before decoding</li>
+ * </ul>
+ * Only the first video stream is repaired, all other packets are written as they are.
+ */
+class PacketRepair implements AutoCloseable {
+
+    private static final String UNPACK_BFRAMES = "mpeg4_unpack_bframes";
+    private static final int VOP_START_CODE = 0xB6;
+    private static final int VOP_TYPE_B = 2;
+
+    @FunctionalInterface
+    interface PacketWriter {
+        void write(AVPacket packet) throws Exception;
+    }
+
+    private final AVStream stream;
+    private final boolean mpeg4;
+    private final boolean reorders;
+    private final long frameDuration;
+    private AVBSFContext unpacker;
+
+    /** Held back I- or P-frame without a presentation timestamp, followed by its B-frames */
+    private final List<AVPacket> pending = new ArrayList<>();
+    private long lastDts = AV_NOPTS_VALUE;
+
+    private long packetsIn;
+    private long packetsOut;
+    private long regeneratedTimestamps;
+    private long correctedTimestamps;
+
+    /**
+     * Sets up the bitstream filter and updates the stream's codec parameters to its output, so the
+     * recorder has to be started afterwards.
+     *
+     * @param stream Video stream of the input
+     * @throws IOException If the bitstream filter cannot be set up
+     */
+    PacketRepair(AVStream stream) throws IOException {
+        this.stream = stream;
+        this.mpeg4 = stream.codecpar().codec_id() == AV_CODEC_ID_MPEG4;
+        this.reorders = stream.codecpar().video_delay() > 0;
+        double secondsPerFrame = stream.avg_frame_rate().num() > 0 ? 1 / av_q2d(stream.avg_frame_rate()) : 0;
+        this.frameDuration = Math.max(1, Math.round(secondsPerFrame / av_q2d(stream.time_base())));
+        if (mpeg4) {
+            AVBitStreamFilter filter = av_bsf_get_by_name(UNPACK_BFRAMES);
+            if (filter == null) {
+                throw new IOException("Bitstream filter not available: " + UNPACK_BFRAMES);
+            }
+            unpacker = new AVBSFContext(null);
+            if (av_bsf_alloc(filter, unpacker) < 0
+                    || avcodec_parameters_copy(unpacker.par_in(), stream.codecpar()) < 0) {
+                throw new IOException("Could not allocate bitstream filter " + UNPACK_BFRAMES);
+            }
+            unpacker.time_base_in(stream.time_base());
+            if (av_bsf_init(unpacker) < 0) {
+                throw new IOException("Could not initialize bitstream filter " + UNPACK_BFRAMES);
+            }
+            avcodec_parameters_copy(stream.codecpar(), unpacker.par_out());
+        }
+    }
+
+    /**
+     * Repairs a packet of the video stream and writes the results, which can be none (the packet is
+     * held back or was empty) or several (the held back packets are complete).
+     * The packet itself is not modified.
+     */
+    void write(AVPacket packet, PacketWriter writer) throws Exception {
+        packetsIn++;
+        if (unpacker == null) {
+            repair(av_packet_clone(packet), writer);
+            return;
+        }
+        AVPacket reference = av_packet_clone(packet);
+        int result = av_bsf_send_packet(unpacker, reference);
+        av_packet_free(reference);
+        if (result < 0) {
+            throw new IOException("Bitstream filter " + UNPACK_BFRAMES + " rejected a packet: error " + result);
+        }
+        drainUnpacker(writer);
+    }
+
+    /**
+     * Writes what the bitstream filter and the reordering still hold, after the last packet.
+     */
+    void flush(PacketWriter writer) throws Exception {
+        if (unpacker != null) {
+            av_bsf_send_packet(unpacker, null);
+            drainUnpacker(writer);
+        }
+        if (!pending.isEmpty()) {
+            pending.get(0).pts(lastDts + frameDuration); // Shown after the last decoded frame
+            writePending(writer);
+        }
+    }
+
+    /**
+     * @return Whether any packet was changed on its way to the muxer
+     */
+    boolean hasRepaired() {
+        return packetsIn != packetsOut || regeneratedTimestamps > 0 || correctedTimestamps > 0;
+    }
+
+    String describe() {
+        return String.format("%d packets unpacked to %d, %d presentation timestamps regenerated, %d timestamps corrected",
+                packetsIn, packetsOut, regeneratedTimestamps, correctedTimestamps);
+    }
+
+    @Override
+    public void close() {
+        pending.forEach(packet -> av_packet_free(packet));
+        pending.clear();
+        if (unpacker != null) {
+            av_bsf_free(unpacker);
+            unpacker = null;
+        }
+    }
+
+    private void drainUnpacker(PacketWriter writer) throws Exception {
+        while (true) {
+            AVPacket unpacked = av_packet_alloc();
+            if (av_bsf_receive_packet(unpacker, unpacked) < 0) { // Needs more input, or done after the flush
+                av_packet_free(unpacked);
+                return;
+            }
+            repair(unpacked, writer);
+        }
+    }
+
+    /**
+     * Takes ownership of the packet.
+     */
+    private void repair(AVPacket packet, PacketWriter writer) throws Exception {
+        packetsOut++;
+        long dts = packet.dts();
+        if (dts == AV_NOPTS_VALUE) {
+            dts = lastDts == AV_NOPTS_VALUE ? (packet.pts() != AV_NOPTS_VALUE ? packet.pts() : 0) : lastDts + frameDuration;
+            correctedTimestamps++;
+        } else if (lastDts != AV_NOPTS_VALUE && dts <= lastDts) {
+            dts = lastDts + 1;
+            correctedTimestamps++;
+        }
+        packet.dts(dts);
+        lastDts = dts;
+
+        if (!reorders) {
+            if (packet.pts() == AV_NOPTS_VALUE) {
+                packet.pts(dts); // No B-frames, shown in decoding order
+                regeneratedTimestamps++;
+            }
+            writeChecked(packet, writer);
+            return;
+        }
+
+        boolean bFrame = mpeg4 ? vopType(packet) == VOP_TYPE_B : packet.pts() != AV_NOPTS_VALUE;
+        if (bFrame) {
+            if (packet.pts() == AV_NOPTS_VALUE) {
+                packet.pts(dts); // Shown right away
+                regeneratedTimestamps++;
+            }
+            if (pending.isEmpty()) {
+                writeChecked(packet, writer);
+            } else {
+                pending.add(packet);
+            }
+            return;
+        }
+        if (!pending.isEmpty()) {
+            pending.get(0).pts(dts); // The previous reference frame is shown when this one is decoded
+            writePending(writer);
+        }
+        if (packet.pts() != AV_NOPTS_VALUE) {
+            writeChecked(packet, writer);
+        } else {
+            pending.add(packet);
+            regeneratedTimestamps++;
+        }
+    }
+
+    private void writePending(PacketWriter writer) throws Exception {
+        int written = 0;
+        try {
+            for (AVPacket packet : pending) {
+                written++;
+                writeChecked(packet, writer); // Frees the packet, also if writing it fails
+            }
+        } finally {
+            // A failed write leaves the rest unwritten, and close() no longer sees them once cleared
+            pending.subList(written, pending.size()).forEach(packet -> av_packet_free(packet));
+            pending.clear();
+        }
+    }
+
+    private void writeChecked(AVPacket packet, PacketWriter writer) throws Exception {
+        try {
+            if (packet.pts() < packet.dts()) {
+                packet.pts(packet.dts());
+                correctedTimestamps++;
+            }
+            packet.stream_index(stream.index());
+            writer.write(packet);
+        } finally {
+            av_packet_free(packet);
+        }
+    }
+
+    /**
+     * @return Coding type of the first VOP in the packet (0 I, 1 P, 2 B, 3 S), -1 if there is none
+     */
+    private static int vopType(AVPacket packet) {
+        BytePointer data = packet.data();
+        int size = packet.size();
+        if (data == null || size < 5) {
+            return -1;
+        }
+        byte[] bytes = new byte[Math.min(size, 256)]; // Past the VOL and user data headers of keyframes
+        data.position(0).get(bytes);
+        int type = findVopType(bytes);
+        if (type < 0 && size > bytes.length) {
+            bytes = new byte[size];
+            data.position(0).get(bytes);
+            type = findVopType(bytes);
+        }
+        return type;
+    }
+
+    private static int findVopType(byte[] bytes) {
+        for (int i = 0; i + 4 < bytes.length; i++) {
+            if (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 1 && (bytes[i + 3] & 0xFF) == VOP_START_CODE) {
+                return (bytes[i + 4] & 0xFF) >> 6;
+            }
+        }
+        return -1;
+    }
+}
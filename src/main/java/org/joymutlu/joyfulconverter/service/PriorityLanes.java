@@ -0,0 +1,116 @@
+package org.joymutlu.joyfulconverter.service;
+
+/**
+ * Lets interactive conversions preempt batch conversions, so that one file someone waits for does not
+ * wait for a whole batch.
+ * <p>
+ * Interactive conversions run on their own threads (see {@link ConversionThreads}) and never queue
+ * behind batch ones. While they run, batch conversions pause at their next keyframe, one for every
+ * running interactive conversion, and give it their CPU and disk. A paused conversion keeps its
+ * decoder, encoder and output open and continues with the next GOP as soon as the interactive one is
+ * done, so a batch loses nothing but the time it lent. The paused conversion also keeps its disk
+ * space and native memory reservations, which the interactive one therefore never waits for (see
+ * {@link DiskSpaceGuard} and {@link NativeMemoryGovernor}).
+ */
+public final class PriorityLanes {
+
+    private static final long WAIT_MILLIS = 250;
+
+    private static final PriorityLanes SHARED = new PriorityLanes();
+
+    private int interactive;
+    private int yielding;
+    // Read on every keyframe of every batch conversion, without taking the lock
+    private volatile boolean contended;
+
+    PriorityLanes() {
+    }
+
+    /**
+     * @return The lanes all conversions of this process share
+     */
+    public static PriorityLanes shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers one conversion attempt in its lane.
+     *
+     * @param name Shown in the log when the attempt pauses
+     * @return Ticket to close when the attempt is done
+     */
+    Ticket enter(ConversionLane lane, String name) {
+        if (lane.isInteractive()) {
+            synchronized (this) {
+                interactive++;
+                contended = true;
+            }
+        }
+        return new Ticket(lane, name);
+    }
+
+    private synchronized void leaveInteractive() {
+        interactive--;
+        contended = interactive > 0;
+        notifyAll();
+    }
+
+    /**
+     * Lane of one running conversion attempt.
+     */
+    final class Ticket implements AutoCloseable {
+        private final ConversionLane lane;
+        private final String name;
+        private boolean closed;
+
+        private Ticket(ConversionLane lane, String name) {
+            this.lane = lane;
+            this.name = name;
+        }
+
+        /**
+         * Pauses a batch conversion while interactive ones need its capacity. Call at keyframes only,
+         * so that the conversion stops between two GOPs. Pausing and cancelling the conversion work
+         * while it waits.
+         *
+         * @throws InterruptedException If the conversion was cancelled while waiting
+         */
+        void yieldPoint(JobControl control) throws InterruptedException {
+            if (lane.isInteractive() || !contended) {
+                return;
+            }
+            synchronized (PriorityLanes.this) {
+                if (yielding >= interactive) {
+                    return; // Every interactive conversion has borrowed a batch conversion's capacity already
+                }
+                yielding++;
+            }
+            long startNanos = System.nanoTime();
+            System.out.println("Pausing " + name + " at a keyframe for an interactive conversion");
+            try {
+                while (true) {
+                    control.checkpoint();
+                    synchronized (PriorityLanes.this) {
+                        if (yielding > interactive) {
+                            return;
+                        }
+                        PriorityLanes.this.wait(WAIT_MILLIS);
+                    }
+                }
+            } finally {
+                synchronized (PriorityLanes.this) {
+                    yielding--;
+                }
+                System.out.printf("Resuming %s after %d ms%n", name, (System.nanoTime() - startNanos) / 1_000_000);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed && lane.isInteractive()) {
+                leaveInteractive();
+            }
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber;
+import org.joymutlu.joyfulconverter.VideoContainerType;
+
+/**
+ * The input of one conversion, opened once and shared by all attempts of the fallback chain (remux,
+ * MKV remux, re-encode). Every attempt after the first starts from the beginning of the file again
+ * without probing it, and the AVI demuxer reads the index only once.
+ * <p>
+ * The first open probes with a bounded {@code probesize} and {@code analyzeduration}, which is
+ * enough for the headers of AVI, MKV and MP4. If a stream is still missing its size, pixel or sample
+ * format or frame rate after that, the file is opened again with FFmpeg's full probe. Which of the
+ * two a file needed is remembered for the process, so a retry or a second conversion of the same
+ * file goes straight to the probe that worked.
+ */
+class ProbedInput implements AutoCloseable {
+
+    private static final String FAST_PROBE_SIZE = Integer.toString(512 * 1024);
+    private static final String FAST_ANALYZE_MICROS = Integer.toString(500_000);
+    private static final int PROBE_CACHE_ENTRIES = 4096;
+
+    /** Sources that needed the full probe, by {@link MediaSource#cacheKey()} */
+    private static final Map<String, Boolean> FULL_PROBE_NEEDED = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > PROBE_CACHE_ENTRIES;
+        }
+    };
+
+    private final MediaSource source;
+    private final VideoContainerType containerType;
+    private final JobControl control;
+    private FFmpegFrameGrabber grabber;
+    private ControlledInputStream stream;
+    private long openMillis;
+    private int attempts;
+
+    ProbedInput(MediaSource source, VideoContainerType containerType, JobControl control) {
+        this.source = source;
+        this.containerType = containerType;
+        this.control = control;
+    }
+
+    MediaSource getSource() {
+        return source;
+    }
+
+    /**
+     * @return Length of the input in bytes
+     */
+    long getSize() throws IOException {
+        return source.size();
+    }
+
+    VideoContainerType getContainerType() {
+        return containerType;
+    }
+
+    /**
+     * @return Time the input took to open and probe, 0 if it was not opened
+     */
+    long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Opens and probes the input on the first call. Later calls return the same grabber, positioned at
+     * the start of the input again.
+     */
+    FFmpegFrameGrabber grabber() throws IOException {
+        attempts++;
+        if (grabber == null) {
+            open();
+        } else {
+            rewind();
+        }
+        return grabber;
+    }
+
+    private void open() throws IOException {
+        long startNanos = System.nanoTime();
+        String key = source.cacheKey();
+        boolean fullProbe = key != null && knownToNeedFullProbe(key);
+        grabber = start(!fullProbe);
+        if (!fullProbe && !isComplete(grabber.getFormatContext())) {
+            System.out.println("Fast probe of " + source + " was incomplete, probing again in full");
+            closeGrabber();
+            fullProbe = true;
+            grabber = start(false);
+        }
+        if (key != null) {
+            rememberProbe(key, fullProbe);
+        }
+        openMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        System.out.printf("Opened %s in %d ms (%s probe)%n", source, openMillis, fullProbe ? "full" : "fast");
+    }
+
+    /**
+     * Opens the input through {@link MediaSource#open}, so that pausing and cancelling also work while
+     * FFmpeg is still probing the file. The sniffed container selects the demuxer directly.
+     */
+    private FFmpegFrameGrabber start(boolean fastProbe) throws IOException {
+        stream = source.open(control);
+        FFmpegFrameGrabber started = new FFmpegFrameGrabber(stream);
+        started.setFormat(containerType.getDemuxerName());
+        if (fastProbe) {
+            started.setOption("probesize", FAST_PROBE_SIZE);
+            started.setOption("analyzeduration", FAST_ANALYZE_MICROS);
+        }
+        try {
+            started.start();
+        } catch (FFmpegFrameGrabber.Exception e) {
+            started.close();
+            throw e;
+        }
+        return started;
+    }
+
+    /**
+     * Seeks back to the start for the next attempt. Attempts only read packets before they fail, the
+     * re-encode that decodes comes last, so there are no decoded frames to flush.
+     */
+    private void rewind() throws IOException {
+        AVFormatContext input = grabber.getFormatContext();
+        long start = input.start_time() != avutil.AV_NOPTS_VALUE ? input.start_time() : 0;
+        if (avformat.av_seek_frame(input, -1, start, avformat.AVSEEK_FLAG_BACKWARD) < 0) {
+            throw new IOException("Could not seek back to the start of " + source + " for attempt " + attempts);
+        }
+        stream.clearReadError();
+    }
+
+    /**
+     * Tells the end of the input from a read that failed or was cancelled, which the grabber reports
+     * the same way. Call when the grabber returned no more packets, before the output is finalized.
+     *
+     * @throws InterruptedException If the conversion was cancelled
+     * @throws IOException          If the input could not be read to its end
+     */
+    void checkEndOfInput() throws IOException, InterruptedException {
+        control.checkpoint();
+        try {
+            stream.checkReadError();
+        } catch (InterruptedIOException e) {
+            InterruptedException cancelled = new InterruptedException(e.getMessage());
+            cancelled.initCause(e);
+            throw cancelled;
+        }
+    }
+
+    /**
+     * @return Whether every video and audio stream got the parameters the attempts rely on
+     */
+    private static boolean isComplete(AVFormatContext input) {
+        for (int i = 0; i < input.nb_streams(); i++) {
+            AVStream stream = input.streams(i);
+            AVCodecParameters parameters = stream.codecpar();
+            if (parameters.codec_type() == avutil.AVMEDIA_TYPE_VIDEO) {
+                boolean hasFrameRate = stream.avg_frame_rate().num() > 0 || stream.r_frame_rate().num() > 0;
+                if (parameters.width() <= 0 || parameters.height() <= 0 || parameters.format() < 0 || !hasFrameRate) {
+                    return false;
+                }
+            } else if (parameters.codec_type() == avutil.AVMEDIA_TYPE_AUDIO) {
+                if (parameters.sample_rate() <= 0 || parameters.ch_layout().nb_channels() <= 0 || parameters.format() < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean knownToNeedFullProbe(String key) {
+        synchronized (FULL_PROBE_NEEDED) {
+            return Boolean.TRUE.equals(FULL_PROBE_NEEDED.get(key));
+        }
+    }
+
+    private static void rememberProbe(String key, boolean fullProbe) {
+        synchronized (FULL_PROBE_NEEDED) {
+            FULL_PROBE_NEEDED.put(key, fullProbe);
+        }
+    }
+
+    private void closeGrabber() {
+        try {
+            grabber.close();
+        } catch (FrameGrabber.Exception e) {
+            System.err.println("Failed to close " + source + ": " + e.getMessage());
+        }
+        grabber = null;
+    }
+
+    @Override
+    public void close() {
+        if (grabber != null) {
+            closeGrabber();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.joymutlu.joyfulconverter.VideoContainerType;
+import org.joymutlu.joyfulconverter.util.JsonUtils;
+
+/**
+ * Remembers which conversion path worked for inputs of the same kind, so that a batch of files from
+ * the same camera or ripper does not try the same failing MP4 remux for every one of them.
+ * <p>
+ * Inputs are grouped by a signature of container, video codec and tag, pixel format, time base,
+ * B-frames and audio codec, together with the requested output format. Once a path other than the
+ * direct remux succeeded for a signature, later files of it skip the attempts that failed before.
+ * If the learned path fails, or a file with a remembered direct remux needs a fallback, the entry
+ * starts over. Every {@value #RECHECK_AFTER} skips the full chain runs once more, in case a newer
+ * version handles the input better.
+ * <p>
+ * The entries are saved to {@code ~/.joyful-converter/strategies.json} (or {@code -Djoyful.strategyCache=FILE})
+ * after every change and shared by all conversions of the process.
+ */
+public final class StrategyCache {
+
+    /**
+     * Conversion paths in the order {@link ConversionService} tries them.
+     */
+    public enum Strategy {
+        /** Remux to the requested format */
+        REMUX,
+        /** Remux to MKV after the requested format failed */
+        REMUX_MKV,
+        REENCODE
+    }
+
+    private static final int RECHECK_AFTER = 200;
+    private static final StrategyCache SHARED = new StrategyCache(Path.of(System.getProperty("joyful.strategyCache",
+            Path.of(System.getProperty("user.home"), ".joyful-converter", "strategies.json").toString())));
+
+    private final Path file;
+    private Map<String, Entry> entries;
+
+    StrategyCache(Path file) {
+        this.file = file;
+    }
+
+    public static StrategyCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts the bookkeeping of one conversion.
+     *
+     * @param enabled False if nothing should be learned or skipped, e.g. for a pipe output
+     */
+    Decision decide(String outputFormat, boolean enabled) {
+        return new Decision(outputFormat, enabled);
+    }
+
+    /**
+     * Signature of a probed input. Call before the codec tags are reset for the output.
+     */
+    static String signature(AVFormatContext input, VideoContainerType containerType) {
+        StringBuilder signature = new StringBuilder(containerType.getDemuxerName());
+        signature.append(" flags=").append(Integer.toHexString(input.iformat().flags()));
+        AVStream video = null;
+        AVStream audio = null;
+        for (int i = 0; i < input.nb_streams(); i++) {
+            int type = input.streams(i).codecpar().codec_type();
+            if (type == avutil.AVMEDIA_TYPE_VIDEO && video == null) {
+                video = input.streams(i);
+            } else if (type == avutil.AVMEDIA_TYPE_AUDIO && audio == null) {
+                audio = input.streams(i);
+            }
+        }
+        if (video != null) {
+            AVCodecParameters parameters = video.codecpar();
+            BytePointer pixelFormat = avutil.av_get_pix_fmt_name(parameters.format());
+            signature.append(" video=").append(avcodec.avcodec_get_name(parameters.codec_id()).getString())
+                    .append('/').append(fourcc(parameters.codec_tag()))
+                    .append(' ').append(pixelFormat != null ? pixelFormat.getString() : "unknown")
+                    .append(" tb=").append(video.time_base().num()).append('/').append(video.time_base().den())
+                    .append(" bframes=").append(parameters.video_delay() > 0);
+        }
+        if (audio != null) {
+            signature.append(" audio=").append(avcodec.avcodec_get_name(audio.codecpar().codec_id()).getString());
+        }
+        return signature.toString();
+    }
+
+    private static String fourcc(int tag) {
+        StringBuilder fourcc = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            char c = (char) ((tag >> (8 * i)) & 0xFF);
+            fourcc.append(Character.isLetterOrDigit(c) ? c : '.');
+        }
+        return fourcc.toString();
+    }
+
+    private synchronized Entry get(String key) {
+        return entries().get(key);
+    }
+
+    private synchronized void succeeded(String key, Strategy strategy, boolean remuxFailed, boolean mkvFailed, boolean skipped) {
+        Entry entry = entries().get(key);
+        if (entry == null || entry.strategy != strategy) {
+            if (entry != null) {
+                System.out.println("Learned strategy for [" + key + "] changed from " + entry.strategy + " to " + strategy);
+            }
+            entry = new Entry(strategy);
+            entries.put(key, entry);
+        }
+        entry.successes++;
+        entry.remuxFailures += remuxFailed ? 1 : 0;
+        entry.mkvFailures += mkvFailed ? 1 : 0;
+        if (!skipped) {
+            entry.skipsSinceCheck = 0; // The full chain ran and confirmed the strategy
+        }
+        entry.updatedAtMillis = System.currentTimeMillis();
+        save();
+    }
+
+    private synchronized void forget(String key) {
+        Entry entry = entries().remove(key);
+        if (entry != null) {
+            System.out.println("Learned strategy " + entry.strategy + " failed for [" + key + "], starting over");
+            save();
+        }
+    }
+
+    private synchronized void skipped(String key) {
+        Entry entry = entries().get(key);
+        if (entry != null) {
+            entry.skipsSinceCheck++;
+            entry.skippedAttempts++;
+            save();
+        }
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            try {
+                if (Files.exists(file)) {
+                    JsonUtils.parseObject(Files.readString(file, StandardCharsets.UTF_8))
+                            .forEach((key, value) -> entries.put(key, Entry.fromMap(asMap(value))));
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring unreadable strategy cache " + file + ": " + e.getMessage());
+                entries.clear();
+            }
+        }
+        return entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    private void save() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        entries.forEach((key, entry) -> json.put(key, entry.toMap()));
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temporary, JsonUtils.toJson(json), StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save strategy cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Learned path and statistics of one signature and output format.
+     */
+    private static final class Entry {
+        private final Strategy strategy;
+        private long successes;
+        private long remuxFailures;
+        private long mkvFailures;
+        private long skippedAttempts;
+        private long skipsSinceCheck;
+        private long updatedAtMillis;
+
+        private Entry(Strategy strategy) {
+            this.strategy = strategy;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("strategy", strategy);
+            values.put("successes", successes);
+            values.put("remuxFailures", remuxFailures);
+            values.put("mkvFailures", mkvFailures);
+            values.put("skippedAttempts", skippedAttempts);
+            values.put("skipsSinceCheck", skipsSinceCheck);
+            values.put("updatedAt", updatedAtMillis);
+            return values;
+        }
+
+        private static Entry fromMap(Map<String, Object> values) {
+            Entry entry = new Entry(Strategy.valueOf((String) values.get("strategy")));
+            entry.successes = ((Number) values.get("successes")).longValue();
+            entry.remuxFailures = ((Number) values.get("remuxFailures")).longValue();
+            entry.mkvFailures = ((Number) values.get("mkvFailures")).longValue();
+            entry.skippedAttempts = ((Number) values.get("skippedAttempts")).longValue();
+            entry.skipsSinceCheck = ((Number) values.get("skipsSinceCheck")).longValue();
+            entry.updatedAtMillis = ((Number) values.get("updatedAt")).longValue();
+            return entry;
+        }
+    }
+
+    /**
+     * Thrown by the first remux attempt, right after probing, when the input's signature learned a
+     * later path. Nothing has been written at that point.
+     */
+    static final class LearnedStrategyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final Strategy strategy;
+
+        private LearnedStrategyException(Strategy strategy, String message) {
+            super(message);
+            this.strategy = strategy;
+        }
+
+        Strategy strategy() {
+            return strategy;
+        }
+    }
+
+    /**
+     * What one conversion found out about its input's signature.
+     */
+    final class Decision {
+        private final String outputFormat;
+        private final boolean enabled;
+        private String key;
+        private boolean followsLearned;
+        private boolean learnable = true;
+        private boolean remuxFailed;
+        private boolean mkvFailed;
+
+        private Decision(String outputFormat, boolean enabled) {
+            this.outputFormat = outputFormat.toLowerCase();
+            this.enabled = enabled;
+        }
+
+        /**
+         * Called once the input is probed, only the first call counts.
+         *
+         * @throws LearnedStrategyException If the signature learned a path other than the direct remux
+         */
+        void probed(String signature) throws LearnedStrategyException {
+            if (!enabled || key != null) {
+                return;
+            }
+            key = signature + " -> " + outputFormat;
+            Entry entry = get(key);
+            if (entry == null || entry.strategy == Strategy.REMUX) {
+                return;
+            }
+            if (entry.skipsSinceCheck >= RECHECK_AFTER) {
+                System.out.println("Re-checking learned strategy " + entry.strategy + " for [" + key + "]");
+                return;
+            }
+            skipped(key);
+            followsLearned = true;
+            throw new LearnedStrategyException(entry.strategy, String.format(
+                    "Learned strategy for [%s]: %s after %d successes (%d remux and %d MKV failures), skipping earlier attempts",
+                    key, entry.strategy, entry.successes, entry.remuxFailures, entry.mkvFailures));
+        }
+
+        /** The remux to the requested format failed for a codec or container incompatibility */
+        void remuxFailed() {
+            remuxFailed = true;
+        }
+
+        /** The MKV fallback failed for a codec or container incompatibility */
+        void mkvFailed() {
+            mkvFailed = true;
+        }
+
+        /** A failure that says more about the file than about its kind, nothing is learned from it */
+        void unlearnable() {
+            learnable = false;
+        }
+
+        void succeeded(Strategy strategy) {
+            if (key != null && learnable) {
+                StrategyCache.this.succeeded(key, strategy, remuxFailed, mkvFailed, followsLearned);
+            }
+        }
+
+        /** The learned path failed, the signature is forgotten */
+        void mismatched() {
+            if (key != null && followsLearned) {
+                forget(key);
+            }
+        }
+    }
+}
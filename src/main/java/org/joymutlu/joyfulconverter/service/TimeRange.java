@@ -0,0 +1,44 @@
+package org.joymutlu.joyfulconverter.service;
+
+/**
+ * Segment of the input to convert. Only the packets of the segment are read: a remux starts at the
+ * keyframe before the start, a re-encode decodes from that keyframe and encodes from the exact start.
+ *
+ * @param startSeconds Start of the segment, 0 for the start of the input
+ * @param endSeconds   End of the segment, 0 for the end of the input
+ */
+public record TimeRange(double startSeconds, double endSeconds) {
+
+    public static final TimeRange ALL = new TimeRange(0, 0);
+
+    public TimeRange {
+        if (startSeconds < 0 || endSeconds < 0 || (endSeconds > 0 && endSeconds <= startSeconds)) {
+            throw new IllegalArgumentException("Invalid time range: " + startSeconds + " to " + endSeconds + " seconds");
+        }
+    }
+
+    public boolean isAll() {
+        return startSeconds == 0 && endSeconds == 0;
+    }
+
+    public boolean hasEnd() {
+        return endSeconds > 0;
+    }
+
+    /**
+     * @param inputSeconds Length of the input, 0 if unknown
+     * @return Length of the segment, 0 if unknown
+     */
+    public double lengthSeconds(double inputSeconds) {
+        double end = hasEnd() && (inputSeconds <= 0 || endSeconds < inputSeconds) ? endSeconds : inputSeconds;
+        return end > startSeconds ? end - startSeconds : 0;
+    }
+
+    long startMicros() {
+        return Math.round(startSeconds * 1_000_000);
+    }
+
+    long endMicros() {
+        return hasEnd() ? Math.round(endSeconds * 1_000_000) : Long.MAX_VALUE;
+    }
+}
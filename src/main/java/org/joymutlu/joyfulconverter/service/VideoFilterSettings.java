@@ -0,0 +1,120 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picture normalization applied while re-encoding, in the same decode/encode pass as the conversion.
+ *
+ * @param deinterlacer Deinterlacing filter, {@link Deinterlacer#NONE} to keep the fields as they are
+ * @param width        Output width in pixels, 0 to derive it from the height (or keep it)
+ * @param height       Output height in pixels, 0 to derive it from the width (or keep it)
+ * @param frameRate    Output frame rate, frames are dropped or duplicated to reach it. 0 keeps the source rate
+ */
+public record VideoFilterSettings(Deinterlacer deinterlacer, int width, int height, double frameRate) {
+
+    public static final VideoFilterSettings NONE = new VideoFilterSettings(Deinterlacer.NONE, 0, 0, 0);
+
+    public enum Deinterlacer {
+        NONE(null),
+        /** Fast, good enough for most sources */
+        YADIF("yadif"),
+        /** Slower than yadif, noticeably cleaner edges on DV material */
+        BWDIF("bwdif");
+
+        private final String filterName;
+
+        Deinterlacer(String filterName) {
+            this.filterName = filterName;
+        }
+    }
+
+    public VideoFilterSettings {
+        if (deinterlacer == null) {
+            deinterlacer = Deinterlacer.NONE;
+        }
+        if (width < 0 || height < 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Output size must be even and positive: " + width + "x" + height);
+        }
+        if (frameRate < 0) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + frameRate);
+        }
+    }
+
+    /**
+     * Builds settings from user input.
+     *
+     * @param deinterlacer Deinterlacer name (case insensitive), null or blank for none
+     * @param size         "1280x720", or "1280x" / "x720" to keep the aspect ratio, null or blank to keep the size
+     * @param frameRate    Frames per second, null or blank to keep the source rate
+     * @throws IllegalArgumentException if a value cannot be parsed
+     */
+    public static VideoFilterSettings parse(String deinterlacer, String size, String frameRate) {
+        Deinterlacer parsedDeinterlacer = isBlank(deinterlacer) ? Deinterlacer.NONE : Deinterlacer.valueOf(deinterlacer.trim().toUpperCase(Locale.ROOT));
+        int width = 0;
+        int height = 0;
+        if (!isBlank(size)) {
+            String[] dimensions = size.trim().toLowerCase(Locale.ROOT).split("x", -1);
+            if (dimensions.length != 2) {
+                throw new IllegalArgumentException("Size must look like 1280x720, 1280x or x720: " + size);
+            }
+            width = dimensions[0].isBlank() ? 0 : Integer.parseInt(dimensions[0].trim());
+            height = dimensions[1].isBlank() ? 0 : Integer.parseInt(dimensions[1].trim());
+        }
+        double parsedFrameRate = isBlank(frameRate) ? 0 : Double.parseDouble(frameRate.trim().replace(',', '.'));
+        return new VideoFilterSettings(parsedDeinterlacer, width, height, parsedFrameRate);
+    }
+
+    public boolean isEmpty() {
+        return deinterlacer == Deinterlacer.NONE && width == 0 && height == 0 && frameRate == 0;
+    }
+
+    /**
+     * @param bottomFieldFirst Field order of the source. The frames reaching the filter carry no field
+     *                         flags, so the deinterlacer has to be told, e.g. DV is bottom field first
+     * @return FFmpeg filter graph description, e.g. "bwdif=parity=bff,scale=1280:-2:flags=lanczos,fps=25"
+     */
+    String toFilterGraph(boolean bottomFieldFirst) {
+        List<String> filters = new ArrayList<>();
+        if (deinterlacer != Deinterlacer.NONE) {
+            filters.add(deinterlacer.filterName + "=parity=" + (bottomFieldFirst ? "bff" : "tff"));
+        }
+        if (width > 0 || height > 0) {
+            // -2 keeps the aspect ratio and rounds to the even sizes yuv420p needs
+            filters.add("scale=" + (width > 0 ? width : -2) + ":" + (height > 0 ? height : -2) + ":flags=lanczos");
+        }
+        if (frameRate > 0) {
+            filters.add(String.format(Locale.ROOT, "fps=%s", frameRate));
+        }
+        return String.join(",", filters);
+    }
+
+    /**
+     * @return Width of the filtered picture, computed the way FFmpeg's scale filter does
+     */
+    int outputWidth(int sourceWidth, int sourceHeight) {
+        if (width > 0) {
+            return width;
+        }
+        return height > 0 ? evenRescale(height, sourceWidth, sourceHeight) : sourceWidth;
+    }
+
+    /**
+     * @return Height of the filtered picture, computed the way FFmpeg's scale filter does
+     */
+    int outputHeight(int sourceWidth, int sourceHeight) {
+        if (height > 0) {
+            return height;
+        }
+        return width > 0 ? evenRescale(width, sourceHeight, sourceWidth) : sourceHeight;
+    }
+
+    private static int evenRescale(int value, int numerator, int denominator) {
+        return (int) Math.round((double) value * numerator / (denominator * 2.0)) * 2;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
@@ -0,0 +1,286 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a folder tree and hands over files once they stopped changing.
+ * <p>
+ * Directories are registered recursively, including ones created while watching. An OVERFLOW event
+ * (lost notifications) triggers a full rescan, so no file is missed. A file is delivered only after
+ * its size and modification time stayed the same for the stability window, and only if it is new or
+ * changed since the last delivery. While nothing is pending the watch thread blocks in
+ * {@link WatchService#take()} and uses no CPU.
+ * <p>
+ * Directories that vanish before they are registered, as the temp folders of capture tools do, are
+ * skipped. If watching stops for any other reason than {@link #close()}, the failure listener is told.
+ */
+public class WatchFolderService implements Closeable {
+
+    private static final long DEFAULT_STABILITY_MILLIS = 3000;
+
+    private final Path root;
+    private final Predicate<Path> fileFilter;
+    private final Consumer<Path> fileConsumer;
+    private final long stabilityMillis;
+
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    // Files that changed recently and are waiting to become stable
+    private final Map<Path, FileSnapshot> pendingFiles = new HashMap<>();
+    // Last snapshot handed to the consumer, used to skip unchanged files after rescans
+    private final Map<Path, FileSnapshot> deliveredFiles = new HashMap<>();
+
+    private WatchService watchService;
+    private Thread watchThread;
+    private volatile boolean running;
+    private volatile Consumer<Exception> failureListener = e -> { };
+
+    public WatchFolderService(Path root, Predicate<Path> fileFilter, Consumer<Path> fileConsumer) {
+        this(root, fileFilter, fileConsumer, DEFAULT_STABILITY_MILLIS);
+    }
+
+    /**
+     * @param root            Folder to watch (recursively)
+     * @param fileFilter      Only files accepted by this filter are delivered
+     * @param fileConsumer    Receives stable new or changed files, called on the watch thread
+     * @param stabilityMillis How long size and modification time must stay unchanged before delivery
+     */
+    public WatchFolderService(Path root, Predicate<Path> fileFilter, Consumer<Path> fileConsumer, long stabilityMillis) {
+        this.root = root;
+        this.fileFilter = fileFilter;
+        this.fileConsumer = fileConsumer;
+        this.stabilityMillis = stabilityMillis;
+    }
+
+    /**
+     * Registers the folder tree and starts the watch thread. Files already present are treated as new.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        running = true;
+        // Only the root has to be registered, a failure below it is logged and skipped
+        watchedDirectories.put(root.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), root);
+        registerAndScan(root);
+
+        watchThread = new Thread(this::watchLoop, "watch-folder-" + root.getFileName());
+        watchThread.setDaemon(true);
+        watchThread.start();
+        System.out.println("Watching folder: " + root);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @param failureListener Called on the watch thread if watching stopped because of an error
+     */
+    public void setFailureListener(Consumer<Exception> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close watch service: " + e.getMessage());
+            }
+        }
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        System.out.println("Stopped watching folder: " + root);
+    }
+
+    private void watchLoop() {
+        try {
+            while (running) {
+                // Block indefinitely when nothing is pending, otherwise wake up to re-check stability
+                WatchKey key = pendingFiles.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(stabilityMillis, TimeUnit.MILLISECONDS);
+
+                while (key != null) {
+                    processEvents(key);
+                    key = watchService.poll();
+                }
+                deliverStableFiles();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        } catch (Exception e) {
+            System.err.println("Watch folder " + root + " failed: " + e);
+            if (running) {
+                running = false;
+                failureListener.accept(e);
+            }
+        } finally {
+            running = false;
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                System.out.println("Watch events overflowed, rescanning " + root);
+                registerAndScan(root);
+                continue;
+            }
+            Path changed = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                pendingFiles.remove(changed);
+                deliveredFiles.remove(changed);
+            } else if (Files.isDirectory(changed)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    // Files may have landed before the directory got registered
+                    registerAndScan(changed);
+                }
+            } else {
+                markPending(changed);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Registers the directories below the start and marks their files pending. A directory that cannot
+     * be registered or read, e.g. because it was renamed or removed in the meantime, is skipped.
+     */
+    private void registerAndScan(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    try {
+                        WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                        watchedDirectories.put(key, dir);
+                        return FileVisitResult.CONTINUE;
+                    } catch (NoSuchFileException e) {
+                        return FileVisitResult.SKIP_SUBTREE; // Gone already
+                    } catch (IOException e) {
+                        System.err.println("Cannot watch " + dir + ": " + e.getMessage());
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    markPending(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    if (!(e instanceof NoSuchFileException)) {
+                        System.err.println("Cannot access " + file + ": " + e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    if (e != null && !(e instanceof NoSuchFileException)) {
+                        System.err.println("Cannot read " + dir + ": " + e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // The visitor handles every failure, walkFileTree declares it nevertheless
+            System.err.println("Cannot scan " + start + ": " + e.getMessage());
+        }
+    }
+
+    private void markPending(Path file) {
+        if (!fileFilter.test(file)) {
+            return;
+        }
+        FileSnapshot snapshot = FileSnapshot.of(file);
+        if (snapshot == null || snapshot.sameContentAs(deliveredFiles.get(file))) {
+            return;
+        }
+        FileSnapshot previous = pendingFiles.get(file);
+        if (previous == null || !snapshot.sameContentAs(previous)) {
+            pendingFiles.put(file, snapshot);
+        }
+    }
+
+    private void deliverStableFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, FileSnapshot>> iterator = pendingFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, FileSnapshot> entry = iterator.next();
+            Path file = entry.getKey();
+            FileSnapshot current = FileSnapshot.of(file);
+            if (current == null) {
+                iterator.remove();
+                continue;
+            }
+            if (!current.sameContentAs(entry.getValue())) {
+                // Still being written, restart the stability window
+                entry.setValue(current);
+                continue;
+            }
+            if (now - entry.getValue().observedAtMillis() < stabilityMillis) {
+                continue;
+            }
+            iterator.remove();
+            deliveredFiles.put(file, current);
+            try {
+                fileConsumer.accept(file);
+            } catch (Exception e) {
+                System.err.println("Failed to hand over watched file " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private record FileSnapshot(long size, long lastModifiedMillis, long observedAtMillis) {
+
+        static FileSnapshot of(Path file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                return new FileSnapshot(attributes.size(), attributes.lastModifiedTime().toMillis(), System.currentTimeMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        boolean sameContentAs(FileSnapshot other) {
+            return other != null && size == other.size && lastModifiedMillis == other.lastModifiedMillis;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.joymutlu.joyfulconverter.service.cluster;
+
+/**
+ * Line based protocol between coordinator and workers. Every message is one UTF-8 line with
+ * tab separated fields, every worker request gets exactly one reply. A malformed request gets
+ * {@code ERROR reason}. Backslashes, tabs and line breaks inside a field are escaped as
+ * {@code \\}, {@code \t}, {@code \n} and {@code \r}.
+ * <pre>
+ * worker                            coordinator
+ * HELLO  name                   ->  OK
+ * PULL                          ->  JOB id attempt format tryStreamCopy input output | WAIT millis | BYE
+ * HEARTBEAT id                  ->  OK | LOST   (LOST: the lease expired and the job was handed out again)
+ * DONE   id status profile fps  ->  OK | LOST   (LOST: the result was ignored, the worker no longer owns the job)
+ * FAILED id reason              ->  OK | LOST
+ * </pre>
+ * Workers write to an output named after the attempt. Once it is complete they renew the lease with
+ * a HEARTBEAT, rename the output to the job's output only if the lease is still theirs, and report
+ * DONE only after the rename, or FAILED if it did not work. So a worker that lost its lease never
+ * touches the output of the worker that owns the job now, and a job counted as done has its output.
+ * A DONE with status FAILED is retried like FAILED.
+ */
+final class ClusterProtocol {
+
+    static final String HELLO = "HELLO";
+    static final String PULL = "PULL";
+    static final String HEARTBEAT = "HEARTBEAT";
+    static final String DONE = "DONE";
+    static final String FAILED = "FAILED";
+
+    static final String OK = "OK";
+    static final String LOST = "LOST";
+    static final String JOB = "JOB";
+    static final String WAIT = "WAIT";
+    static final String BYE = "BYE";
+    static final String ERROR = "ERROR";
+
+    static final String SEPARATOR = "\t";
+
+    /** A lease not renewed within this time is considered dead and the job is retried elsewhere. */
+    static final long LEASE_MILLIS = 30_000;
+    static final long HEARTBEAT_INTERVAL_MILLIS = 10_000;
+    static final long WAIT_MILLIS = 2_000;
+    static final int MAX_ATTEMPTS = 3;
+
+    private ClusterProtocol() {
+    }
+
+    static String message(Object... fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append(SEPARATOR);
+            }
+            escape(String.valueOf(fields[i]), line);
+        }
+        return line.toString();
+    }
+
+    static String[] fields(String line) {
+        String[] fields = line.split(SEPARATOR, -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+        return fields;
+    }
+
+    /** Tabs and line breaks are legal in file names, they must reach the other side unchanged. */
+    private static void escape(String field, StringBuilder line) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> line.append("\\\\");
+                case '\t' -> line.append("\\t");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                default -> line.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\' || i + 1 == field.length()) {
+                unescaped.append(c);
+                continue;
+            }
+            char escaped = field.charAt(++i);
+            switch (escaped) {
+                case 't' -> unescaped.append('\t');
+                case 'n' -> unescaped.append('\n');
+                case 'r' -> unescaped.append('\r');
+                default -> unescaped.append(escaped);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,305 @@
+package org.joymutlu.joyfulconverter.service.cluster;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+import static org.joymutlu.joyfulconverter.service.cluster.ClusterProtocol.*;
+
+/**
+ * Hands out conversion jobs to workers connecting over TCP.
+ * <p>
+ * Workers pull jobs, so fast machines naturally take more of them. Every handed out job is leased:
+ * the worker has to renew the lease with heartbeats. When a lease expires or the worker's connection
+ * drops, the job goes back to the queue and is retried, up to {@link ClusterProtocol#MAX_ATTEMPTS} times.
+ * Only the worker holding a job's lease may report its result, a late report of a lost lease is ignored.
+ */
+public class ConversionCoordinator implements Closeable {
+
+    private final int port;
+    private final long leaseMillis;
+    private final Map<String, RemoteJob> jobs = new LinkedHashMap<>();
+    private final Deque<String> pendingJobIds = new ArrayDeque<>();
+    private final Map<String, Lease> leases = new HashMap<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final Map<String, ConversionResultStatus> results = new HashMap<>();
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService leaseReaper;
+    private volatile boolean running;
+
+    public ConversionCoordinator(int port, List<RemoteJob> jobsToRun) {
+        this(port, jobsToRun, LEASE_MILLIS);
+    }
+
+    ConversionCoordinator(int port, List<RemoteJob> jobsToRun, long leaseMillis) {
+        this.port = port;
+        this.leaseMillis = leaseMillis;
+        for (RemoteJob job : jobsToRun) {
+            jobs.put(job.id(), job);
+            pendingJobIds.add(job.id());
+            attempts.put(job.id(), 0);
+        }
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        running = true;
+
+        leaseReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "coordinator-lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        leaseReaper.scheduleWithFixedDelay(this::requeueExpiredLeases, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+
+        Thread acceptThread = new Thread(this::acceptLoop, "coordinator-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        System.out.println("Coordinator listening on port " + serverSocket.getLocalPort() + " with " + jobs.size() + " jobs");
+    }
+
+    /**
+     * @return The port the coordinator listens on, the one it was asked for or a free one for port 0
+     */
+    int localPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Blocks until every job either succeeded or ran out of attempts.
+     *
+     * @return Final status per job id
+     */
+    public synchronized Map<String, ConversionResultStatus> awaitCompletion() throws InterruptedException {
+        while (results.size() < jobs.size()) {
+            wait();
+        }
+        return Map.copyOf(results);
+    }
+
+    public synchronized Map<ConversionResultStatus, Integer> summary() {
+        Map<ConversionResultStatus, Integer> summary = new EnumMap<>(ConversionResultStatus.class);
+        results.values().forEach(status -> summary.merge(status, 1, Integer::sum));
+        return summary;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (leaseReaper != null) {
+            leaseReaper.shutdownNow();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to close coordinator socket: " + e.getMessage());
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                String connectionId = "connection-" + connectionCounter.incrementAndGet();
+                // Handlers block on their socket, so they are virtual threads where available
+                ThreadPools.startIoThread("coordinator-" + connectionId, () -> serve(socket, connectionId));
+            } catch (SocketException e) {
+                // Server socket closed
+            } catch (IOException e) {
+                System.err.println("Failed to accept worker connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket, String connectionId) {
+        String workerName = connectionId;
+        try (socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] request = fields(line);
+                String reply;
+                try {
+                    switch (request[0]) {
+                        case HELLO -> {
+                            workerName = request.length > 1 ? request[1] + "/" + connectionId : connectionId;
+                            System.out.println("Worker connected: " + workerName);
+                            reply = OK;
+                        }
+                        case PULL -> reply = handOutJob(connectionId, workerName);
+                        case HEARTBEAT -> reply = renewLease(field(request, 1), connectionId) ? OK : LOST;
+                        case DONE -> {
+                            String details = request.length > 4 ? " (profile " + request[3] + ", " + request[4] + " fps)" : "";
+                            ConversionResultStatus status = parseStatus(field(request, 2));
+                            reply = complete(field(request, 1), status, connectionId, workerName + details) ? OK : LOST;
+                        }
+                        case FAILED -> reply = fail(field(request, 1), request.length > 2 ? request[2] : "", connectionId, workerName) ? OK : LOST;
+                        default -> throw new IllegalArgumentException("Unknown request: " + request[0]);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // A malformed line must not drop the connection and with it the worker's leases
+                    System.err.println("Bad request from " + workerName + ": " + e.getMessage());
+                    reply = message(ERROR, e.getMessage());
+                }
+                writer.write(reply);
+                writer.newLine();
+                writer.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Worker " + workerName + " disconnected: " + e.getMessage());
+        } finally {
+            releaseLeasesOf(connectionId, workerName);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If the request does not have the field
+     */
+    private static String field(String[] request, int index) {
+        if (request.length <= index || request[index].isEmpty()) {
+            throw new IllegalArgumentException(request[0] + " needs " + index + " field(s), got " + (request.length - 1));
+        }
+        return request[index];
+    }
+
+    /**
+     * @throws IllegalArgumentException If there is no such status
+     */
+    private static ConversionResultStatus parseStatus(String name) {
+        try {
+            return ConversionResultStatus.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown status: " + name);
+        }
+    }
+
+    private synchronized String handOutJob(String connectionId, String workerName) {
+        String jobId = pendingJobIds.poll();
+        if (jobId == null) {
+            return results.size() == jobs.size() ? BYE : message(WAIT, WAIT_MILLIS);
+        }
+        RemoteJob job = jobs.get(jobId);
+        int attempt = attempts.merge(jobId, 1, Integer::sum);
+        leases.put(jobId, new Lease(connectionId, System.currentTimeMillis() + leaseMillis));
+        System.out.println("Job " + jobId + " (attempt " + attempt + ") -> " + workerName + ": " + job.inputPath());
+        return message(JOB, jobId, attempt, job.outputFormat(), job.tryStreamCopy(), job.inputPath(), job.outputPath());
+    }
+
+    private synchronized boolean renewLease(String jobId, String connectionId) {
+        if (!ownsLease(jobId, connectionId)) {
+            return false;
+        }
+        leases.put(jobId, new Lease(connectionId, System.currentTimeMillis() + leaseMillis));
+        return true;
+    }
+
+    /**
+     * A FAILED result (a full disk, a read error on the share, a codec error) is retried like a failure.
+     *
+     * @return False if the connection does not hold the job's lease (any more), the result is ignored then
+     */
+    private synchronized boolean complete(String jobId, ConversionResultStatus status, String connectionId, String workerName) {
+        if (status == ConversionResultStatus.FAILED) {
+            return fail(jobId, "conversion failed", connectionId, workerName);
+        }
+        if (!ownsLease(jobId, connectionId)) {
+            System.err.println("Ignoring result for job " + jobId + " from " + workerName + ", its lease was lost");
+            return false;
+        }
+        leases.remove(jobId);
+        pendingJobIds.remove(jobId);
+        results.put(jobId, status);
+        System.out.println("Job " + jobId + " finished by " + workerName + ": " + status
+                + " (" + results.size() + "/" + jobs.size() + ")");
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return False if the connection does not hold the job's lease (any more), the failure is ignored then
+     */
+    private synchronized boolean fail(String jobId, String reason, String connectionId, String workerName) {
+        if (!ownsLease(jobId, connectionId)) {
+            System.err.println("Ignoring failure of job " + jobId + " from " + workerName + ", its lease was lost");
+            return false;
+        }
+        leases.remove(jobId);
+        System.err.println("Job " + jobId + " failed on " + workerName + ": " + reason);
+        retryOrGiveUp(jobId);
+        return true;
+    }
+
+    /**
+     * A lease that expired was handed out again or the job already has a result, so only its current
+     * owner may report on the job.
+     */
+    private boolean ownsLease(String jobId, String connectionId) {
+        Lease lease = leases.get(jobId);
+        return lease != null && lease.connectionId().equals(connectionId);
+    }
+
+    private synchronized void releaseLeasesOf(String connectionId, String workerName) {
+        Iterator<Map.Entry<String, Lease>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Lease> entry = iterator.next();
+            if (entry.getValue().connectionId().equals(connectionId)) {
+                iterator.remove();
+                System.err.println("Worker " + workerName + " went away, re-queueing job " + entry.getKey());
+                retryOrGiveUp(entry.getKey());
+            }
+        }
+    }
+
+    private synchronized void requeueExpiredLeases() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Lease>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Lease> entry = iterator.next();
+            if (entry.getValue().expiresAtMillis() < now) {
+                iterator.remove();
+                System.err.println("Lease expired, re-queueing job " + entry.getKey());
+                retryOrGiveUp(entry.getKey());
+            }
+        }
+    }
+
+    private void retryOrGiveUp(String jobId) {
+        if (attempts.get(jobId) >= MAX_ATTEMPTS) {
+            results.put(jobId, ConversionResultStatus.FAILED);
+            System.err.println("Job " + jobId + " failed " + MAX_ATTEMPTS + " times, giving up");
+            notifyAll();
+        } else {
+            // Retries go first, they are the oldest work
+            pendingJobIds.addFirst(jobId);
+        }
+    }
+
+    private record Lease(String connectionId, long expiresAtMillis) {
+    }
+}
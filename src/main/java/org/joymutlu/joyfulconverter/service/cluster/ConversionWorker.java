@@ -0,0 +1,216 @@
+package org.joymutlu.joyfulconverter.service.cluster;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.joymutlu.joyfulconverter.service.ConversionOptions;
+import org.joymutlu.joyfulconverter.service.ConversionResult;
+import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.joymutlu.joyfulconverter.service.ConversionService;
+import org.joymutlu.joyfulconverter.service.JobControl;
+
+import static org.joymutlu.joyfulconverter.service.cluster.ClusterProtocol.*;
+
+/**
+ * Pulls jobs from a {@link ConversionCoordinator} and runs them with a local {@link ConversionService}.
+ * Each slot is an independent connection that converts one file at a time.
+ */
+public class ConversionWorker {
+
+    private static final int CONNECT_ATTEMPTS = 15;
+    private static final long CONNECT_RETRY_MILLIS = 2_000;
+
+    private final String host;
+    private final int port;
+    private final int slots;
+    private final ConversionService conversionService = new ConversionService();
+    private final ScheduledExecutorService heartbeats = Executors.newScheduledThreadPool(1, runnable -> {
+        Thread thread = new Thread(runnable, "worker-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ConversionWorker(String host, int port, int slots) {
+        this.host = host;
+        this.port = port;
+        this.slots = slots;
+    }
+
+    /**
+     * Runs all slots until the coordinator has no more work.
+     */
+    public void run() throws InterruptedException {
+        Thread[] slotThreads = new Thread[slots];
+        for (int i = 0; i < slots; i++) {
+            String slotName = workerName() + "#" + (i + 1);
+            slotThreads[i] = new Thread(() -> runSlot(slotName), "worker-slot-" + (i + 1));
+            slotThreads[i].start();
+        }
+        for (Thread slotThread : slotThreads) {
+            slotThread.join();
+        }
+        heartbeats.shutdownNow();
+    }
+
+    private void runSlot(String slotName) {
+        try (Connection connection = connect()) {
+            connection.exchange(message(HELLO, slotName));
+            while (true) {
+                String[] reply = fields(connection.exchange(PULL));
+                switch (reply[0]) {
+                    case JOB -> runJob(connection, new RemoteJob(reply[1], reply[5], reply[6], reply[3], Boolean.parseBoolean(reply[4])), Integer.parseInt(reply[2]));
+                    case WAIT -> Thread.sleep(Long.parseLong(reply[1]));
+                    case BYE -> {
+                        System.out.println(slotName + ": no more jobs, exiting");
+                        return;
+                    }
+                    default -> throw new IOException("Unexpected reply from coordinator: " + String.join(" ", reply));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println(slotName + ": lost connection to coordinator: " + e.getMessage());
+        }
+    }
+
+    private void runJob(Connection connection, RemoteJob job, int attempt) throws IOException {
+        Thread conversionThread = Thread.currentThread();
+        // A lost lease means somebody else got the job, stop wasting CPU on it
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleWithFixedDelay(() -> {
+            try {
+                if (LOST.equals(connection.exchange(message(HEARTBEAT, job.id())))) {
+                    System.err.println("Lease for job " + job.id() + " lost, aborting");
+                    conversionThread.interrupt();
+                }
+            } catch (IOException e) {
+                conversionThread.interrupt();
+            }
+        }, HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        String attemptOutput = attemptOutputPath(job.outputPath(), attempt);
+        ConversionResult result = null;
+        String failureReason = null;
+        try {
+            Files.createDirectories(Path.of(job.outputPath()).getParent());
+            result = conversionService.convert(job.inputPath(), attemptOutput,
+                    ConversionOptions.of(job.outputFormat(), job.tryStreamCopy()), new JobControl(), null);
+            failureReason = result.failureReason();
+        } catch (Exception e) {
+            failureReason = e.getMessage();
+        } finally {
+            heartbeat.cancel(false);
+            Thread.interrupted(); // Clear a heartbeat interrupt before talking to the coordinator again
+        }
+
+        String producedOutput = result != null && result.status().isMkvRemux() ? withExtension(attemptOutput, "mkv") : attemptOutput;
+        if (result == null || result.status() == ConversionResultStatus.FAILED) {
+            Files.deleteIfExists(Path.of(producedOutput));
+            connection.exchange(message(FAILED, job.id(), Objects.requireNonNullElse(failureReason, "conversion failed")));
+            return;
+        }
+        // Renamed while the lease is held, so the job's output never comes from a worker that lost it
+        if (!OK.equals(connection.exchange(message(HEARTBEAT, job.id())))) {
+            System.err.println("Lease for job " + job.id() + " lost before its output was renamed, discarding it");
+            Files.deleteIfExists(Path.of(producedOutput)); // The job belongs to another worker now, only remove ours
+            return;
+        }
+        String finalOutput = result.status().isMkvRemux() ? withExtension(job.outputPath(), "mkv") : job.outputPath();
+        try {
+            Files.move(Path.of(producedOutput), Path.of(finalOutput), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to rename " + producedOutput + " to " + finalOutput + ": " + e.getMessage());
+            Files.deleteIfExists(Path.of(producedOutput));
+            connection.exchange(message(FAILED, job.id(), "Failed to rename output: " + e.getMessage()));
+            return;
+        }
+        // Reported only once the output exists under its final name
+        String reply = connection.exchange(message(DONE, job.id(), result.status(),
+                result.encoderProfile() != null ? result.encoderProfile() : "remux", String.format(Locale.ROOT, "%.1f", result.framesPerSecond())));
+        if (!OK.equals(reply)) {
+            System.err.println("Result of job " + job.id() + " was not accepted (" + reply + "), another worker will redo it");
+        }
+    }
+
+    /**
+     * @return Hidden output next to the job's output, unique per attempt so that two workers given the
+     * same job never write to the same file
+     */
+    private static String attemptOutputPath(String outputPath, int attempt) {
+        Path output = Path.of(outputPath);
+        String name = output.getFileName().toString();
+        int dot = name.lastIndexOf('.') > 0 ? name.lastIndexOf('.') : name.length();
+        return output.resolveSibling("." + name.substring(0, dot) + ".attempt-" + attempt + name.substring(dot)).toString();
+    }
+
+    private static String withExtension(String path, String extension) {
+        return path.substring(0, path.lastIndexOf('.')) + "." + extension;
+    }
+
+    private Connection connect() throws IOException, InterruptedException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            try {
+                return new Connection(new Socket(host, port));
+            } catch (IOException e) {
+                lastError = e;
+                Thread.sleep(CONNECT_RETRY_MILLIS);
+            }
+        }
+        throw lastError;
+    }
+
+    private static String workerName() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + ProcessHandle.current().pid();
+        } catch (IOException e) {
+            return "worker:" + ProcessHandle.current().pid();
+        }
+    }
+
+    /**
+     * Request/reply channel shared by the slot thread and its heartbeats.
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        synchronized String exchange(String request) throws IOException {
+            writer.write(request);
+            writer.newLine();
+            writer.flush();
+            String reply = reader.readLine();
+            if (reply == null) {
+                throw new IOException("Coordinator closed the connection");
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.joymutlu.joyfulconverter.service.cluster;
+
+/**
+ * A single file conversion handed out by the coordinator. Paths must be valid on every worker,
+ * e.g. because all machines mount the same NAS share at the same location.
+ */
+public record RemoteJob(
+        String id,
+        String inputPath,
+        String outputPath,
+        String outputFormat,
+        boolean tryStreamCopy
+) {
+}
@@ -0,0 +1,153 @@
+package org.joymutlu.joyfulconverter.service.job;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.joymutlu.joyfulconverter.service.ConversionOptions;
+import org.joymutlu.joyfulconverter.service.ConversionResult;
+import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.joymutlu.joyfulconverter.service.EncoderProfile;
+import org.joymutlu.joyfulconverter.service.JobControl;
+
+/**
+ * A queued conversion and its live state. Identity and request fields are immutable, except the
+ * output, which becomes the file actually produced when the job finishes. The state is written by the
+ * worker running the job and read by anyone holding the job.
+ */
+public class ConversionJob {
+
+    private final String id;
+    private final long sequence;
+    private final String inputPath;
+    private final ConversionOptions options;
+    private final int priority;
+    private final long submittedAtMillis;
+    private final JobControl control = new JobControl();
+
+    // The requested output, and once finished the one produced: an MP4 remux may have fallen back to MKV
+    private volatile String outputPath;
+    private volatile JobStatus status = JobStatus.QUEUED;
+    private volatile double progress;
+    private volatile ConversionResultStatus result;
+    private volatile EncoderProfile encoderProfile;
+    private volatile double framesPerSecond;
+    private volatile String error;
+    private volatile long startedAtMillis;
+    private volatile long finishedAtMillis;
+
+    public ConversionJob(String id, long sequence, String inputPath, String outputPath, ConversionOptions options,
+                         int priority, long submittedAtMillis) {
+        this.id = id;
+        this.sequence = sequence;
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.options = options;
+        this.priority = priority;
+        this.submittedAtMillis = submittedAtMillis;
+    }
+
+    /**
+     * Higher priority first, then first come first served.
+     */
+    static int compareForQueue(ConversionJob first, ConversionJob second) {
+        int byPriority = Integer.compare(second.priority, first.priority);
+        return byPriority != 0 ? byPriority : Long.compare(first.sequence, second.sequence);
+    }
+
+    public String getId() { return id; }
+    public long getSequence() { return sequence; }
+    public String getInputPath() { return inputPath; }
+    public String getOutputPath() { return outputPath; }
+    public ConversionOptions getOptions() { return options; }
+    public int getPriority() { return priority; }
+    public long getSubmittedAtMillis() { return submittedAtMillis; }
+    public JobStatus getStatus() { return status; }
+    public double getProgress() { return progress; }
+    public ConversionResultStatus getResult() { return result; }
+    public EncoderProfile getEncoderProfile() { return encoderProfile; }
+    public double getFramesPerSecond() { return framesPerSecond; }
+    public String getError() { return error; }
+    public long getStartedAtMillis() { return startedAtMillis; }
+    public long getFinishedAtMillis() { return finishedAtMillis; }
+    JobControl getControl() { return control; }
+
+    void markRunning() {
+        startedAtMillis = System.currentTimeMillis();
+        progress = 0;
+        status = JobStatus.RUNNING;
+    }
+
+    /**
+     * @param result Outcome of the conversion, null if it never produced one
+     */
+    void markFinished(JobStatus finalStatus, ConversionResult result, String error) {
+        if (result != null) {
+            if (result.status().isMkvRemux() && outputPath.lastIndexOf('.') > 0) {
+                // Written next to the requested output, see ConversionService
+                this.outputPath = outputPath.substring(0, outputPath.lastIndexOf('.')) + ".mkv";
+            }
+            this.result = result.status();
+            this.encoderProfile = result.encoderProfile();
+            this.framesPerSecond = result.framesPerSecond();
+        }
+        this.error = error;
+        this.finishedAtMillis = System.currentTimeMillis();
+        if (finalStatus == JobStatus.SUCCEEDED) {
+            this.progress = 100.0;
+        }
+        this.status = finalStatus;
+    }
+
+    void requeue() {
+        status = JobStatus.QUEUED;
+        progress = 0;
+    }
+
+    void setStatus(JobStatus status) {
+        this.status = status;
+    }
+
+    void setProgress(double progress) {
+        this.progress = progress;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("id", id);
+        values.put("sequence", sequence);
+        values.put("input", inputPath);
+        values.put("output", outputPath);
+        values.put("options", options.toMap());
+        values.put("priority", priority);
+        values.put("submittedAt", submittedAtMillis);
+        values.put("status", status);
+        values.put("progress", Math.round(progress * 10) / 10.0);
+        values.put("result", result);
+        values.put("encoderProfile", encoderProfile);
+        values.put("fps", Math.round(framesPerSecond * 10) / 10.0);
+        values.put("error", error);
+        values.put("startedAt", startedAtMillis);
+        values.put("finishedAt", finishedAtMillis);
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    static ConversionJob fromMap(Map<String, Object> values) {
+        ConversionJob job = new ConversionJob(
+                (String) values.get("id"),
+                ((Number) values.get("sequence")).longValue(),
+                (String) values.get("input"),
+                (String) values.get("output"),
+                ConversionOptions.fromMap((Map<String, Object>) values.get("options")),
+                ((Number) values.get("priority")).intValue(),
+                ((Number) values.get("submittedAt")).longValue());
+        job.status = JobStatus.valueOf((String) values.get("status"));
+        job.progress = ((Number) values.get("progress")).doubleValue();
+        job.result = values.get("result") != null ? ConversionResultStatus.valueOf((String) values.get("result")) : null;
+        job.encoderProfile = values.get("encoderProfile") != null ? EncoderProfile.valueOf((String) values.get("encoderProfile")) : null;
+        job.framesPerSecond = values.get("fps") instanceof Number fps ? fps.doubleValue() : 0;
+        job.error = (String) values.get("error");
+        job.startedAtMillis = ((Number) values.get("startedAt")).longValue();
+        job.finishedAtMillis = ((Number) values.get("finishedAt")).longValue();
+        return job;
+    }
+}
@@ -0,0 +1,190 @@
+package org.joymutlu.joyfulconverter.service.job;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.joymutlu.joyfulconverter.service.ConversionOptions;
+import org.joymutlu.joyfulconverter.service.MediaSource;
+import org.joymutlu.joyfulconverter.util.JsonUtils;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+/**
+ * Local HTTP/JSON front end of the {@link JobEngine}. Only listens on the loopback interface, and
+ * refuses requests that carry an {@code Origin} header: a web page open in the user's browser could
+ * reach the loopback port too, but browsers always send one with cross-site requests. Jobs have to be
+ * submitted as {@code application/json}, which a page cannot send without a CORS preflight either.
+ * <pre>
+ * POST   /jobs             {"input": "...", "output": "...", "format": "mp4", "tryStreamCopy": true, "priority": 0,
+ *                           "encoderProfile": "archival|balanced|fast|realtime|auto", "targetSpeed": 2.0, "deadline": epochMillis,
+ *                           "lane": "batch|interactive"}
+ *                          -> 202 {"id": "...", "status": "QUEUED", ...}
+ * GET    /jobs             -> 200 {"jobs": [...]}
+ * GET    /jobs/{id}        -> 200 job with status and progress, 404 if unknown
+ * DELETE /jobs/{id}        -> 200 cancelled, 409 if already finished
+ * POST   /jobs/{id}/cancel    same as DELETE
+ * POST   /jobs/{id}/pause  -> 200 paused, 409 if not queued or running
+ * POST   /jobs/{id}/resume -> 200 resumed, 409 if not paused
+ * </pre>
+ * "output" is optional and defaults to the input path with the format's extension, or to
+ * "name.converted.format" if the input already has that extension. It must not be the input itself.
+ * An "interactive" job starts right away instead of queueing, running batch jobs pause at a keyframe for it.
+ */
+public class JobApiServer implements Closeable {
+
+    private static final String JOBS_PATH = "/jobs";
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    private final JobEngine jobEngine;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+
+    public JobApiServer(JobEngine jobEngine, int port) throws IOException {
+        this.jobEngine = jobEngine;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.requestExecutor = ThreadPools.newIoExecutor("job-api-", 4);
+        server.setExecutor(requestExecutor);
+        server.createContext(JOBS_PATH, this::handle);
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Job API listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + JOBS_PATH);
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        requestExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        // Closed only after handleRequest, whose catch blocks may still have to send an error
+        try (exchange) {
+            handleRequest(exchange);
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                respondError(exchange, 403, "Requests from web pages are not accepted");
+                return;
+            }
+            List<String> segments = List.of(exchange.getRequestURI().getPath().substring(JOBS_PATH.length()).split("/"))
+                    .stream().filter(segment -> !segment.isEmpty()).collect(Collectors.toList());
+
+            if (segments.isEmpty() && "POST".equals(method)) {
+                submit(exchange);
+            } else if (segments.isEmpty() && "GET".equals(method)) {
+                List<Map<String, Object>> jobs = jobEngine.listJobs().stream().map(ConversionJob::toMap).collect(Collectors.toList());
+                respond(exchange, 200, Map.of("jobs", jobs));
+            } else if (segments.size() == 1 && "GET".equals(method)) {
+                Optional<ConversionJob> job = jobEngine.getJob(segments.get(0));
+                if (job.isPresent()) {
+                    respond(exchange, 200, job.get().toMap());
+                } else {
+                    respondError(exchange, 404, "Unknown job " + segments.get(0));
+                }
+            } else if ((segments.size() == 1 && "DELETE".equals(method))
+                    || (segments.size() == 2 && "cancel".equals(segments.get(1)) && "POST".equals(method))) {
+                control(exchange, segments.get(0), jobEngine::cancel, "already finished");
+            } else if (segments.size() == 2 && "pause".equals(segments.get(1)) && "POST".equals(method)) {
+                control(exchange, segments.get(0), jobEngine::pause, "is not queued or running");
+            } else if (segments.size() == 2 && "resume".equals(segments.get(1)) && "POST".equals(method)) {
+                control(exchange, segments.get(0), jobEngine::resume, "is not paused");
+            } else {
+                respondError(exchange, 405, method + " not supported on " + exchange.getRequestURI().getPath());
+            }
+        } catch (IllegalArgumentException e) {
+            respondError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            respondError(exchange, 500, e.toString());
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        String contentType = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Type")).orElse("");
+        if (!contentType.toLowerCase().startsWith(JSON_CONTENT_TYPE)) {
+            respondError(exchange, 415, "Content-Type " + JSON_CONTENT_TYPE + " required");
+            return;
+        }
+        Map<String, Object> request = JsonUtils.parseObject(readBody(exchange));
+        Object input = request.get("input");
+        if (!(input instanceof String) || ((String) input).isBlank()) {
+            throw new IllegalArgumentException("\"input\" path is required");
+        }
+        ConversionOptions options = ConversionOptions.fromMap(request);
+        String output;
+        if (request.get("output") instanceof String requestedOutput) {
+            if (isSameFile((String) input, requestedOutput)) {
+                throw new IllegalArgumentException("\"output\" must not be the input itself");
+            }
+            output = requestedOutput;
+        } else {
+            String base = Path.of((String) input).toString().replaceAll("\\.[^./\\\\]*$", "");
+            output = base + "." + options.outputFormat();
+            if (isSameFile((String) input, output)) {
+                // A mislabelled input already carries the output's name, never write over it
+                output = base + ".converted." + options.outputFormat();
+            }
+        }
+        int priority = request.get("priority") instanceof Number number ? number.intValue() : 0;
+
+        ConversionJob job = jobEngine.submit((String) input, output, options, priority);
+        respond(exchange, 202, job.toMap());
+    }
+
+    private static boolean isSameFile(String input, String output) {
+        if (MediaSource.isUrl(input) || MediaSource.isUrl(output)) {
+            return input.equals(output);
+        }
+        return Path.of(input).toAbsolutePath().normalize().equals(Path.of(output).toAbsolutePath().normalize());
+    }
+
+    private void control(HttpExchange exchange, String id, Predicate<String> action, String conflictReason) throws IOException {
+        if (jobEngine.getJob(id).isEmpty()) {
+            respondError(exchange, 404, "Unknown job " + id);
+        } else if (action.test(id)) {
+            respond(exchange, 200, jobEngine.getJob(id).get().toMap());
+        } else {
+            respondError(exchange, 409, "Job " + id + " " + conflictReason);
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respondError(HttpExchange exchange, int statusCode, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        respond(exchange, statusCode, error);
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, Object body) throws IOException {
+        byte[] bytes = JsonUtils.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+}
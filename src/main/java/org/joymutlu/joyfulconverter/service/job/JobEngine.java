@@ -0,0 +1,306 @@
+package org.joymutlu.joyfulconverter.service.job;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.joymutlu.joyfulconverter.service.ConversionLane;
+import org.joymutlu.joyfulconverter.service.ConversionOptions;
+import org.joymutlu.joyfulconverter.service.ConversionResult;
+import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.joymutlu.joyfulconverter.service.ConversionService;
+import org.joymutlu.joyfulconverter.util.ThreadPools;
+
+/**
+ * Runs conversion jobs from a persistent priority queue on a fixed pool of worker threads.
+ * <p>
+ * {@link #submit} only records and enqueues the job, so callers get the job id immediately. Jobs that
+ * were queued or running when the process stopped are queued again by {@link #start()}.
+ * <p>
+ * Jobs in the {@link ConversionLane#INTERACTIVE} lane skip the queue: each gets a thread of its own
+ * and starts right away, while the running batch jobs make room for it at their next keyframe.
+ */
+public class JobEngine implements Closeable {
+
+    private final ConversionService conversionService;
+    private final JobStore store;
+    private final int workerCount;
+
+    private final PriorityBlockingQueue<ConversionJob> queue = new PriorityBlockingQueue<>(64, ConversionJob::compareForQueue);
+    private final Map<String, ConversionJob> jobs = new ConcurrentHashMap<>();
+    // Jobs currently owned by a worker thread, running or paused mid-conversion
+    private final Set<String> activeJobIds = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<ConversionJob>> listeners = new CopyOnWriteArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Set<Thread> interactiveThreads = ConcurrentHashMap.newKeySet();
+    // Set by close(): interrupted jobs keep their persisted state, so that start() queues them again
+    private volatile boolean closing;
+    private final AtomicLong sequenceCounter = new AtomicLong();
+
+    /**
+     * @param conversionService Service that runs the conversions
+     * @param store             Journal to persist the queue in, or null to keep it in memory only
+     * @param workerCount       Number of jobs in progress at the same time. How many of them encode at
+     *                          once is up to the {@link org.joymutlu.joyfulconverter.service.ConversionThreads}
+     *                          of the conversion service
+     */
+    public JobEngine(ConversionService conversionService, JobStore store, int workerCount) {
+        this.conversionService = conversionService;
+        this.store = store;
+        this.workerCount = workerCount;
+    }
+
+    public synchronized void start() throws IOException {
+        if (store != null) {
+            for (ConversionJob job : store.load()) {
+                jobs.put(job.getId(), job);
+                sequenceCounter.accumulateAndGet(job.getSequence(), Math::max);
+                if (job.getStatus() == JobStatus.PAUSED) {
+                    job.setProgress(0); // Stays paused until resumed, but has to start over
+                } else if (!job.getStatus().isFinished()) {
+                    // Interrupted by the last shutdown, start over
+                    job.requeue();
+                    store.save(job);
+                    dispatch(job);
+                }
+            }
+            System.out.println("Job queue restored: " + queue.size() + " pending of " + jobs.size() + " jobs");
+        }
+        for (int i = 0; i < workerCount; i++) {
+            // Workers take, journal and wait; the conversion service decides where FFmpeg runs
+            workers.add(ThreadPools.startIoThread("job-worker-" + (i + 1), this::workerLoop));
+        }
+    }
+
+    /**
+     * Queues a conversion and returns without waiting for it.
+     *
+     * @param priority Higher values run first, equal priorities run in submission order
+     */
+    public ConversionJob submit(String inputPath, String outputPath, ConversionOptions options, int priority) {
+        ConversionJob job = new ConversionJob(UUID.randomUUID().toString(), sequenceCounter.incrementAndGet(),
+                inputPath, outputPath, options, priority, System.currentTimeMillis());
+        jobs.put(job.getId(), job);
+        persistAndNotify(job);
+        dispatch(job);
+        return job;
+    }
+
+    public Optional<ConversionJob> getJob(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * @return All known jobs in submission order
+     */
+    public List<ConversionJob> listJobs() {
+        List<ConversionJob> snapshot = new ArrayList<>(jobs.values());
+        snapshot.sort(Comparator.comparingLong(ConversionJob::getSequence));
+        return snapshot;
+    }
+
+    /**
+     * Cancels a job. A running job stops within one frame (or one read while the input is being opened),
+     * releases its native resources and removes its partial output.
+     *
+     * @return false if the job is unknown or already finished
+     */
+    public boolean cancel(String id) {
+        ConversionJob job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        synchronized (job) {
+            if (job.getStatus().isFinished()) {
+                return false;
+            }
+            queue.remove(job);
+            job.getControl().cancel();
+            job.markFinished(JobStatus.CANCELLED, null, activeJobIds.contains(id) ? "Cancelled" : "Cancelled before start");
+        }
+        persistAndNotify(job);
+        return true;
+    }
+
+    /**
+     * Pauses a job. A running job blocks at its next frame and keeps its worker, a queued job is held back.
+     *
+     * @return false if the job is unknown, already paused or finished
+     */
+    public boolean pause(String id) {
+        ConversionJob job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        synchronized (job) {
+            if (job.getStatus() == JobStatus.RUNNING) {
+                job.getControl().pause();
+            } else if (job.getStatus() == JobStatus.QUEUED) {
+                queue.remove(job);
+            } else {
+                return false;
+            }
+            job.setStatus(JobStatus.PAUSED);
+        }
+        persistAndNotify(job);
+        return true;
+    }
+
+    /**
+     * Resumes a paused job where it stopped, or puts it back into the queue if it had not started yet.
+     *
+     * @return false if the job is unknown or not paused
+     */
+    public boolean resume(String id) {
+        ConversionJob job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        synchronized (job) {
+            if (job.getStatus() != JobStatus.PAUSED) {
+                return false;
+            }
+            if (activeJobIds.contains(id)) {
+                job.setStatus(JobStatus.RUNNING);
+                job.getControl().resume();
+            } else {
+                job.setStatus(JobStatus.QUEUED);
+                dispatch(job);
+            }
+        }
+        persistAndNotify(job);
+        return true;
+    }
+
+    /**
+     * Registers a listener for job state changes (submitted, started, finished). It is called on the
+     * thread that changed the state and must not block.
+     */
+    public void addListener(Consumer<ConversionJob> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stops the workers and waits for them. Their jobs are cancelled, remove their partial output and
+     * stay queued or running in the store, so the next {@link #start()} runs them again.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closing = true;
+        List<Thread> threads = new ArrayList<>(workers);
+        threads.addAll(interactiveThreads);
+        threads.forEach(Thread::interrupt);
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true; // The store must not close under a job that is still saved
+                }
+            }
+        }
+        workers.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Queues a batch job, starts an interactive one on a thread of its own.
+     */
+    private void dispatch(ConversionJob job) {
+        if (job.getOptions().lane() == ConversionLane.INTERACTIVE) {
+            interactiveThreads.add(ThreadPools.startIoThread("job-interactive-" + job.getSequence(), () -> {
+                try {
+                    claimAndRun(job);
+                } finally {
+                    interactiveThreads.remove(Thread.currentThread());
+                }
+            }));
+        } else {
+            queue.add(job);
+        }
+    }
+
+    private void workerLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            ConversionJob job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            claimAndRun(job);
+        }
+    }
+
+    private void claimAndRun(ConversionJob job) {
+        synchronized (job) {
+            if (job.getStatus() != JobStatus.QUEUED || closing) {
+                return; // Cancelled or paused while waiting, or left queued for the next start
+            }
+            activeJobIds.add(job.getId());
+            job.markRunning();
+        }
+        persistAndNotify(job);
+        runJob(job);
+    }
+
+    private void runJob(ConversionJob job) {
+        JobStatus finalStatus;
+        ConversionResult result = null;
+        String error = null;
+        try {
+            Path outputParent = Path.of(job.getOutputPath()).toAbsolutePath().getParent();
+            if (outputParent != null) {
+                Files.createDirectories(outputParent);
+            }
+            result = conversionService.convert(job.getInputPath(), job.getOutputPath(), job.getOptions(),
+                    job.getControl(), job::setProgress);
+            finalStatus = result.status() == ConversionResultStatus.FAILED ? JobStatus.FAILED : JobStatus.SUCCEEDED;
+        } catch (Exception e) {
+            finalStatus = JobStatus.FAILED;
+            error = e.getMessage();
+        }
+        synchronized (job) {
+            activeJobIds.remove(job.getId());
+            if (job.getStatus() == JobStatus.CANCELLED) {
+                return; // Already recorded by cancel()
+            }
+            if (closing) {
+                return; // Stopped by close(), not by the job's input, it stays running in the store
+            }
+            job.markFinished(finalStatus, result, error);
+        }
+        persistAndNotify(job);
+    }
+
+    private void persistAndNotify(ConversionJob job) {
+        if (store != null) {
+            store.save(job);
+        }
+        for (Consumer<ConversionJob> listener : listeners) {
+            try {
+                listener.accept(job);
+            } catch (RuntimeException e) {
+                System.err.println("Job listener failed: " + e.getMessage());
+            }
+        }
+    }
+}
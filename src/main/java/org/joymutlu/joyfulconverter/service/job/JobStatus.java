@@ -0,0 +1,14 @@
+package org.joymutlu.joyfulconverter.service.job;
+
+public enum JobStatus {
+    QUEUED,
+    RUNNING,
+    PAUSED,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED;
+
+    public boolean isFinished() {
+        return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+    }
+}
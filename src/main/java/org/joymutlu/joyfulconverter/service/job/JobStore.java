@@ -0,0 +1,91 @@
+package org.joymutlu.joyfulconverter.service.job;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.joymutlu.joyfulconverter.util.JsonUtils;
+
+/**
+ * Append-only journal of job snapshots (one JSON object per line), so the queue survives restarts.
+ * <p>
+ * Every state change appends the job's snapshot, the last line per job id wins on load. Loading
+ * compacts the journal to one line per job and drops finished jobs older than the retention window.
+ */
+public class JobStore implements Closeable {
+
+    private static final long FINISHED_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final Path journalFile;
+    private BufferedWriter writer;
+
+    public JobStore(Path journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Reads the journal and rewrites it compacted. Must be called before {@link #save}.
+     *
+     * @return The latest snapshot of every retained job, in submission order
+     */
+    public synchronized List<ConversionJob> load() throws IOException {
+        Files.createDirectories(journalFile.toAbsolutePath().getParent());
+        Map<String, ConversionJob> jobs = new LinkedHashMap<>();
+        if (Files.exists(journalFile)) {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    ConversionJob job = ConversionJob.fromMap(JsonUtils.parseObject(line));
+                    jobs.put(job.getId(), job);
+                } catch (RuntimeException e) {
+                    // Most likely a line torn by a crash, the previous snapshot of that job is still valid
+                    System.err.println("Skipping unreadable job journal line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        long cutoff = System.currentTimeMillis() - FINISHED_RETENTION_MILLIS;
+        jobs.values().removeIf(job -> job.getStatus().isFinished() && job.getFinishedAtMillis() < cutoff);
+
+        Path compacted = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (BufferedWriter compactWriter = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (ConversionJob job : jobs.values()) {
+                compactWriter.write(JsonUtils.toJson(job.toMap()));
+                compactWriter.newLine();
+            }
+        }
+        Files.move(compacted, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        return new ArrayList<>(jobs.values());
+    }
+
+    public synchronized void save(ConversionJob job) {
+        try {
+            writer.write(JsonUtils.toJson(job.toMap()));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to persist job " + job.getId() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.joymutlu.joyfulconverter.service.rename;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import org.joymutlu.joyfulconverter.service.rename.VideoNameClassifier.NameKind;
+import org.joymutlu.joyfulconverter.service.rename.VideoNameClassifier.ParsedVideoName;
+
+/**
+ * Normalizes and shuffles a video library in two steps: a plan of every rename is computed from a
+ * single scan of the library, then the plan is executed as a whole or not at all.
+ * <p>
+ * Renames may depend on each other, e.g. a shuffle is a permutation of the group numbers and most
+ * targets are the current name of another file. Such moves go through a temporary name first, which
+ * breaks every chain and cycle: in the first stage independent moves go straight to their target and
+ * dependent ones to their temporary name, in the second stage the temporary names move to their
+ * targets. Moves within a stage never touch each other's paths and run in parallel.
+ */
+public class RenameEngine {
+
+    private static final String GROUP_FORMAT = "%04d";
+    private static final String UNIT_FORMAT = "%02d";
+
+    private final VideoNameClassifier classifier = new VideoNameClassifier();
+
+    /**
+     * Plans the reorganization of a library into the root directory with standardized names.
+     * <ul>
+     *     <li>files in XXXX.YY. ZZZZ - NNN.fff layout in the root directory keep their name;</li>
+     *     <li>each subdirectory becomes a group, its files are numbered in name order and moved to the
+     *     root directory. Top-level directories are numbered first, then nested ones;</li>
+     *     <li>every other recognized file in the root directory gets a group of its own.</li>
+     * </ul>
+     */
+    public RenamePlan planNormalization(Path libraryRoot) throws IOException {
+        Path root = libraryRoot.toAbsolutePath().normalize();
+        LibraryScan scan = scan(root);
+
+        int groupCounter = 1;
+        Map<Path, String> directoryGroups = new HashMap<>();
+        for (Path directory : scan.filesByDirectory().keySet()) {
+            if (root.equals(directory.getParent())) {
+                directoryGroups.put(directory, String.format(GROUP_FORMAT, groupCounter++));
+            }
+        }
+
+        List<RenameMove> moves = new ArrayList<>();
+        int skippedFiles = 0;
+        for (Map.Entry<Path, List<Path>> entry : scan.filesByDirectory().entrySet()) {
+            Path directory = entry.getKey();
+            if (directory.equals(root)) {
+                continue;
+            }
+            int unitCounter = 1;
+            for (Path file : entry.getValue()) {
+                ParsedVideoName parsed = classifier.parse(file.getFileName().toString(), directory.getFileName().toString());
+                if (parsed == null) {
+                    skippedFiles++;
+                    continue;
+                }
+                if (!directoryGroups.containsKey(directory)) {
+                    directoryGroups.put(directory, String.format(GROUP_FORMAT, groupCounter++));
+                }
+                String newName = parsed.toStandardName(directoryGroups.get(directory), String.format(UNIT_FORMAT, unitCounter++));
+                moves.add(new RenameMove(file, root.resolve(newName)));
+            }
+        }
+
+        for (Path file : scan.filesByDirectory().getOrDefault(root, List.of())) {
+            ParsedVideoName parsed = classifier.parse(file.getFileName().toString());
+            if (parsed == null) {
+                skippedFiles++;
+            } else if (parsed.kind() != NameKind.STANDARD) {
+                String newName = parsed.toStandardName(String.format(GROUP_FORMAT, groupCounter++), String.format(UNIT_FORMAT, 1));
+                moves.add(new RenameMove(file, root.resolve(newName)));
+            }
+        }
+        return RenamePlan.of(root, withoutNoOps(moves), scan.files(), skippedFiles);
+    }
+
+    /**
+     * Plans a random permutation of the group numbers of all XXXX.YY. ZZZZ - NNN.fff files below the
+     * root. Unit numbers, years, names and formats stay the same, all files end up in the root directory.
+     */
+    public RenamePlan planShuffle(Path libraryRoot, Random random) throws IOException {
+        Path root = libraryRoot.toAbsolutePath().normalize();
+        LibraryScan scan = scan(root);
+
+        Map<String, List<Map.Entry<Path, ParsedVideoName>>> filesByGroup = new LinkedHashMap<>();
+        int skippedFiles = 0;
+        for (List<Path> files : scan.filesByDirectory().values()) {
+            for (Path file : files) {
+                ParsedVideoName parsed = classifier.parse(file.getFileName().toString());
+                if (parsed == null || parsed.kind() != NameKind.STANDARD) {
+                    skippedFiles++;
+                    continue;
+                }
+                filesByGroup.computeIfAbsent(parsed.group(), group -> new ArrayList<>()).add(Map.entry(file, parsed));
+            }
+        }
+
+        List<String> groups = new ArrayList<>(filesByGroup.keySet());
+        List<String> shuffledGroups = new ArrayList<>(groups);
+        Collections.shuffle(shuffledGroups, random);
+
+        List<RenameMove> moves = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            for (Map.Entry<Path, ParsedVideoName> file : filesByGroup.get(groups.get(i))) {
+                String newName = file.getValue().toStandardName(shuffledGroups.get(i), file.getValue().unit());
+                moves.add(new RenameMove(file.getKey(), root.resolve(newName)));
+            }
+        }
+        return RenamePlan.of(root, withoutNoOps(moves), scan.files(), skippedFiles);
+    }
+
+    /**
+     * Executes a plan. If any move fails, every completed move is undone before the error is thrown,
+     * so the library keeps its original names.
+     *
+     * @return Number of renamed files
+     * @throws IllegalStateException if the plan has conflicts
+     * @throws IOException           if the plan failed, the message tells whether it was rolled back
+     */
+    public int execute(RenamePlan plan) throws IOException {
+        if (!plan.isExecutable()) {
+            throw new IllegalStateException("Rename plan has conflicts: " + plan.conflicts());
+        }
+        if (plan.moves().isEmpty()) {
+            return 0;
+        }
+
+        Set<Path> sources = new HashSet<>();
+        plan.moves().forEach(move -> sources.add(move.source()));
+        String token = UUID.randomUUID().toString().substring(0, 8);
+        List<RenameMove> firstStage = new ArrayList<>();
+        List<RenameMove> secondStage = new ArrayList<>();
+        for (RenameMove move : plan.moves()) {
+            if (sources.contains(move.target())) {
+                Path temporary = move.target().resolveSibling(".joyful-" + token + "-" + firstStage.size() + ".tmp");
+                firstStage.add(new RenameMove(move.source(), temporary));
+                secondStage.add(new RenameMove(temporary, move.target()));
+            } else {
+                firstStage.add(move);
+            }
+        }
+
+        List<Collection<RenameMove>> completedStages = new ArrayList<>();
+        try (RenameJournal journal = RenameJournal.create(plan.root())) {
+            for (List<RenameMove> stage : List.of(firstStage, secondStage)) {
+                Collection<RenameMove> completed = new ConcurrentLinkedQueue<>();
+                completedStages.add(completed);
+                IOException failure = runStage(stage, journal, completed);
+                if (failure != null) {
+                    rollback(plan.root(), completedStages, failure);
+                }
+            }
+        }
+        RenameJournal.delete(plan.root());
+        return plan.moves().size();
+    }
+
+    /**
+     * Undoes a plan that was interrupted by a crash, using the journal it left in the root directory.
+     *
+     * @return Number of restored files, 0 if there was nothing to recover
+     */
+    public int recoverInterrupted(Path root) throws IOException {
+        List<RenameMove> journaled = RenameJournal.read(root);
+        int restored = 0;
+        for (int i = journaled.size() - 1; i >= 0; i--) {
+            RenameMove move = journaled.get(i);
+            if (Files.exists(move.target()) && !Files.exists(move.source())) {
+                moveAtomically(move.target(), move.source());
+                restored++;
+            }
+        }
+        RenameJournal.delete(root);
+        return restored;
+    }
+
+    private IOException runStage(List<RenameMove> stage, RenameJournal journal, Collection<RenameMove> completed) {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        stage.parallelStream().forEach(move -> {
+            if (failure.get() != null) {
+                return; // Stop starting new moves, the plan is going to be rolled back
+            }
+            try {
+                journal.record(move);
+                moveAtomically(move.source(), move.target());
+                completed.add(move);
+            } catch (IOException e) {
+                failure.compareAndSet(null, new IOException("Failed to rename " + move + ": " + e.getMessage(), e));
+            }
+        });
+        return failure.get();
+    }
+
+    private void rollback(Path root, List<Collection<RenameMove>> completedStages, IOException failure) throws IOException {
+        List<String> notRestored = new ArrayList<>();
+        for (int i = completedStages.size() - 1; i >= 0; i--) {
+            completedStages.get(i).parallelStream().forEach(move -> {
+                try {
+                    moveAtomically(move.target(), move.source());
+                } catch (IOException e) {
+                    synchronized (notRestored) {
+                        notRestored.add(move.toString());
+                    }
+                }
+            });
+        }
+        if (notRestored.isEmpty()) {
+            RenameJournal.delete(root);
+            throw new IOException(failure.getMessage() + ". All other renames were undone.", failure);
+        }
+        throw new IOException(failure.getMessage() + ". " + notRestored.size() + " renames could not be undone, the journal "
+                + root.resolve(RenameJournal.FILE_NAME) + " lists all of them: " + notRestored, failure);
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString()); // An atomic move would silently replace it
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target); // Different file store, still refuses to overwrite
+        }
+    }
+
+    private static List<RenameMove> withoutNoOps(List<RenameMove> moves) {
+        return moves.stream().filter(move -> !move.source().equals(move.target())).toList();
+    }
+
+    /**
+     * Reads the whole library with one directory walk. The file attributes come with the walk, no
+     * file is queried twice.
+     */
+    private static LibraryScan scan(Path root) throws IOException {
+        Map<Path, List<Path>> filesByDirectory = new TreeMap<>();
+        Set<Path> files = new HashSet<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                filesByDirectory.put(directory, new ArrayList<>());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !file.getFileName().toString().equals(RenameJournal.FILE_NAME)) {
+                    filesByDirectory.get(file.getParent()).add(file);
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        filesByDirectory.values().forEach(directoryFiles -> directoryFiles.sort(Comparator.comparing(file -> file.getFileName().toString())));
+        return new LibraryScan(filesByDirectory, files);
+    }
+
+    /**
+     * @param filesByDirectory Regular files of each directory in name order, directories in path order
+     */
+    private record LibraryScan(Map<Path, List<Path>> filesByDirectory, Set<Path> files) {
+    }
+}
@@ -0,0 +1,62 @@
+package org.joymutlu.joyfulconverter.service.rename;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead log of the moves of a running plan, one "source TAB target" line per move, written
+ * before the move happens. Moves run in stages and a stage only starts once the previous one is
+ * complete, so undoing the lines from last to first restores the original names even after a crash.
+ */
+class RenameJournal implements Closeable {
+
+    static final String FILE_NAME = ".joyful-rename.journal";
+
+    private final BufferedWriter writer;
+
+    private RenameJournal(Path path) throws IOException {
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+    }
+
+    static RenameJournal create(Path root) throws IOException {
+        return new RenameJournal(root.resolve(FILE_NAME));
+    }
+
+    /**
+     * @return Journaled moves in the order they were started, empty if there is no journal
+     */
+    static List<RenameMove> read(Path root) throws IOException {
+        Path path = root.resolve(FILE_NAME);
+        List<RenameMove> moves = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return moves;
+        }
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length == 2) { // A torn last line was never acted on
+                moves.add(new RenameMove(Path.of(fields[0]), Path.of(fields[1])));
+            }
+        }
+        return moves;
+    }
+
+    static void delete(Path root) throws IOException {
+        Files.deleteIfExists(root.resolve(FILE_NAME));
+    }
+
+    synchronized void record(RenameMove move) throws IOException {
+        writer.write(move.source() + "\t" + move.target() + "\n");
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
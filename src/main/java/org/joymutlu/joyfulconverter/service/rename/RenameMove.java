@@ -0,0 +1,11 @@
+package org.joymutlu.joyfulconverter.service.rename;
+
+import java.nio.file.Path;
+
+public record RenameMove(Path source, Path target) {
+
+    @Override
+    public String toString() {
+        return source + " -> " + target;
+    }
+}
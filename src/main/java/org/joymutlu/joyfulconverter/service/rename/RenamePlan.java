@@ -0,0 +1,45 @@
+package org.joymutlu.joyfulconverter.service.rename;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Every rename of one normalize or shuffle run, computed before any file is touched. A plan with
+ * conflicts must not be executed, which is what makes a run all-or-nothing.
+ *
+ * @param root         Library directory, also holds the undo journal while the plan runs
+ * @param moves        Renames to perform, files that keep their name are left out
+ * @param conflicts    Reasons the plan cannot run, empty if it can
+ * @param skippedFiles Files whose names have none of the known layouts
+ */
+public record RenamePlan(Path root, List<RenameMove> moves, List<String> conflicts, int skippedFiles) {
+
+    /**
+     * Validates the moves against each other and against the files on disk.
+     *
+     * @param existingFiles Every file below the root, as found by the scan the moves were planned from
+     */
+    static RenamePlan of(Path root, List<RenameMove> moves, Set<Path> existingFiles, int skippedFiles) {
+        Set<Path> sources = new HashSet<>();
+        moves.forEach(move -> sources.add(move.source()));
+
+        List<String> conflicts = new ArrayList<>();
+        Set<Path> targets = new HashSet<>();
+        for (RenameMove move : moves) {
+            if (!targets.add(move.target())) {
+                conflicts.add("Several files would be renamed to " + move.target().getFileName());
+            } else if (existingFiles.contains(move.target()) && !sources.contains(move.target())) {
+                conflicts.add("Cannot rename " + move.source().getFileName() + " to " + move.target().getFileName()
+                        + " because the destination file already exists");
+            }
+        }
+        return new RenamePlan(root, List.copyOf(moves), List.copyOf(conflicts), skippedFiles);
+    }
+
+    public boolean isExecutable() {
+        return conflicts.isEmpty();
+    }
+}
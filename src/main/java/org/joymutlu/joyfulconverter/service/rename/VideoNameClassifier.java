@@ -0,0 +1,82 @@
+package org.joymutlu.joyfulconverter.service.rename;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes the file name layouts of a video library with a single matcher pass. The alternatives
+ * are tried in order, so a name that fits several layouts gets the first one, as before.
+ */
+public class VideoNameClassifier {
+
+    private static final Pattern VIDEO_NAME_PATTERN = Pattern.compile(
+            "(?<group>\\d{4})\\.(?<unit>\\d{2})\\. (?<year>\\d{4}) - (?<name>.+)\\.(?<format>.+)"     // XXXX.YY. ZZZZ - NNN.fff
+            + "|(?<godYear>\\d{4}) год - (?<godName>.+)\\.(?<godFormat>.+)"                            // ZZZZ год - NNN.fff
+            + "|(?:\\[\\d+\\] )?(?<titledName>.+) \\((?<titledYear>\\d{4})\\)\\.(?<titledFormat>.+)"   // [somenumber] NNN (ZZZZ).fff
+            + "|\\d+ - (?<numberedName>.+)\\.(?<numberedFormat>.+)");                                 // ZZZZ - NNN.fff
+    private static final Pattern DIRECTORY_PATTERN = Pattern.compile("(.+) год - (.+)"); // ZZZZ+ год - NNN
+
+    public enum NameKind {
+        /** XXXX.YY. ZZZZ - NNN.fff, the normalized layout */
+        STANDARD,
+        /** ZZZZ год - NNN.fff */
+        YEAR_FIRST,
+        /** [somenumber] NNN (ZZZZ).fff */
+        YEAR_IN_PARENTHESES,
+        /** ZZZZ - NNN.fff, the year comes from the directory */
+        NUMBERED
+    }
+
+    /**
+     * @param group Group number, only set for {@link NameKind#STANDARD}
+     * @param unit  Unit number within the group, only set for {@link NameKind#STANDARD}
+     */
+    public record ParsedVideoName(NameKind kind, String group, String unit, String year, String name, String format) {
+
+        public String toStandardName(String newGroup, String newUnit) {
+            return newGroup + "." + newUnit + ". " + year + " - " + name + "." + format;
+        }
+    }
+
+    /**
+     * @return The parsed name, or null if the file name has none of the known layouts
+     */
+    public ParsedVideoName parse(String fileName) {
+        return parse(fileName, null);
+    }
+
+    /**
+     * @param directoryName Name of a series directory the file lives in, or null. A "ZZZZ год - NNN"
+     *                      directory prefixes the name with its title and gives numbered files their year.
+     * @return The parsed name, or null if the file name has none of the known layouts
+     */
+    public ParsedVideoName parse(String fileName, String directoryName) {
+        Matcher matcher = VIDEO_NAME_PATTERN.matcher(fileName);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String serialName = "";
+        String directoryYear = "";
+        if (directoryName != null) {
+            Matcher directoryMatcher = DIRECTORY_PATTERN.matcher(directoryName);
+            if (directoryMatcher.matches()) {
+                directoryYear = directoryMatcher.group(1);
+                serialName = directoryMatcher.group(2) + ". ";
+            }
+        }
+
+        if (matcher.group("group") != null) {
+            return new ParsedVideoName(NameKind.STANDARD, matcher.group("group"), matcher.group("unit"),
+                    matcher.group("year"), serialName + matcher.group("name"), matcher.group("format"));
+        } else if (matcher.group("godYear") != null) {
+            return new ParsedVideoName(NameKind.YEAR_FIRST, null, null,
+                    matcher.group("godYear"), serialName + matcher.group("godName"), matcher.group("godFormat"));
+        } else if (matcher.group("titledYear") != null) {
+            return new ParsedVideoName(NameKind.YEAR_IN_PARENTHESES, null, null,
+                    matcher.group("titledYear"), serialName + matcher.group("titledName"), matcher.group("titledFormat"));
+        } else {
+            return new ParsedVideoName(NameKind.NUMBERED, null, null,
+                    directoryYear, serialName + matcher.group("numberedName"), matcher.group("numberedFormat"));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.joymutlu.joyfulconverter.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the job API and the job journal, so no JSON library has to be bundled.
+ * Objects map to {@link Map}, arrays to {@link List}, numbers to {@link Long} or {@link Double}.
+ */
+public class JsonUtils {
+
+    /**
+     * Serializes maps, lists, strings, numbers, booleans, enums and null. NaN and infinite numbers,
+     * which JSON cannot represent, are written as null.
+     *
+     * @param value The value to serialize
+     * @return Compact JSON text
+     */
+    public static String toJson(Object value) {
+        StringBuilder json = new StringBuilder();
+        write(value, json);
+        return json.toString();
+    }
+
+    /**
+     * Parses JSON text.
+     *
+     * @param text The JSON text
+     * @return The parsed value
+     * @throws IllegalArgumentException If the text is not valid JSON
+     */
+    public static Object parse(String text) {
+        Parser parser = new Parser(text);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected trailing content");
+        }
+        return value;
+    }
+
+    /**
+     * Parses JSON text that must contain an object.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String text) {
+        Object value = parse(text);
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("JSON object expected");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static void write(Object value, StringBuilder json) {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof String || value instanceof Enum) {
+            writeString(value.toString(), json);
+        } else if ((value instanceof Double number && !Double.isFinite(number))
+                || (value instanceof Float single && !Float.isFinite(single))) {
+            json.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value instanceof Map<?, ?> map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                writeString(String.valueOf(entry.getKey()), json);
+                json.append(':');
+                write(entry.getValue(), json);
+            }
+            json.append('}');
+        } else if (value instanceof Iterable<?> iterable) {
+            json.append('[');
+            boolean first = true;
+            for (Object element : iterable) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                write(element, json);
+            }
+            json.append(']');
+        } else {
+            writeString(value.toString(), json);
+        }
+    }
+
+    private static void writeString(String value, StringBuilder json) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Object readValue() {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            char c = text.charAt(position);
+            switch (c) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    expect("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expect("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expect("null");
+                    return null;
+                default:
+                    return readNumber();
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                consume(':');
+                object.put(key, readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    consume('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    consume(']');
+                    return array;
+                }
+            }
+        }
+
+        private String readString() {
+            consume('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'u' -> {
+                        if (position + 4 > text.length()) {
+                            throw error("Truncated \\u escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid \\u escape");
+                        }
+                        position += 4;
+                    }
+                    default -> value.append(escaped);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private Number readNumber() {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String number = text.substring(start, position);
+            if (number.isEmpty()) {
+                throw error("Unexpected character '" + text.charAt(start) + "'");
+            }
+            try {
+                if (number.contains(".") || number.contains("e") || number.contains("E")) {
+                    return Double.parseDouble(number);
+                }
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number " + number);
+            }
+        }
+
+        private void expect(String literal) {
+            if (!text.startsWith(literal, position)) {
+                throw error("Expected " + literal);
+            }
+            position += literal.length();
+        }
+
+        private void consume(char expected) {
+            if (peek() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+            position++;
+        }
+
+        private char peek() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            return text.charAt(position);
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.joymutlu.joyfulconverter.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lists the files of a folder tree like {@link Files#walk}, but reads the subfolders in parallel.
+ * On a NAS every folder listing is a round trip, which a sequential walk pays one after the other.
+ * Each folder is listed on its own virtual thread where available (see {@link ThreadPools}), at most
+ * {@value #MAX_PARALLEL_LISTINGS} at a time.
+ */
+public final class ParallelFileWalker {
+
+    private static final int MAX_PARALLEL_LISTINGS = 32;
+
+    private final ExecutorService listers = ThreadPools.newIoExecutor("folder-walker-", MAX_PARALLEL_LISTINGS);
+    private final Semaphore listings = new Semaphore(MAX_PARALLEL_LISTINGS);
+    private final Queue<Path> files = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingFolders = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<IOException> firstError = new AtomicReference<>();
+
+    private ParallelFileWalker() {
+    }
+
+    /**
+     * Symbolic links to folders are not followed, links to files are listed, as with {@link Files#walk}.
+     *
+     * @param root Folder to list. A file is returned as the only entry
+     * @return Every regular file below the folder, sorted by path
+     * @throws IOException If a folder cannot be read
+     */
+    public static List<Path> listFiles(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return Files.isRegularFile(root) ? List.of(root) : List.of();
+        }
+        ParallelFileWalker walker = new ParallelFileWalker();
+        try {
+            walker.submit(root);
+            walker.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing " + root);
+        } finally {
+            walker.listers.shutdownNow();
+        }
+        if (walker.firstError.get() != null) {
+            throw walker.firstError.get();
+        }
+        List<Path> result = new ArrayList<>(walker.files);
+        result.sort(null);
+        return result;
+    }
+
+    private void submit(Path folder) {
+        pendingFolders.incrementAndGet();
+        listers.execute(() -> {
+            try {
+                listings.acquire();
+                try {
+                    list(folder);
+                } finally {
+                    listings.release();
+                }
+            } catch (IOException e) {
+                firstError.compareAndSet(null, e);
+            } catch (InterruptedException e) {
+                firstError.compareAndSet(null, new InterruptedIOException("Interrupted while listing " + folder));
+            } finally {
+                if (pendingFolders.decrementAndGet() == 0) {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    private void list(Path folder) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    submit(entry);
+                } else if (attributes.isRegularFile() || (attributes.isSymbolicLink() && Files.isRegularFile(entry))) {
+                    files.add(entry);
+                }
+            }
+        }
+    }
+}
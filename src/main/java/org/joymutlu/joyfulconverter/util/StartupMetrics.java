@@ -0,0 +1,36 @@
+package org.joymutlu.joyfulconverter.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Logs how long after JVM start the application became usable and when the first video frame was
+ * decoded. Each milestone is reported once per process.
+ */
+public final class StartupMetrics {
+
+    private static final AtomicBoolean interactiveReported = new AtomicBoolean();
+    private static final AtomicBoolean firstFrameReported = new AtomicBoolean();
+
+    private StartupMetrics() {
+    }
+
+    /**
+     * @param what The front end that became usable, e.g. "UI" or "Job API"
+     */
+    public static void markInteractive(String what) {
+        if (interactiveReported.compareAndSet(false, true)) {
+            System.out.println("Startup: " + what + " ready " + millisSinceJvmStart() + " ms after JVM start");
+        }
+    }
+
+    public static void markFirstFrame() {
+        if (firstFrameReported.compareAndSet(false, true)) {
+            System.out.println("Startup: first frame decoded " + millisSinceJvmStart() + " ms after JVM start");
+        }
+    }
+
+    public static long millisSinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
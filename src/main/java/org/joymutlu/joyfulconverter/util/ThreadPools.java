@@ -0,0 +1,117 @@
+package org.joymutlu.joyfulconverter.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for the two kinds of work in the application.
+ * <p>
+ * Orchestration (walking folders, sniffing headers, journaling, serving requests, waiting for
+ * conversions) mostly blocks on I/O. On a Java 21+ runtime it runs on virtual threads, so thousands
+ * of such tasks cost a few kilobytes each. On Java 17 the same code gets a bounded pool of platform
+ * threads instead. {@code -Djoyful.virtualThreads=false} forces platform threads on any runtime.
+ * <p>
+ * FFmpeg work never runs on virtual threads: a virtual thread inside a native call pins its carrier,
+ * and there are only as many carriers as cores. Remuxing and encoding use the platform pools of
+ * {@link org.joymutlu.joyfulconverter.service.ConversionThreads}.
+ */
+public final class ThreadPools {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        if (Boolean.parseBoolean(System.getProperty("joyful.virtualThreads", "true"))) {
+            try {
+                // Compiled for Java 17, so the Java 21 API is looked up at runtime
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                builderName = builderClass.getMethod("name", String.class, long.class);
+                builderFactory = builderClass.getMethod("factory");
+                newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (ReflectiveOperationException e) {
+                ofVirtual = null;
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private ThreadPools() {
+    }
+
+    public static boolean hasVirtualThreads() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Executor for blocking orchestration tasks: one virtual thread per task on Java 21+, otherwise a
+     * fixed pool of daemon platform threads. Callers that submit more tasks than {@code platformThreads}
+     * and need a bound on Java 21+ as well (e.g. on open files) have to apply it themselves.
+     *
+     * @param namePrefix      Thread name prefix, the threads are numbered from 1
+     * @param platformThreads Pool size on runtimes without virtual threads
+     */
+    public static ExecutorService newIoExecutor(String namePrefix, int platformThreads) {
+        ThreadFactory virtualThreads = virtualThreads(namePrefix);
+        if (virtualThreads != null) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, virtualThreads);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable, using platform threads: " + e);
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, daemonThreads(namePrefix));
+    }
+
+    /**
+     * Starts a long-lived blocking task, e.g. a connection handler: on a virtual thread on Java 21+,
+     * otherwise on a daemon platform thread.
+     */
+    public static Thread startIoThread(String name, Runnable task) {
+        ThreadFactory virtualThreads = virtualThreads(name);
+        Thread thread = virtualThreads != null ? virtualThreads.newThread(task) : new Thread(task);
+        thread.setName(name);
+        thread.setDaemon(true); // Always true for virtual threads
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Numbered daemon platform threads, for pools that run FFmpeg or other CPU-bound work.
+     */
+    public static ThreadFactory daemonThreads(String namePrefix) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @return Factory of numbered virtual threads, null if the runtime has none
+     */
+    private static ThreadFactory virtualThreads(String namePrefix) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+            return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
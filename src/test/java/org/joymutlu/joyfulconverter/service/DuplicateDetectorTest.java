@@ -0,0 +1,102 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.joymutlu.joyfulconverter.service.DuplicateDetector.DeduplicationResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DuplicateDetectorTest {
+
+    private static final int BLOCK = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private final DuplicateDetector detector = new DuplicateDetector();
+
+    @Test
+    void equalSizeWithDifferentHeadOrTailIsNotADuplicate() throws IOException {
+        byte[] content = randomBytes(4 * BLOCK, 1);
+        File original = write("original.avi", content);
+        File otherHead = write("other-head.avi", changedAt(content, 10));
+        File otherTail = write("other-tail.avi", changedAt(content, content.length - 10));
+
+        DeduplicationResult result = detector.findDuplicates(List.of(original, otherHead, otherTail));
+
+        assertEquals(List.of(original, otherHead, otherTail), result.uniqueFiles());
+        assertEquals(0, result.duplicateCount());
+    }
+
+    @Test
+    void differingMiddleIsFoundByTheFullHash() throws IOException {
+        byte[] content = randomBytes(4 * BLOCK, 2);
+        File original = write("original.avi", content);
+        File copy = write("copy.avi", content);
+        // Head and tail blocks are the same, only hashing the whole file tells them apart
+        File otherMiddle = write("other-middle.avi", changedAt(content, 2 * BLOCK));
+
+        DeduplicationResult result = detector.findDuplicates(List.of(original, otherMiddle, copy));
+
+        assertEquals(List.of(original, otherMiddle), result.uniqueFiles());
+        assertEquals(List.of(copy), result.duplicatesOf(original));
+        assertEquals(List.of(), result.duplicatesOf(otherMiddle));
+    }
+
+    @Test
+    void filesSmallerThanABlock() throws IOException {
+        byte[] content = randomBytes(1000, 3);
+        File original = write("original.avi", content);
+        File copy = write("copy.avi", content);
+        File other = write("other.avi", changedAt(content, 500));
+        File empty = write("empty.avi", new byte[0]);
+        File otherEmpty = write("other-empty.avi", new byte[0]);
+
+        DeduplicationResult result = detector.findDuplicates(List.of(original, copy, other, empty, otherEmpty));
+
+        assertEquals(List.of(original, other, empty), result.uniqueFiles());
+        assertEquals(List.of(copy), result.duplicatesOf(original));
+        assertEquals(List.of(otherEmpty), result.duplicatesOf(empty));
+        assertEquals(2, result.duplicateCount());
+    }
+
+    @Test
+    void uniqueFilesKeepTheGivenOrder() throws IOException {
+        byte[] first = randomBytes(3 * BLOCK, 4);
+        byte[] second = randomBytes(3 * BLOCK, 5);
+        File c = write("c.avi", first);
+        File a = write("a.avi", second);
+        File single = write("single.avi", randomBytes(BLOCK, 6));
+        File aCopy = write("a-copy.avi", second);
+        File cCopy = write("c-copy.avi", first);
+
+        DeduplicationResult result = detector.findDuplicates(List.of(c, a, single, aCopy, cCopy));
+
+        // The first file of a duplicate set is the one converted
+        assertEquals(List.of(c, a, single), result.uniqueFiles());
+        assertEquals(List.of(cCopy), result.duplicatesOf(c));
+        assertEquals(List.of(aCopy), result.duplicatesOf(a));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        return Files.write(directory.resolve(name), content).toFile();
+    }
+
+    private static byte[] changedAt(byte[] content, int index) {
+        byte[] changed = content.clone();
+        changed[index]++;
+        return changed;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,291 @@
+package org.joymutlu.joyfulconverter.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads from a local {@link HttpServer} that serves one file with ranges, an ETag and If-Range, and
+ * can change the file or fail ranges while it is read.
+ */
+class HttpRangeInputStreamTest {
+
+    private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+    private volatile byte[] content;
+    private volatile String etag = "\"1\"";
+    /** Ranges by their first byte that are answered with 500 */
+    private volatile LongPredicate failing = first -> false;
+    private final List<String> requestedRanges = new CopyOnWriteArrayList<>();
+    /** Range requests answered with the whole file, as a server that does not support ranges would */
+    private volatile boolean ignoringRanges;
+    private final AtomicInteger wholeFileResponses = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::serve);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void readsAcrossChunksAndSeeks() throws IOException {
+        content = randomBytes(5 * CHUNK_SIZE + 12345);
+
+        try (HttpRangeInputStream stream = open()) {
+            assertEquals(content.length, stream.size());
+
+            // Odd reads that end in the middle of chunks and cross their boundaries
+            byte[] read = new byte[content.length];
+            int position = 0;
+            while (position < read.length) {
+                int count = stream.read(read, position, Math.min(777_777, read.length - position));
+                assertTrue(count > 0);
+                position += count;
+            }
+            assertArrayEquals(content, read);
+            assertEquals(-1, stream.read());
+
+            // Seeks the way FFmpeg does: reset to the mark at the start, then skip
+            stream.reset();
+            assertEquals(CHUNK_SIZE - 2, stream.skip(CHUNK_SIZE - 2));
+            byte[] boundary = new byte[4];
+            assertEquals(2, stream.read(boundary, 0, 4)); // Ends with the chunk
+            assertEquals(2, stream.read(boundary, 2, 2));
+            assertArrayEquals(Arrays.copyOfRange(content, CHUNK_SIZE - 2, CHUNK_SIZE + 2), boundary);
+            stream.checkReadError();
+        }
+
+        for (String range : requestedRanges.subList(1, requestedRanges.size())) { // After the probe
+            long first = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+            assertEquals(0, first % CHUNK_SIZE, range);
+        }
+    }
+
+    @Test
+    void requestsTheNextChunksAhead() throws Exception {
+        content = randomBytes(12 * CHUNK_SIZE);
+
+        try (HttpRangeInputStream stream = open()) {
+            stream.read();
+            waitForRequests(1 + 9);
+            Thread.sleep(200);
+            // The probe, the chunk that was read and the 8 after it, none beyond
+            assertEquals(1 + 9, requestedRanges.size(), requestedRanges.toString());
+            assertFalse(requestedRanges.contains(range(9)));
+
+            // A seek fetches only the chunk it lands in
+            stream.skip(11L * CHUNK_SIZE - 1);
+            stream.read();
+            assertEquals(range(11), requestedRanges.get(requestedRanges.size() - 1));
+            Thread.sleep(200);
+            assertEquals(1 + 10, requestedRanges.size(), requestedRanges.toString());
+        }
+    }
+
+    @Test
+    void failsInsteadOfSplicingAChangedFile() throws Exception {
+        byte[] original = randomBytes(12 * CHUNK_SIZE);
+        content = original;
+
+        try (HttpRangeInputStream stream = open()) {
+            byte[] read = new byte[original.length];
+            int[] position = {stream.read(read, 0, 1000)};
+            waitForRequests(1 + 9); // The read-ahead got the first version
+            content = randomBytes(original.length);
+            etag = "\"2\"";
+
+            IOException error = assertThrows(IOException.class, () -> {
+                while (true) {
+                    int count = stream.read(read, position[0], read.length - position[0]);
+                    assertNotEquals(-1, count, "read to the end");
+                    position[0] += count;
+                }
+            });
+
+            assertTrue(error.getMessage().contains("changed"), error.getMessage());
+            assertEquals(9 * CHUNK_SIZE, position[0], "failed at the first chunk requested after the change");
+            assertArrayEquals(Arrays.copyOf(original, position[0]), Arrays.copyOf(read, position[0]));
+            assertThrows(ControlledInputStream.ReadFailedException.class, stream::checkReadError);
+        }
+    }
+
+    @Test
+    void wholeFileResponseFailsAtOnce() throws IOException {
+        content = randomBytes(3 * CHUNK_SIZE);
+        etag = null; // Nothing to send as If-Range
+
+        try (HttpRangeInputStream stream = open()) {
+            ignoringRanges = true;
+            IOException error = assertThrows(IOException.class, () -> stream.read(new byte[1024]));
+
+            assertTrue(error.getMessage().contains("ignored the range"), error.getMessage());
+            // At most once per chunk of the file (the chunk read and the read-ahead): retries of the
+            // first chunk alone would have made it at least MAX_ATTEMPTS before the read failed
+            assertTrue(wholeFileResponses.get() <= 3, wholeFileResponses.get() + " whole-file responses");
+        }
+    }
+
+    @Test
+    void weakEtagIsNotSentAsIfRange() throws IOException {
+        content = randomBytes(3 * CHUNK_SIZE + 1);
+        etag = "W/\"1\"";
+
+        try (HttpRangeInputStream stream = open()) {
+            byte[] read = stream.readAllBytes();
+            assertArrayEquals(content, read);
+            stream.checkReadError();
+        }
+    }
+
+    @Test
+    void chunkThatKeepsFailingFailsTheConversion() throws Exception {
+        Path video = directory.resolve("noise.avi");
+        writeNoiseVideo(video);
+        content = Files.readAllBytes(video);
+        assertTrue(content.length > 2 * CHUNK_SIZE, "test video of " + content.length + " bytes");
+        Path output = directory.resolve("out.mp4");
+        failing = first -> first >= CHUNK_SIZE && first < content.length - CHUNK_SIZE; // Header and index still load
+
+        // Fails without anything to learn, so the shared strategy cache is not written
+        ConversionResult failed = new ConversionService().convert(MediaSource.of(uri().toString()), output.toString(),
+                ConversionOptions.of("mp4", true), new JobControl(), progress -> { });
+
+        assertEquals(ConversionResultStatus.FAILED, failed.status());
+        assertTrue(failed.failureReason().contains("status 500"), failed.failureReason());
+        assertFalse(Files.exists(output), "partial output removed");
+        assertFalse(Files.exists(directory.resolve("out.mkv")), "no MKV fallback");
+    }
+
+    private HttpRangeInputStream open() throws IOException {
+        HttpRangeInputStream.Probe probe = HttpRangeInputStream.probe(uri(), 1024);
+        HttpRangeInputStream stream = new HttpRangeInputStream(uri(), probe.size(), probe.validator(), new JobControl());
+        stream.mark(0);
+        return stream;
+    }
+
+    private URI uri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/noise.avi");
+    }
+
+    private String range(long chunk) {
+        long first = chunk * CHUNK_SIZE;
+        return "bytes=" + first + "-" + (Math.min(content.length, first + CHUNK_SIZE) - 1);
+    }
+
+    private void waitForRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (requestedRanges.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = content;
+            String currentEtag = etag;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (currentEtag != null) {
+                exchange.getResponseHeaders().add("ETag", currentEtag);
+            }
+            // A weak validator never matches If-Range
+            if (range == null || ignoringRanges || (ifRange != null && (ifRange.startsWith("W/") || !ifRange.equals(currentEtag)))) {
+                wholeFileResponses.incrementAndGet();
+                exchange.sendResponseHeaders(200, body.length);
+                write(exchange, body, 0, body.length);
+                return;
+            }
+            requestedRanges.add(range);
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long first = Long.parseLong(bounds[0]);
+            long last = Math.min(Long.parseLong(bounds[1]), body.length - 1);
+            if (failing.test(first)) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + body.length);
+            exchange.sendResponseHeaders(206, last - first + 1);
+            write(exchange, body, (int) first, (int) (last - first + 1));
+        }
+    }
+
+    private static void write(HttpExchange exchange, byte[] body, int offset, int length) throws IOException {
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body, offset, length);
+        } catch (IOException e) {
+            // The client dropped a read-ahead chunk it no longer needs
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * MPEG-4 Part 2 in AVI, as the archives it is read from. Noise compresses badly, so a few seconds
+     * span several chunks.
+     */
+    private static void writeNoiseVideo(Path file) throws IOException {
+        int width = 640;
+        int height = 480;
+        Random random = new Random(1);
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file.toFile(), width, height, 0)) {
+            recorder.setFormat("avi");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+            recorder.setVideoQuality(2);
+            recorder.setFrameRate(25);
+            recorder.setGopSize(25);
+            recorder.start();
+            Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 3);
+            byte[] pixels = new byte[((ByteBuffer) frame.image[0]).capacity()];
+            for (int i = 0; i < 20; i++) {
+                random.nextBytes(pixels);
+                ((ByteBuffer) frame.image[0]).position(0);
+                ((ByteBuffer) frame.image[0]).put(pixels);
+                recorder.record(frame);
+            }
+            recorder.stop();
+        }
+    }
+}
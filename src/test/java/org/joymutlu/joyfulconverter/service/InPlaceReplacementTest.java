@@ -0,0 +1,104 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InPlaceReplacementTest {
+
+    private static final FileTime RECORDED = FileTime.from(Instant.parse("2009-07-14T18:30:00Z"));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void commitRenamesAndDeletesTheOriginal() throws IOException {
+        Path original = write("holiday.avi", "avi");
+        Path temp = writeTemp(original, "mp4");
+
+        Path output = InPlaceReplacement.commit(original, temp);
+
+        assertEquals(directory.resolve("holiday.mp4"), output);
+        assertEquals("mp4", Files.readString(output));
+        assertEquals(RECORDED, Files.getLastModifiedTime(output), "original's time is kept");
+        assertFalse(Files.exists(original));
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    void commitReplacesAnOriginalWithTheOutputsExtension() throws IOException {
+        // An AVI named .mp4 is converted to the very name it already has
+        Path original = write("mislabelled.mp4", "avi");
+        Path temp = writeTemp(original, "mp4");
+
+        Path output = InPlaceReplacement.commit(original, temp);
+
+        assertEquals(original, output);
+        assertEquals("mp4", Files.readString(original));
+        assertEquals(RECORDED, Files.getLastModifiedTime(original));
+        assertFalse(Files.exists(temp));
+        try (var files = Files.list(directory)) {
+            assertEquals(List.of(original), files.toList());
+        }
+    }
+
+    @Test
+    void commitLeavesEverythingAsItIsWhenAnotherFileHasTheName() throws IOException {
+        Path original = write("concert.avi", "avi");
+        Path other = write("concert.mp4", "other");
+        Path temp = writeTemp(original, "mp4");
+
+        assertThrows(FileAlreadyExistsException.class, () -> InPlaceReplacement.commit(original, temp));
+
+        assertEquals("avi", Files.readString(original));
+        assertEquals("other", Files.readString(other));
+        assertEquals("mp4", Files.readString(temp));
+    }
+
+    @Test
+    void collisionsIgnoreCase() {
+        Path foo = directory.resolve("foo.avi");
+        Path fooUpper = directory.resolve("FOO.mpg");
+        Path bar = directory.resolve("bar.avi");
+        Path otherFolder = directory.resolve("sub").resolve("foo.flv");
+        Path barMislabelled = directory.resolve("Bar.MP4");
+
+        List<Path> collisions = InPlaceReplacement.findCollisions(List.of(foo, bar, otherFolder, fooUpper, barMislabelled));
+
+        assertEquals(List.of(foo, bar, fooUpper, barMislabelled), collisions);
+        assertTrue(InPlaceReplacement.findCollisions(List.of(foo, otherFolder)).isEmpty(), "other directory");
+    }
+
+    @Test
+    void tempOutputsOfOriginalsWithTheSameBaseNameDiffer() {
+        Path avi = directory.resolve("foo.avi");
+        Path flv = directory.resolve("foo.flv");
+
+        assertNotEquals(InPlaceReplacement.tempOutput(avi, "mp4"), InPlaceReplacement.tempOutput(flv, "mp4"));
+        assertTrue(InPlaceReplacement.isTempOutput(InPlaceReplacement.tempOutput(avi, "mkv")));
+        assertFalse(InPlaceReplacement.isTempOutput(avi));
+    }
+
+    /** A fresh output, its time is the conversion's, not the recording's */
+    private static Path writeTemp(Path original, String format) throws IOException {
+        return Files.writeString(InPlaceReplacement.tempOutput(original, format), format);
+    }
+
+    private Path write(String name, String content) throws IOException {
+        Path file = Files.writeString(directory.resolve(name), content);
+        Files.setLastModifiedTime(file, RECORDED);
+        return file;
+    }
+}
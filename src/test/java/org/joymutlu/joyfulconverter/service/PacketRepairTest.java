@@ -0,0 +1,153 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.av_make_q;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Feeds synthetic H.264 packets, which skip the MPEG-4 bitstream filter, so only the timestamp
+ * repair is under test. A packet is a (dts, pts) pair, N for AV_NOPTS_VALUE.
+ */
+class PacketRepairTest {
+
+    private static final long N = AV_NOPTS_VALUE;
+
+    private AVFormatContext context;
+
+    @BeforeEach
+    void createContext() {
+        context = avformat_alloc_context();
+    }
+
+    @AfterEach
+    void freeContext() {
+        avformat_free_context(context);
+    }
+
+    @Test
+    void continuesMissingAndNonIncreasingDecodingTimestamps() throws Exception {
+        try (PacketRepair repair = new PacketRepair(videoStream(0))) {
+            List<long[]> written = run(repair, new long[][]{{0, N}, {1, N}, {N, N}, {2, N}, {5, 5}});
+
+            assertTimestamps(new long[][]{{0, 0}, {1, 1}, {2, 2}, {3, 3}, {5, 5}}, written);
+            assertTrue(repair.hasRepaired());
+        }
+    }
+
+    @Test
+    void leavesValidPacketsAlone() throws Exception {
+        try (PacketRepair repair = new PacketRepair(videoStream(0))) {
+            List<long[]> written = run(repair, new long[][]{{0, 0}, {1, 1}, {2, 2}});
+
+            assertTimestamps(new long[][]{{0, 0}, {1, 1}, {2, 2}}, written);
+            assertFalse(repair.hasRepaired());
+        }
+    }
+
+    @Test
+    void showsReferenceFramesWhenTheNextOneIsDecoded() throws Exception {
+        try (PacketRepair repair = new PacketRepair(videoStream(1))) {
+            // AVI decoding order I P B B P: only the B-frames have presentation timestamps
+            List<long[]> written = run(repair, new long[][]{{0, N}, {1, N}, {2, 2}, {3, 3}, {4, N}});
+
+            assertTimestamps(new long[][]{{0, 1}, {1, 4}, {2, 2}, {3, 3}, {4, 5}}, written);
+            assertTrue(repair.hasRepaired());
+        }
+    }
+
+    @Test
+    void neverPresentsBeforeDecoding() throws Exception {
+        try (PacketRepair repair = new PacketRepair(videoStream(0))) {
+            List<long[]> written = run(repair, new long[][]{{0, 0}, {3, 1}});
+
+            assertTimestamps(new long[][]{{0, 0}, {3, 3}}, written);
+        }
+    }
+
+    @Test
+    void failedWriteOfHeldBackPacketsPropagatesAndCloses() throws Exception {
+        PacketRepair repair = new PacketRepair(videoStream(1));
+        List<long[]> written = new ArrayList<>();
+        for (long[] timestamp : new long[][]{{0, N}, {1, 1}, {2, 2}}) { // I B B, all held back
+            AVPacket packet = packet(timestamp[0], timestamp[1]);
+            try {
+                repair.write(packet, held -> written.add(new long[]{held.dts(), held.pts()}));
+            } finally {
+                av_packet_free(packet);
+            }
+        }
+        assertTrue(written.isEmpty());
+
+        // Fails on the I-frame, the B-frames behind it are never handed to the writer but must be freed
+        IOException failure = new IOException("muxer failed");
+        assertSame(failure, assertThrows(IOException.class, () -> repair.flush(packet -> {
+            throw failure;
+        })));
+        repair.close();
+    }
+
+    private AVStream videoStream(int videoDelay) {
+        AVStream stream = avformat_new_stream(context, null);
+        stream.codecpar().codec_type(AVMEDIA_TYPE_VIDEO);
+        stream.codecpar().codec_id(AV_CODEC_ID_H264);
+        stream.codecpar().video_delay(videoDelay);
+        stream.time_base(av_make_q(1, 25));
+        stream.avg_frame_rate(new AVRational().num(25).den(1));
+        return stream;
+    }
+
+    /**
+     * @return (dts, pts) of every written packet, in writing order
+     */
+    private static List<long[]> run(PacketRepair repair, long[][] timestamps) throws Exception {
+        List<long[]> written = new ArrayList<>();
+        PacketRepair.PacketWriter writer = packet -> written.add(new long[]{packet.dts(), packet.pts()});
+        for (long[] timestamp : timestamps) {
+            AVPacket packet = packet(timestamp[0], timestamp[1]);
+            try {
+                repair.write(packet, writer);
+            } finally {
+                av_packet_free(packet);
+            }
+        }
+        repair.flush(writer);
+        return written;
+    }
+
+    private static AVPacket packet(long dts, long pts) {
+        AVPacket packet = av_packet_alloc();
+        packet.dts(dts);
+        packet.pts(pts);
+        return packet;
+    }
+
+    private static void assertTimestamps(long[][] expected, List<long[]> actual) {
+        assertEquals(expected.length, actual.size(), "packets written");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], actual.get(i)[0], "dts of packet " + i);
+            assertEquals(expected[i][1], actual.get(i)[1], "pts of packet " + i);
+        }
+    }
+}
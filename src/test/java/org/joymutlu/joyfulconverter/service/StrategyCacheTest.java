@@ -0,0 +1,119 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.nio.file.Path;
+import org.joymutlu.joyfulconverter.service.StrategyCache.Decision;
+import org.joymutlu.joyfulconverter.service.StrategyCache.LearnedStrategyException;
+import org.joymutlu.joyfulconverter.service.StrategyCache.Strategy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StrategyCacheTest {
+
+    private static final String SIGNATURE = "avi flags=0 video=mpeg4/XVID yuv420p tb=1/25 bframes=true audio=mp3";
+    private static final String OTHER_SIGNATURE = "mov,mp4,m4a,3gp,3g2,mj2 flags=0 video=h264/avc1 yuv420p tb=1/12800 bframes=true audio=aac";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void unknownSignatureTriesTheFullChain() {
+        StrategyCache cache = new StrategyCache(directory.resolve("strategies.json"));
+
+        assertDoesNotThrow(() -> cache.decide("mp4", true).probed(SIGNATURE));
+    }
+
+    @Test
+    void learnedFallbackSkipsTheFailedAttempts() throws Exception {
+        StrategyCache cache = new StrategyCache(directory.resolve("strategies.json"));
+        learn(cache, "mp4", Strategy.REENCODE);
+
+        LearnedStrategyException learned = assertThrows(LearnedStrategyException.class,
+                () -> cache.decide("MP4", true).probed(SIGNATURE));
+
+        assertEquals(Strategy.REENCODE, learned.strategy());
+        assertDoesNotThrow(() -> cache.decide("mkv", true).probed(SIGNATURE), "other output format");
+        assertDoesNotThrow(() -> cache.decide("mp4", true).probed(OTHER_SIGNATURE), "other signature");
+        assertDoesNotThrow(() -> cache.decide("mp4", false).probed(SIGNATURE), "disabled");
+    }
+
+    @Test
+    void directRemuxIsNeverSkipped() throws Exception {
+        StrategyCache cache = new StrategyCache(directory.resolve("strategies.json"));
+        cache.decide("mp4", true).probed(SIGNATURE);
+        cache.decide("mp4", true).succeeded(Strategy.REMUX);
+
+        assertDoesNotThrow(() -> cache.decide("mp4", true).probed(SIGNATURE));
+    }
+
+    @Test
+    void failedLearnedStrategyIsForgotten() throws Exception {
+        StrategyCache cache = new StrategyCache(directory.resolve("strategies.json"));
+        learn(cache, "mp4", Strategy.REMUX_MKV);
+
+        Decision decision = cache.decide("mp4", true);
+        assertThrows(LearnedStrategyException.class, () -> decision.probed(SIGNATURE));
+        decision.mismatched();
+
+        assertDoesNotThrow(() -> cache.decide("mp4", true).probed(SIGNATURE));
+    }
+
+    @Test
+    void unlearnableFailuresTeachNothing() throws Exception {
+        StrategyCache cache = new StrategyCache(directory.resolve("strategies.json"));
+        Decision decision = cache.decide("mp4", true);
+        decision.probed(SIGNATURE);
+        decision.remuxFailed();
+        decision.unlearnable();
+        decision.succeeded(Strategy.REENCODE);
+
+        assertDoesNotThrow(() -> cache.decide("mp4", true).probed(SIGNATURE));
+    }
+
+    @Test
+    void fullChainRunsAgainAfterManySkips() throws Exception {
+        StrategyCache cache = new StrategyCache(directory.resolve("strategies.json"));
+        learn(cache, "mp4", Strategy.REENCODE);
+        int skips = 0;
+        while (true) {
+            try {
+                cache.decide("mp4", true).probed(SIGNATURE);
+                break;
+            } catch (LearnedStrategyException e) {
+                skips++;
+            }
+        }
+        assertEquals(200, skips);
+
+        // The re-check confirms the strategy and starts counting again
+        learn(cache, "mp4", Strategy.REENCODE);
+        assertThrows(LearnedStrategyException.class, () -> cache.decide("mp4", true).probed(SIGNATURE));
+    }
+
+    @Test
+    void entriesSurviveARestart() throws Exception {
+        Path file = directory.resolve("cache").resolve("strategies.json");
+        learn(new StrategyCache(file), "mp4", Strategy.REENCODE);
+
+        LearnedStrategyException learned = assertThrows(LearnedStrategyException.class,
+                () -> new StrategyCache(file).decide("mp4", true).probed(SIGNATURE));
+
+        assertEquals(Strategy.REENCODE, learned.strategy());
+    }
+
+    /**
+     * One conversion of {@link #SIGNATURE} whose remux attempts failed until the given strategy succeeded.
+     */
+    private static void learn(StrategyCache cache, String outputFormat, Strategy strategy) throws LearnedStrategyException {
+        Decision decision = cache.decide(outputFormat, true);
+        decision.probed(SIGNATURE);
+        decision.remuxFailed();
+        if (strategy == Strategy.REENCODE) {
+            decision.mkvFailed();
+        }
+        decision.succeeded(strategy);
+    }
+}
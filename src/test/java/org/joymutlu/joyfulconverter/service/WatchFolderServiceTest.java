@@ -0,0 +1,82 @@
+package org.joymutlu.joyfulconverter.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WatchFolderServiceTest {
+
+    private static final long STABILITY_MILLIS = 500;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 5_000;
+
+    @TempDir
+    Path directory;
+
+    private final BlockingQueue<Path> delivered = new LinkedBlockingQueue<>();
+    private WatchFolderService service;
+
+    @AfterEach
+    void stopWatching() {
+        if (service != null) {
+            service.close();
+        }
+    }
+
+    @Test
+    void growingFileIsDeliveredOnceItStopsChanging() throws Exception {
+        start();
+        Path recording = directory.resolve("recording.avi");
+
+        // Grows for several stability windows, as a capture or a copy would
+        for (int i = 0; i < 15; i++) {
+            Files.write(recording, new byte[1024], StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Thread.sleep(STABILITY_MILLIS / 5);
+            assertNull(delivered.poll(), "delivered while still growing");
+        }
+
+        assertEquals(recording, delivered.poll(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(delivered.poll(3 * STABILITY_MILLIS, TimeUnit.MILLISECONDS), "delivered twice");
+    }
+
+    @Test
+    void unchangedFileIsNotDeliveredTwice() throws Exception {
+        Path existing = Files.write(directory.resolve("existing.avi"), new byte[1024]);
+        start();
+        assertEquals(existing, delivered.poll(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Touching the file without changing it raises an event, but nothing to convert
+        Files.setLastModifiedTime(existing, Files.getLastModifiedTime(existing));
+        Path added = Files.write(directory.resolve("added.avi"), new byte[1024]);
+        assertEquals(added, delivered.poll(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(delivered.poll(3 * STABILITY_MILLIS, TimeUnit.MILLISECONDS), "unchanged file delivered again");
+
+        // A real change is delivered again
+        Files.write(existing, new byte[2048]);
+        assertEquals(existing, delivered.poll(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void filteredFilesAreIgnored() throws Exception {
+        start();
+        Files.write(directory.resolve("notes.txt"), new byte[16]);
+        Path video = Files.write(directory.resolve("clip.avi"), new byte[16]);
+
+        assertEquals(video, delivered.poll(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(delivered.poll(3 * STABILITY_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private void start() throws IOException {
+        service = new WatchFolderService(directory, file -> file.toString().endsWith(".avi"), delivered::add, STABILITY_MILLIS);
+        service.start();
+    }
+}
@@ -0,0 +1,145 @@
+package org.joymutlu.joyfulconverter.service.cluster;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.joymutlu.joyfulconverter.service.ConversionResultStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.joymutlu.joyfulconverter.service.cluster.ClusterProtocol.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversionCoordinatorTest {
+
+    private static final RemoteJob JOB_1 = new RemoteJob("job-1",
+            "\\\\nas\\videos\\holiday\t2019\nfinal.avi", "\\\\nas\\videos\\holiday\t2019\nfinal.mp4", "mp4", true);
+
+    private ConversionCoordinator coordinator;
+
+    @AfterEach
+    void closeCoordinator() {
+        if (coordinator != null) {
+            coordinator.close();
+        }
+    }
+
+    @Test
+    void expiredLeaseIsHandedOutAgain() throws Exception {
+        start(300, JOB_1);
+        try (TestWorker stalled = connect("stalled"); TestWorker healthy = connect("healthy")) {
+            String[] first = stalled.exchange(PULL);
+            assertArrayEquals(new String[] {JOB, "job-1", "1", "mp4", "true", JOB_1.inputPath(), JOB_1.outputPath()}, first,
+                    "paths with tabs and line breaks arrive unchanged");
+
+            String[] second = pullUntilJob(healthy, 5_000);
+            assertEquals("2", second[2], "attempt");
+
+            assertEquals(LOST, stalled.exchange(HEARTBEAT, "job-1")[0]);
+            assertEquals(LOST, stalled.exchange(DONE, "job-1", ConversionResultStatus.REMUX_MP4_OK)[0]);
+            assertEquals(OK, healthy.exchange(DONE, "job-1", ConversionResultStatus.REMUX_MP4_OK)[0]);
+            assertEquals(Map.of("job-1", ConversionResultStatus.REMUX_MP4_OK), coordinator.awaitCompletion());
+        }
+    }
+
+    @Test
+    void resultFromAnotherConnectionIsLost() throws Exception {
+        start(LEASE_MILLIS, JOB_1);
+        try (TestWorker owner = connect("owner"); TestWorker other = connect("other")) {
+            assertEquals(JOB, owner.exchange(PULL)[0]);
+
+            assertEquals(LOST, other.exchange(DONE, "job-1", ConversionResultStatus.REMUX_MP4_OK)[0]);
+            assertEquals(LOST, other.exchange(FAILED, "job-1", "disk full")[0]);
+            assertEquals(LOST, other.exchange(HEARTBEAT, "job-1")[0]);
+            assertTrue(coordinator.summary().isEmpty(), "no result recorded");
+
+            assertEquals(OK, owner.exchange(DONE, "job-1", ConversionResultStatus.REENCODE_OK)[0]);
+            assertEquals(Map.of("job-1", ConversionResultStatus.REENCODE_OK), coordinator.awaitCompletion());
+        }
+    }
+
+    @Test
+    void jobFailsAfterMaxAttempts() throws Exception {
+        start(LEASE_MILLIS, JOB_1);
+        try (TestWorker worker = connect("worker")) {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                String[] job = worker.exchange(PULL);
+                assertEquals(JOB, job[0]);
+                assertEquals(String.valueOf(attempt), job[2], "attempt");
+                // A DONE with status FAILED counts like FAILED
+                String[] reply = attempt % 2 == 0
+                        ? worker.exchange(DONE, "job-1", ConversionResultStatus.FAILED)
+                        : worker.exchange(FAILED, "job-1", "codec error");
+                assertEquals(OK, reply[0]);
+            }
+
+            assertEquals(BYE, worker.exchange(PULL)[0]);
+            assertEquals(Map.of("job-1", ConversionResultStatus.FAILED), coordinator.awaitCompletion());
+        }
+    }
+
+    private void start(long leaseMillis, RemoteJob... jobs) throws IOException {
+        coordinator = new ConversionCoordinator(0, List.of(jobs), leaseMillis);
+        coordinator.start();
+    }
+
+    private TestWorker connect(String name) throws IOException {
+        TestWorker worker = new TestWorker(new Socket(InetAddress.getLoopbackAddress(), coordinator.localPort()));
+        assertEquals(OK, worker.exchange(HELLO, name)[0]);
+        return worker;
+    }
+
+    private static String[] pullUntilJob(TestWorker worker, long timeoutMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            String[] reply = worker.exchange(PULL);
+            if (JOB.equals(reply[0])) {
+                return reply;
+            }
+            assertEquals(WAIT, reply[0]);
+            assertTrue(System.currentTimeMillis() < deadline, "lease was not requeued in time");
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * The worker side of the protocol, one request at a time like a worker slot.
+     */
+    private static final class TestWorker implements Closeable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+
+        private TestWorker(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        private String[] exchange(Object... request) throws IOException {
+            writer.write(message(request));
+            writer.newLine();
+            writer.flush();
+            String reply = reader.readLine();
+            if (reply == null) {
+                throw new IOException("Coordinator closed the connection");
+            }
+            return fields(reply);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.joymutlu.joyfulconverter.service.rename;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenameEngineTest {
+
+    @TempDir
+    Path root;
+
+    private final RenameEngine engine = new RenameEngine();
+
+    @Test
+    void swapsTwoFiles() throws IOException {
+        Path a = write("a.mp4", "A");
+        Path b = write("b.mp4", "B");
+
+        assertEquals(2, engine.execute(plan(new RenameMove(a, b), new RenameMove(b, a))));
+
+        assertEquals(Map.of("a.mp4", "B", "b.mp4", "A"), contents());
+    }
+
+    @Test
+    void rotatesACycleAndAChain() throws IOException {
+        Path a = write("a.mp4", "A");
+        Path b = write("b.mp4", "B");
+        Path c = write("c.mp4", "C");
+        Path d = write("d.mp4", "D");
+
+        // a -> b -> c -> a is a cycle, d -> e ends at a free name
+        engine.execute(plan(new RenameMove(a, b), new RenameMove(b, c), new RenameMove(c, a), new RenameMove(d, root.resolve("e.mp4"))));
+
+        assertEquals(Map.of("a.mp4", "C", "b.mp4", "A", "c.mp4", "B", "e.mp4", "D"), contents());
+    }
+
+    @Test
+    void refusesPlansWithConflicts() throws IOException {
+        Path a = write("a.mp4", "A");
+        Path b = write("b.mp4", "B");
+        Path c = write("c.mp4", "C");
+
+        RenamePlan existingTarget = plan(new RenameMove(a, b));
+        RenamePlan sharedTarget = plan(new RenameMove(a, root.resolve("x.mp4")), new RenameMove(c, root.resolve("x.mp4")));
+
+        assertFalse(existingTarget.isExecutable());
+        assertFalse(sharedTarget.isExecutable());
+        assertThrows(IllegalStateException.class, () -> engine.execute(existingTarget));
+        assertEquals(Map.of("a.mp4", "A", "b.mp4", "B", "c.mp4", "C"), contents());
+    }
+
+    @Test
+    void rollsBackWhenAMoveFails() throws IOException {
+        Path a = write("a.mp4", "A");
+        Path b = write("b.mp4", "B");
+        Path c = write("c.mp4", "C");
+        RenamePlan plan = plan(new RenameMove(a, b), new RenameMove(b, a), new RenameMove(c, root.resolve("d.mp4")));
+        Files.delete(c); // Disappears between planning and executing
+
+        IOException error = assertThrows(IOException.class, () -> engine.execute(plan));
+
+        assertTrue(error.getMessage().contains("undone"), error.getMessage());
+        assertEquals(Map.of("a.mp4", "A", "b.mp4", "B"), contents());
+    }
+
+    @Test
+    void recoversFromTheJournalOfAnInterruptedPlan() throws IOException {
+        Path a = write("a.mp4", "A");
+        Path b = write("b.mp4", "B");
+        Path temporary = root.resolve(".joyful-test-0.tmp");
+        try (RenameJournal journal = RenameJournal.create(root)) {
+            journal.record(new RenameMove(a, temporary));
+            Files.move(a, temporary);
+            journal.record(new RenameMove(b, a));
+            Files.move(b, a);
+            journal.record(new RenameMove(temporary, b)); // Crashed before this move
+        }
+
+        assertEquals(2, engine.recoverInterrupted(root));
+
+        assertEquals(Map.of("a.mp4", "A", "b.mp4", "B"), contents());
+    }
+
+    @Test
+    void shufflePermutesGroupsAndKeepsUnits() throws IOException {
+        write("0001.01. 1999 - First.mp4", "1a");
+        write("0001.02. 1999 - First.mp4", "1b");
+        write("0002.01. 2005 - Second.mkv", "2");
+        write("0003.01. 2010 - Third.avi", "3");
+        write("notes.txt", "n");
+
+        RenamePlan plan = engine.planShuffle(root, new Random(7));
+        engine.execute(plan);
+
+        Map<String, String> after = contents();
+        assertEquals(5, after.size());
+        assertEquals("n", after.get("notes.txt"));
+        assertEquals(Set.of("0001", "0002", "0003"), Set.copyOf(after.keySet().stream()
+                .filter(name -> !name.equals("notes.txt")).map(name -> name.substring(0, 4)).distinct().toList()));
+        String firstGroup = groupOf(after, "1a");
+        assertEquals(firstGroup + ".01. 1999 - First.mp4", nameOf(after, "1a"));
+        assertEquals(firstGroup + ".02. 1999 - First.mp4", nameOf(after, "1b"));
+    }
+
+    @Test
+    void normalizationMovesDirectoriesIntoGroups() throws IOException {
+        Files.createDirectories(root.resolve("Extras"));
+        write("Extras/Pilot (1999).avi", "p");
+        write("Extras/[2] Finale (2000).avi", "f");
+        write("Film (2001).mp4", "m");
+
+        engine.execute(engine.planNormalization(root));
+
+        assertEquals(Map.of(
+                "0001.01. 1999 - Pilot.avi", "p",
+                "0001.02. 2000 - Finale.avi", "f",
+                "0002.01. 2001 - Film.mp4", "m"), contents());
+    }
+
+    private RenamePlan plan(RenameMove... moves) throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return RenamePlan.of(root, List.of(moves), Set.copyOf(files.toList()), 0);
+        }
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(root.resolve(name), content);
+    }
+
+    /**
+     * @return Content by name of every file in the root directory, which must not hold temporary files or a journal
+     */
+    private Map<String, String> contents() throws IOException {
+        Map<String, String> contents = new TreeMap<>();
+        try (Stream<Path> files = Files.list(root)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                contents.put(file.getFileName().toString(), Files.readString(file));
+            }
+        }
+        return contents;
+    }
+
+    private static String nameOf(Map<String, String> contents, String content) {
+        return contents.entrySet().stream().filter(entry -> entry.getValue().equals(content)).findFirst().orElseThrow().getKey();
+    }
+
+    private static String groupOf(Map<String, String> contents, String content) {
+        return nameOf(contents, content).substring(0, 4);
+    }
+}
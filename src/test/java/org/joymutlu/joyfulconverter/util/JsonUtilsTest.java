@@ -0,0 +1,61 @@
+package org.joymutlu.joyfulconverter.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonUtilsTest {
+
+    private enum Color { RED }
+
+    @Test
+    void roundTripsNestedValues() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "a \"quoted\" \\ path\n\ttab \u0001");
+        value.put("count", 42L);
+        value.put("ratio", 1.5);
+        value.put("flag", true);
+        value.put("nothing", null);
+        value.put("list", Arrays.asList(1L, "two", List.of(), Map.of()));
+
+        assertEquals(value, JsonUtils.parse(JsonUtils.toJson(value)));
+    }
+
+    @Test
+    void writesEnumsAsStrings() {
+        assertEquals("{\"color\":\"RED\"}", JsonUtils.toJson(Map.of("color", Color.RED)));
+    }
+
+    @Test
+    void writesNonFiniteNumbersAsNull() {
+        assertEquals("[null,null,null,null,2.5]", JsonUtils.toJson(List.of(Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Float.NaN, 2.5)));
+    }
+
+    @Test
+    void parsesEscapesAndNumbers() {
+        Map<String, Object> value = JsonUtils.parseObject(" { \"s\" : \"\\u00e9\\/\\b\" , \"i\": -7, \"d\": 1e3 } ");
+
+        assertEquals("\u00e9/\b", value.get("s"));
+        assertEquals(-7L, value.get("i"));
+        assertEquals(1000.0, value.get("d"));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        for (String text : List.of("", "{", "{\"a\"}", "{\"a\":1,}", "[1 2]", "\"abc", "\"abc\\", "\"\\u12\"",
+                "\"\\uzzzz\"", "tru", "{} x", "-", "@")) {
+            assertThrows(IllegalArgumentException.class, () -> JsonUtils.parse(text), text);
+        }
+    }
+
+    @Test
+    void parseObjectRejectsOtherValues() {
+        assertThrows(IllegalArgumentException.class, () -> JsonUtils.parseObject("[1]"));
+    }
+}